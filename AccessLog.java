@@ -0,0 +1,288 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The log of the server: one access record for every transfer when it ends, and messages with a level.
+ *
+ * Logging never waits for the output. A record is put into a bounded ring buffer with a compareAndSet, and a
+ * dedicated writer thread takes the records from the ring, formats them and writes them. The formatting (and the
+ * String.format of a message) is done by the writer thread, so a transfer only pays for creating the record. When the
+ * ring is full the record is dropped and counted, the writer reports the number of dropped records once it catches up.
+ *
+ * Every record is a line of key=value pairs (logfmt), ex:
+ *   ts=2024-01-01T12:00:00.000Z level=info event=transfer client=192.0.2.1:50000 op=RRQ file=boot.img result=ok ...
+ * Clients are logged by their address, the log never does a reverse DNS lookup.
+ */
+public class AccessLog implements Runnable {
+  public enum Level { ERROR, WARN, INFO, DEBUG }
+
+  // The number of records that can wait for the writer, a power of two
+  private static final int CAPACITY = 8192;
+  // How long the writer sleeps when the ring is empty
+  private static final long IDLENANOS = 1000000;
+
+  private static final AccessLog LOG = new AccessLog();
+  private static volatile Level level = Level.INFO;
+
+  private final Record[] records = new Record[CAPACITY];
+  // The sequence of every slot: the ticket of the producer that may fill it, or that ticket + 1 once it has been filled
+  private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+  private final AtomicLong tail = new AtomicLong();
+  private final LongAdder dropped = new LongAdder();
+  // Only used by the writer thread
+  private long head = 0;
+  private long reportedDropped = 0;
+  private final StringBuilder line = new StringBuilder(256);
+  private Writer out;
+  private Thread writer;
+  private volatile boolean closing = false;
+
+  /**
+   * A message, or the access record of a transfer when session is set.
+   */
+  private static final class Record {
+    private final long millis = System.currentTimeMillis();
+    private final Level level;
+    private final String format;
+    private final Object[] args;
+    private final TFTPMetrics.Session session;
+
+    Record(Level level, String format, Object[] args, TFTPMetrics.Session session) {
+      this.level = level;
+      this.format = format;
+      this.args = args;
+      this.session = session;
+    }
+  }
+
+  private AccessLog() {
+    for (int i = 0; i < CAPACITY; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Starts the writer thread, the records that were logged before are written first.
+   * @param minimum the least severe level that is written
+   * @param path the file that the log is appended to, or "-" for the standard output
+   * @throws IOException if the file can not be opened
+   */
+  public static synchronized void start(Level minimum, String path) throws IOException {
+    if (LOG.writer != null) {
+      throw new IllegalStateException("The log has already been started");
+    }
+    level = minimum;
+    OutputStream stream = path.equals("-") ? System.out : new FileOutputStream(path, true);
+    LOG.out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 65536);
+    LOG.writer = new Thread(LOG, "tftp-log");
+    LOG.writer.setDaemon(true);
+    LOG.writer.start();
+
+    // The records that are still in the ring are written when the server exits
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      public void run() {
+        LOG.closing = true;
+        LockSupport.unpark(LOG.writer);
+        try {
+          LOG.writer.join(1000);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, "tftp-log-shutdown"));
+  }
+
+  /**
+   * @return true if messages of the level are written, so that a caller can skip building their arguments
+   */
+  public static boolean isEnabled(Level messageLevel) {
+    return messageLevel.compareTo(level) <= 0;
+  }
+
+  public static void error(String format, Object... args) {
+    log(Level.ERROR, format, args);
+  }
+
+  public static void warn(String format, Object... args) {
+    log(Level.WARN, format, args);
+  }
+
+  public static void info(String format, Object... args) {
+    log(Level.INFO, format, args);
+  }
+
+  public static void debug(String format, Object... args) {
+    log(Level.DEBUG, format, args);
+  }
+
+  /**
+   * Logs a message, which is formatted by the writer thread.
+   * @param format the format of the message, as of String.format
+   * @param args the arguments of the format, which must not be changed after the call
+   */
+  public static void log(Level messageLevel, String format, Object... args) {
+    if (isEnabled(messageLevel)) {
+      LOG.offer(new Record(messageLevel, format, args, null));
+    }
+  }
+
+  /**
+   * Logs the access record of a transfer that has ended.
+   * @param session the metrics of the transfer, which are not changed anymore
+   */
+  public static void transfer(TFTPMetrics.Session session) {
+    if (isEnabled(Level.INFO)) {
+      LOG.offer(new Record(Level.INFO, null, null, session));
+    }
+  }
+
+  /**
+   * Puts a record into the ring, or drops it if the ring is full.
+   */
+  private void offer(Record record) {
+    while (true) {
+      long ticket = tail.get();
+      int slot = (int) (ticket & (CAPACITY - 1));
+      long sequence = sequences.get(slot);
+      if (sequence == ticket) {
+        if (tail.compareAndSet(ticket, ticket + 1)) {
+          records[slot] = record;
+          // Publishes the record to the writer
+          sequences.lazySet(slot, ticket + 1);
+          return;
+        }
+      } else if (sequence < ticket) {
+        // The slot still holds the record of the previous round, which the writer has not taken yet
+        dropped.increment();
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return the next record of the ring, or null if it is empty. Only called by the writer thread
+   */
+  private Record poll() {
+    int slot = (int) (head & (CAPACITY - 1));
+    if (sequences.get(slot) != head + 1) {
+      return null;
+    }
+    Record record = records[slot];
+    records[slot] = null;
+    // Hands the slot to the producer of the next round
+    sequences.lazySet(slot, head + CAPACITY);
+    head++;
+    return record;
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        Record record = poll();
+        if (record != null) {
+          write(record);
+          continue;
+        }
+        long drops = dropped.sum();
+        if (drops > reportedDropped) {
+          line.setLength(0);
+          appendHeader(System.currentTimeMillis(), Level.WARN);
+          line.append(" msg=\"").append(drops - reportedDropped).append(" log records were dropped, the log could not keep up\"");
+          out.write(line.append('\n').toString());
+          reportedDropped = drops;
+        }
+        out.flush();
+        if (closing) {
+          return;
+        }
+        LockSupport.parkNanos(IDLENANOS);
+      } catch (IOException | RuntimeException e) {
+        // The log must not stop the server, the record is lost
+        System.err.println("Could not write the log: " + e);
+      }
+    }
+  }
+
+  private void write(Record record) throws IOException {
+    line.setLength(0);
+    appendHeader(record.millis, record.level);
+    if (record.session != null) {
+      appendTransfer(record.session);
+    } else {
+      line.append(" msg=");
+      appendValue(String.format(Locale.ROOT, record.format, record.args));
+    }
+    out.write(line.append('\n').toString());
+  }
+
+  private void appendHeader(long millis, Level recordLevel) {
+    line.append("ts=").append(Instant.ofEpochMilli(millis)).append(" level=").append(recordLevel.name().toLowerCase(Locale.ROOT));
+  }
+
+  private void appendTransfer(TFTPMetrics.Session session) {
+    line.append(" event=transfer client=");
+    InetSocketAddress client = session.getClient();
+    if (client != null) {
+      line.append(client.getAddress().getHostAddress()).append(':').append(client.getPort());
+    } else {
+      line.append('-');
+    }
+    line.append(" op=").append(session.getOpcode() == TFTPUtils.OP_WRQ ? "WRQ" : "RRQ");
+    line.append(" file=");
+    appendValue(session.getFile());
+    line.append(" result=").append(session.isSuccessful() ? "ok" : "failed");
+    if (session.getError() != null) {
+      line.append(" error=").append(session.getError().name());
+    }
+    line.append(" bytes=").append(session.getBytes());
+    line.append(" retransmits=").append(session.getRetransmits());
+    line.append(" ms=").append(String.format(Locale.ROOT, "%.3f", session.getDurationNanos() / 1e6));
+  }
+
+  /**
+   * Appends a value, which is quoted if it contains spaces, quotes or '=', and whose control characters are escaped,
+   * so that a requested filename can not break the line or add keys to it.
+   */
+  private void appendValue(String value) {
+    if (value == null) {
+      line.append('-');
+      return;
+    }
+    boolean quote = value.isEmpty();
+    for (int i = 0; i < value.length() && !quote; i++) {
+      char c = value.charAt(i);
+      quote = c <= ' ' || c == '"' || c == '=' || c == '\\' || c == 0x7F;
+    }
+    if (!quote) {
+      line.append(value);
+      return;
+    }
+    line.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        line.append('\\').append(c);
+      } else if (c == '\n') {
+        line.append("\\n");
+      } else if (c < ' ' || c == 0x7F) {
+        line.append(String.format("\\u%04x", (int) c));
+      } else {
+        line.append(c);
+      }
+    }
+    line.append('"');
+  }
+}
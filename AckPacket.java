@@ -1,65 +1,70 @@
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketTimeoutException;
 /**
- * Represents an Ack packet for the TFTP protocol 
+ * Represents an Ack packet for the TFTP protocol
+ * The packet is encoded into a reusable 4 byte buffer, so that a session can send and receive
+ * all of its ACKs through the same AckPacket without allocating anything.
  */
 public class AckPacket {
-  private byte[] opcode = {0, TFTPUtils.OP_ACK};
-  private byte[] blocknbr;
+  private final byte[] packetBytes = new byte[4];
+  private final DatagramPacket packet = new DatagramPacket(packetBytes, packetBytes.length);
+  private int blocknbr = -1;
 
   // Constructor for creating an ackpacket with a blocknumber (such as when responding to client with ack)
   public AckPacket(int blocknbr) {
-    this.blocknbr = TFTPUtils.createBlocknbrArray(blocknbr);
+    setBlocknbr(blocknbr);
   }
-  
+
   public AckPacket() {}
-  
+
+  /**
+   * Encodes an ACK for another blocknumber into the packet, so that it can be sent again with getDatagramPacket.
+   * @param blocknbr the blocknumber to acknowledge
+   */
+  public void setBlocknbr(int blocknbr) {
+    this.blocknbr = blocknbr;
+    TFTPCodec.encodeAck(packetBytes, blocknbr);
+    packet.setLength(packetBytes.length);
+  }
+
   /**
-   * Tries to receive a DatagramPacket from the socket.
+   * Tries to receive a DatagramPacket from the socket, waiting for at most the timeout of the socket.
+   * The same receive buffer is used for every ACK that is received into this AckPacket.
    * @param sendSocket the socket which the DatagramPacket shall be received from
+   * @return false if the packet is not an ACK packet, its blocknumber is then -1
    * @throws IOException if an error occured during the receiving of the packet
+   * @throws SocketTimeoutException if no packet was received before the timeout of the socket
    */
-  public void receivedAck(DatagramSocket sendSocket) throws IOException {
-    byte[] ackarr = new byte[4];
-    DatagramPacket ack = new DatagramPacket(ackarr, ackarr.length);
-  
-    try {
-      sendSocket.setSoTimeout(100);
-      sendSocket.receive(ack);
-    } catch(SocketTimeoutException timeout) {
-      throw new SocketTimeoutException("timeout");
-    }
-    // Retreive the data from the DatagramPacket 
-    ackarr = ack.getData();
+  public boolean receivedAck(DatagramSocket sendSocket) throws IOException {
+    packet.setLength(packetBytes.length);
+    sendSocket.receive(packet);
 
     // Check if the data contains an Error opcode
-    TFTPUtils.checkIfErrorPacket(ackarr);
+    TFTPUtils.checkIfErrorPacket(packetBytes);
 
+    if (packet.getLength() < 4 || TFTPCodec.getOpcode(packetBytes) != TFTPUtils.OP_ACK) {
+      // A short packet or another opcode has no blocknumber, the one of the previous packet is not kept
+      this.blocknbr = -1;
+      return false;
+    }
     // Get the new blocknumber from the received ackpacket
-    int recievedBlocknum = TFTPUtils.getBlocknumInt(ackarr);
-    this.blocknbr = TFTPUtils.createBlocknbrArray(recievedBlocknum);
+    this.blocknbr = TFTPCodec.getBlocknbr(packetBytes);
+    return true;
   }
 
   /**
-   * Is used to create a Datagrampacket of the AckPacket object
+   * Is used to get the Datagrampacket of the AckPacket object, the same DatagramPacket is returned on every call
    */
-  public DatagramPacket getDatagramPacket() throws IOException {
-    ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-    
-    // Write both the byte arrays to a byteArrayOutputStream
-    bOut.write(opcode);
-    bOut.write(blocknbr);
-
-    // Get the newly merged bytearray from the byteArrayOutputStream and create a DatagramPacket with it
-    byte[] packetBytes = bOut.toByteArray();
-    DatagramPacket p = new DatagramPacket(packetBytes, packetBytes.length);
-    return p;
+  public DatagramPacket getDatagramPacket() {
+    return packet;
   }
-  
-  public byte[] getAckBlocknumArray() {
+
+  /**
+   * @return the blocknumber of the ACK, or -1 if no blocknumber has been set or received
+   */
+  public int getBlocknbr() {
     return blocknbr;
   }
 }
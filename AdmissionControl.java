@@ -0,0 +1,238 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of transfers that run at once, so that an overloaded server serves some clients well
+ * instead of every client so slowly that all of them time out together.
+ *
+ * A request starts right away while fewer than maxSessions transfers run. Otherwise it waits in a bounded queue,
+ * and a dispatcher thread starts the queued requests in order as transfers end. A request that does not fit in the
+ * queue is answered with a busy error at once.
+ *
+ * Requests are shed by their delay in the queue, with CoDel as it is used for request queues: while the queue has
+ * been empty within the last interval, a burst of requests may wait up to the interval. Once the queue has not been
+ * empty for a whole interval it is a standing queue, and requests that waited longer than the target are shed.
+ * The dispatcher sheds the expired requests at the head of the queue while it waits for a transfer to end, so that
+ * their clients get a busy error while they still wait for an answer, back off and try again, instead of timing out.
+ */
+public class AdmissionControl implements Runnable {
+  // How often the dispatcher sheds expired requests while it waits for a transfer to end
+  private static final long SHEDTICKMILLIS = 10;
+
+  private final Semaphore permits;
+  private final ArrayBlockingQueue<Request> queue;
+  private final long targetNanos;
+  private final long intervalNanos;
+  // The last System.nanoTime() when the queue was seen empty
+  private volatile long lastEmpty = System.nanoTime();
+
+  private final AtomicInteger active = new AtomicInteger();
+  private final LongAdder admitted = new LongAdder();
+  private final LongAdder queued = new LongAdder();
+  private final LongAdder shedQueueFull = new LongAdder();
+  private final LongAdder shedQueueDelay = new LongAdder();
+  private final Histogram queueDelayMicros = new Histogram();
+
+  /**
+   * A request that waits for admission.
+   */
+  public static final class Request {
+    private final TFTPMetrics.Session session;
+    private final Runnable start;
+    private final Runnable reject;
+    private long queuedAt;
+
+    /**
+     * @param session the metrics of the transfer, which release its admission when the session ends
+     * @param start starts the transfer once it is admitted
+     * @param reject answers the client with a busy error and ends the session, when the request is shed
+     */
+    public Request(TFTPMetrics.Session session, Runnable start, Runnable reject) {
+      this.session = session;
+      this.start = start;
+      this.reject = reject;
+    }
+  }
+
+  /**
+   * @param maxSessions the number of transfers that may run at once
+   * @param queueLimit the number of requests that may wait for a transfer to end
+   * @param targetMillis the queue delay that is acceptable
+   * @param intervalMillis how long the queue delay may stay above the target before requests are shed
+   */
+  public AdmissionControl(int maxSessions, int queueLimit, long targetMillis, long intervalMillis) {
+    this.permits = new Semaphore(maxSessions);
+    this.queue = new ArrayBlockingQueue<>(queueLimit);
+    this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+    this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+  }
+
+  /**
+   * Starts the dispatcher thread.
+   */
+  public void start() {
+    Thread thread = new Thread(this, "tftp-admission");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Starts a request if a transfer may start, otherwise queues it, or rejects it if the queue is full.
+   * Requests only start on the calling thread while none are queued, so that they do not overtake queued requests.
+   * The check of the queue, the permit and the offer are made under the lock of the queue, so that a request of
+   * another listener thread can not be queued in between, the freed permits then go to the dispatcher.
+   */
+  public void admit(Request request) {
+    long now = System.nanoTime();
+    boolean startNow = false;
+    boolean offered = false;
+    synchronized (queue) {
+      if (queue.isEmpty()) {
+        lastEmpty = now;
+        startNow = permits.tryAcquire();
+      }
+      if (!startNow) {
+        request.queuedAt = now;
+        offered = queue.offer(request);
+        if (offered) {
+          queued.increment();
+          queue.notifyAll();
+        }
+      }
+    }
+    if (startNow) {
+      queueDelayMicros.record(0);
+      start(request);
+    } else if (!offered) {
+      shedQueueFull.increment();
+      AccessLog.debug("The admission queue is full, rejecting a request");
+      request.reject.run();
+    }
+  }
+
+  private void start(Request request) {
+    admitted.increment();
+    active.incrementAndGet();
+    // The admission is released exactly once, by the end of the session
+    request.session.setEndListener(this::release);
+    request.start.run();
+  }
+
+  private void release() {
+    active.decrementAndGet();
+    permits.release();
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        // The permit is only taken for a queued request, so that admit() has every permit while none is queued
+        awaitRequest();
+        if (!permits.tryAcquire(SHEDTICKMILLIS, TimeUnit.MILLISECONDS)) {
+          shedExpired();
+          continue;
+        }
+        Request request = queue.poll();
+        if (request == null || isExpired(request, System.nanoTime())) {
+          if (request != null) {
+            shed(request);
+          }
+          permits.release();
+          continue;
+        }
+        queueDelayMicros.record((System.nanoTime() - request.queuedAt) / 1000);
+        start(request);
+      } catch (InterruptedException e) {
+        return;
+      } catch (RuntimeException e) {
+        // The dispatcher has to survive, as every queued request would otherwise wait forever
+        AccessLog.error("Could not start an admitted request: %s", e);
+      }
+    }
+  }
+
+  /**
+   * Waits until a request is queued.
+   */
+  private void awaitRequest() throws InterruptedException {
+    synchronized (queue) {
+      while (queue.isEmpty()) {
+        lastEmpty = System.nanoTime();
+        queue.wait();
+      }
+    }
+  }
+
+  /**
+   * Sheds the expired requests at the head of the queue. Only the dispatcher takes from the queue,
+   * so the head that was looked at is the one that is taken.
+   */
+  private void shedExpired() {
+    long now = System.nanoTime();
+    Request head = queue.peek();
+    if (head == null) {
+      lastEmpty = now;
+    }
+    while (head != null && isExpired(head, now)) {
+      shed(queue.poll());
+      head = queue.peek();
+    }
+  }
+
+  /**
+   * @return true if the request waited longer than the interval, or longer than the target in a standing queue
+   */
+  private boolean isExpired(Request request, long now) {
+    long allowed = (now - lastEmpty > intervalNanos) ? targetNanos : intervalNanos;
+    return now - request.queuedAt > allowed;
+  }
+
+  private void shed(Request request) {
+    long delay = System.nanoTime() - request.queuedAt;
+    queueDelayMicros.record(delay / 1000);
+    shedQueueDelay.increment();
+    AccessLog.debug("Shedding a request that waited %d ms for admission", TimeUnit.NANOSECONDS.toMillis(delay));
+    request.reject.run();
+  }
+
+  /**
+   * @return the number of requests that wait for admission
+   */
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  /**
+   * @return the number of admitted transfers that are running
+   */
+  public int getActive() {
+    return active.get();
+  }
+
+  public long getAdmitted() {
+    return admitted.sum();
+  }
+
+  /**
+   * @return the number of requests that had to wait in the queue
+   */
+  public long getQueued() {
+    return queued.sum();
+  }
+
+  public long getShedQueueFull() {
+    return shedQueueFull.sum();
+  }
+
+  public long getShedQueueDelay() {
+    return shedQueueDelay.sum();
+  }
+
+  public Histogram getQueueDelayMicros() {
+    return queueDelayMicros;
+  }
+}
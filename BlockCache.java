@@ -0,0 +1,320 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * A size bounded in-memory cache of the contents of the files that are read by the clients,
+ * so that many clients fetching the same files (ex. boot images) do not read them from the disk each time.
+ *
+ * Entries are keyed by the identity of the file (path, modification time and size), so a file that is changed
+ * on disk is loaded again. The least recently used files are evicted when the cache is full.
+ * When several clients request the same file that is not cached yet, only one of them loads it and the others
+ * wait for that load (single-flight). The NIO engine does not wait, see getNow.
+ */
+public class BlockCache {
+  // Number of threads that load files for getNow
+  private static final int LOADERS = 2;
+
+  /**
+   * The identity of a file, a file with the same path but another modification time or size is another file.
+   */
+  private static final class FileKey {
+    private final String path;
+    private final long lastModified;
+    private final long size;
+
+    FileKey(String path, long lastModified, long size) {
+      this.path = path;
+      this.lastModified = lastModified;
+      this.size = size;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof FileKey)) {
+        return false;
+      }
+      FileKey other = (FileKey) o;
+      return path.equals(other.path) && lastModified == other.lastModified && size == other.size;
+    }
+
+    @Override
+    public int hashCode() {
+      return path.hashCode() * 31 + Long.hashCode(lastModified) * 17 + Long.hashCode(size);
+    }
+  }
+
+  private final long capacity;
+  private final long maxFileSize;
+  private final boolean offHeap;
+
+  // Access ordered, so that the first entry is the least recently used. Guarded by 'this'
+  private final LinkedHashMap<FileKey, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<String, FileKey> currentKeys = new HashMap<>();
+  private long usedBytes = 0;
+
+  private final ConcurrentHashMap<FileKey, CompletableFuture<ByteBuffer>> loading = new ConcurrentHashMap<>();
+  // Loads the files that the NIO engine asked for, so that its event loops never read a whole file
+  private final ExecutorService loader = Executors.newFixedThreadPool(LOADERS, new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "tftp-cache-loader");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param capacity the largest number of bytes that the cache may hold
+   * @param maxFileSize files larger than this are never cached
+   * @param offHeap if the contents are kept in direct ByteBuffers outside of the Java heap
+   */
+  public BlockCache(long capacity, long maxFileSize, boolean offHeap) {
+    this.capacity = capacity;
+    this.maxFileSize = Math.min(Math.min(maxFileSize, capacity), Integer.MAX_VALUE);
+    this.offHeap = offHeap;
+  }
+
+  /**
+   * Retrieves the contents of a file from the cache, the file is loaded through fileChannel if it is not cached.
+   *
+   * @param file the requested file
+   * @param fileChannel an open channel of the file, used to load the file
+   * @return a read-only buffer with the contents of the file, or null if the file is too large to be cached
+   * @throws IOException if the file could not be loaded
+   */
+  public ByteBuffer get(File file, FileChannel fileChannel) throws IOException {
+    FileKey key = keyOf(file, fileChannel);
+    if (key == null) {
+      return null;
+    }
+    ByteBuffer content = lookup(key);
+    if (content != null) {
+      return content;
+    }
+
+    // Only the first request for a file that is not cached loads it, the others wait for the same load
+    CompletableFuture<ByteBuffer> load = new CompletableFuture<>();
+    CompletableFuture<ByteBuffer> running = loading.putIfAbsent(key, load);
+    if (running == null) {
+      running = load;
+      run(key, load, fileChannel);
+    } else {
+      coalesced.increment();
+    }
+
+    try {
+      return running.get().asReadOnlyBuffer();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the file to be loaded", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Could not load the file into the cache", e.getCause());
+    }
+  }
+
+  /**
+   * Retrieves the contents of a file from the cache without waiting for the disk. Is used by the NIO engine,
+   * whose event loop would otherwise stall every transfer on it while a whole file is read. A file that is not
+   * cached is loaded on a loader thread, which opens the file again, and the caller reads the file from the disk
+   * until the contents are handed to loaded.
+   *
+   * @param file the requested file
+   * @param fileChannel an open channel of the file, which is only used for its size
+   * @param loaded is run on a loader thread with a read-only buffer of the contents, once the file is loaded.
+   *               It is not run if the file could not be loaded
+   * @return a read-only buffer with the contents of the file, or null if the file is not cached yet or too large
+   * @throws IOException if the size of the file could not be read
+   */
+  public ByteBuffer getNow(final File file, FileChannel fileChannel, final Consumer<ByteBuffer> loaded) throws IOException {
+    final FileKey key = keyOf(file, fileChannel);
+    if (key == null) {
+      return null;
+    }
+    ByteBuffer content = lookup(key);
+    if (content != null) {
+      return content;
+    }
+
+    final CompletableFuture<ByteBuffer> load = new CompletableFuture<>();
+    CompletableFuture<ByteBuffer> running = loading.putIfAbsent(key, load);
+    if (running == null) {
+      running = load;
+      loader.execute(new Runnable() {
+        public void run() {
+          // The file is loaded through a channel of its own, the channel of the transfer may be closed before
+          try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() != key.size || file.lastModified() != key.lastModified) {
+              throw new IOException("The file changed before it was loaded");
+            }
+            BlockCache.this.run(key, load, channel);
+          } catch (IOException | RuntimeException e) {
+            load.completeExceptionally(e);
+            loading.remove(key, load);
+          }
+        }
+      });
+    } else {
+      coalesced.increment();
+    }
+    running.thenAccept(new Consumer<ByteBuffer>() {
+      public void accept(ByteBuffer content) {
+        loaded.accept(content.asReadOnlyBuffer());
+      }
+    });
+    return null;
+  }
+
+  /**
+   * @return the identity of the file, or null if the file is too large to be cached
+   */
+  private FileKey keyOf(File file, FileChannel fileChannel) throws IOException {
+    long size = fileChannel.size();
+    if (size > maxFileSize) {
+      return null;
+    }
+    return new FileKey(file.getAbsolutePath(), file.lastModified(), size);
+  }
+
+  /**
+   * @return a read-only buffer of the cached contents, or null if the file is not cached
+   */
+  private ByteBuffer lookup(FileKey key) {
+    synchronized (this) {
+      ByteBuffer content = entries.get(key);
+      if (content != null) {
+        hits.increment();
+        return content.asReadOnlyBuffer();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Loads a file whose load was claimed in loading, and completes the load with its contents or the error.
+   */
+  private void run(FileKey key, CompletableFuture<ByteBuffer> load, FileChannel fileChannel) {
+    try {
+      // Another load may have completed between the lookup and claiming the load
+      ByteBuffer content;
+      synchronized (this) {
+        content = entries.get(key);
+      }
+      if (content != null) {
+        hits.increment();
+      } else {
+        misses.increment();
+        content = load(key, fileChannel);
+      }
+      load.complete(content);
+    } catch (IOException | RuntimeException | OutOfMemoryError e) {
+      load.completeExceptionally(e);
+    } finally {
+      loading.remove(key, load);
+    }
+  }
+
+  /**
+   * Reads the whole file into a new buffer and adds it to the cache.
+   * @throws IOException if the file could not be read, or its size is not the size of the key anymore
+   */
+  private ByteBuffer load(FileKey key, FileChannel fileChannel) throws IOException {
+    int size = (int) key.size;
+    ByteBuffer content = offHeap ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    while (content.hasRemaining()) {
+      if (fileChannel.read(content, content.position()) == -1) {
+        break;
+      }
+    }
+    // A file that was truncated or appended to after its key was taken is not cached under that key
+    if (content.hasRemaining() || fileChannel.size() != key.size) {
+      throw new IOException("The size of " + key.path + " changed while it was loaded");
+    }
+    content.flip();
+    put(key, content);
+    AccessLog.debug("Loaded %s into the cache, %s", key.path, toString());
+    return content;
+  }
+
+  private synchronized void put(FileKey key, ByteBuffer content) {
+    // An older version of the same file will not be requested again
+    FileKey previous = currentKeys.put(key.path, key);
+    if (previous != null && !previous.equals(key)) {
+      remove(previous);
+    }
+
+    entries.put(key, content);
+    usedBytes += content.limit();
+
+    Iterator<Map.Entry<FileKey, ByteBuffer>> eldest = entries.entrySet().iterator();
+    while (usedBytes > capacity && eldest.hasNext()) {
+      Map.Entry<FileKey, ByteBuffer> entry = eldest.next();
+      if (entry.getKey().equals(key)) {
+        continue;
+      }
+      usedBytes -= entry.getValue().limit();
+      currentKeys.remove(entry.getKey().path, entry.getKey());
+      eldest.remove();
+      evictions.increment();
+    }
+  }
+
+  private void remove(FileKey key) {
+    ByteBuffer content = entries.remove(key);
+    if (content != null) {
+      usedBytes -= content.limit();
+      evictions.increment();
+    }
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getCoalesced() {
+    return coalesced.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  public synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("BlockCache[entries=%d, bytes=%d/%d, hits=%d, misses=%d, coalesced=%d, evictions=%d]",
+        getEntryCount(), getUsedBytes(), capacity, getHits(), getMisses(), getCoalesced(), getEvictions());
+  }
+}
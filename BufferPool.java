@@ -0,0 +1,71 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of packet buffers which is owned by a single thread (such as an event loop of the NioEngine),
+ * so that the buffers of finished transfers are reused by the next transfers instead of being allocated again.
+ *
+ * The buffers are pooled in size classes of powers of two, a buffer may therefore be larger than requested.
+ * The pool keeps at most MAXPOOLEDBYTES, buffers that are released beyond that are left to the garbage collector.
+ */
+public class BufferPool {
+  private static final int MINCLASS = 6;
+  private static final int MAXCLASS = 17;
+  private static final long MAXPOOLEDBYTES = 64L * 1024 * 1024;
+
+  private final boolean direct;
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private final ArrayDeque<ByteBuffer>[] classes = new ArrayDeque[MAXCLASS + 1];
+  private long pooledBytes = 0;
+
+  /**
+   * @param direct if the buffers are direct ByteBuffers, which the channels can send without copying
+   */
+  public BufferPool(boolean direct) {
+    this.direct = direct;
+    for (int i = MINCLASS; i <= MAXCLASS; i++) {
+      classes[i] = new ArrayDeque<>();
+    }
+  }
+
+  /**
+   * Takes a buffer from the pool, or allocates one if the pool has none of that size.
+   * @param size the smallest capacity of the buffer, up to 131072 bytes
+   * @return a cleared buffer with a limit of size
+   */
+  public ByteBuffer acquire(int size) {
+    int sizeClass = sizeClass(size);
+    ByteBuffer buf = classes[sizeClass].poll();
+    if (buf == null) {
+      buf = direct ? ByteBuffer.allocateDirect(1 << sizeClass) : ByteBuffer.allocate(1 << sizeClass);
+    } else {
+      pooledBytes -= buf.capacity();
+    }
+    buf.clear();
+    buf.limit(size);
+    return buf;
+  }
+
+  /**
+   * Returns a buffer to the pool, the buffer must not be used after it has been released.
+   * @param buf a buffer that was acquired from this pool, or null
+   */
+  public void release(ByteBuffer buf) {
+    if (buf == null || pooledBytes + buf.capacity() > MAXPOOLEDBYTES) {
+      return;
+    }
+    int sizeClass = Integer.numberOfTrailingZeros(buf.capacity());
+    if (buf.capacity() != (1 << sizeClass) || sizeClass < MINCLASS || sizeClass > MAXCLASS) {
+      return;
+    }
+    pooledBytes += buf.capacity();
+    classes[sizeClass].push(buf);
+  }
+
+  private static int sizeClass(int size) {
+    if (size > (1 << MAXCLASS)) {
+      throw new IllegalArgumentException("Buffers are limited to " + (1 << MAXCLASS) + " bytes");
+    }
+    return Math.max(MINCLASS, 32 - Integer.numberOfLeadingZeros(size - 1));
+  }
+}
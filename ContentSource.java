@@ -0,0 +1,115 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Where the files of the read requests come from: the read directory on the disk (FileContentSource), files that
+ * were loaded into memory (MemoryContentSource), or files that are rendered for every client (TemplateContentSource).
+ *
+ * The transfers only read their file through Content, with positional reads, so that any block can be read again
+ * for a retransmission no matter where the bytes come from.
+ */
+public interface ContentSource {
+
+  /**
+   * Opens a file for a read request.
+   *
+   * @param name the requested name, relative to the read directory
+   * @param client the address of the client, which a generated file may depend on
+   * @return the contents of the file, which the transfer closes when it ends
+   * @throws IOException if the file can not be read, ex. FileNotFoundException if it does not exist
+   * @throws OutOfMemoryError if the requested file contained the AllocationExceeded error test
+   */
+  Content open(String name, InetSocketAddress client) throws IOException;
+
+  /**
+   * Opens a file for a read request without waiting for it to be loaded into memory. Is used by the NIO engine,
+   * whose event loop must not wait for a whole file. The contents are read from where they come from until they
+   * are loaded. Sources that do not load files are opened the same way as with open.
+   *
+   * @param name the requested name, relative to the read directory
+   * @param client the address of the client, which a generated file may depend on
+   * @return the contents of the file, which the transfer closes when it ends
+   * @throws IOException if the file can not be read, ex. FileNotFoundException if it does not exist
+   * @throws OutOfMemoryError if the requested file contained the AllocationExceeded error test
+   */
+  default Content openNow(String name, InetSocketAddress client) throws IOException {
+    return open(name, client);
+  }
+
+  /**
+   * The contents of an opened file. An instance is only used by the transfer that opened it.
+   */
+  interface Content extends Closeable {
+    /**
+     * @return the size in bytes, which does not change while the file is open
+     */
+    long size();
+
+    /**
+     * @return a version that changes whenever the contents change (ex. the modification time of a file on the disk),
+     *         transfers of the same name and version send the same bytes
+     */
+    long version();
+
+    /**
+     * Reads the contents from a position into the remaining space of dst, until dst is full or the end is reached.
+     *
+     * @param dst the buffer to read into, a heap or a direct buffer
+     * @param position the position in the contents where the read starts
+     * @return the number of bytes read, which is less than the space of dst at the end of the contents
+     * @throws IOException if the contents could not be read
+     */
+    int read(ByteBuffer dst, long position) throws IOException;
+  }
+
+  /**
+   * Contents that are held in a ByteBuffer.
+   */
+  final class BufferContent implements Content {
+    private final ByteBuffer buffer;
+    private final long version;
+
+    /**
+     * @param buffer the contents, from its position 0 to its capacity, which are not changed by the transfer
+     * @param version the version of the contents
+     */
+    public BufferContent(ByteBuffer buffer, long version) {
+      // The transfer moves the position and limit of its own view of the contents
+      this.buffer = buffer.duplicate();
+      this.version = version;
+    }
+
+    /**
+     * @return another view of the same contents, for another transfer
+     */
+    public BufferContent duplicate() {
+      return new BufferContent(buffer, version);
+    }
+
+    @Override
+    public long size() {
+      return buffer.capacity();
+    }
+
+    @Override
+    public long version() {
+      return version;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) {
+      int start = (int) Math.min(position, buffer.capacity());
+      int read = Math.min(dst.remaining(), buffer.capacity() - start);
+      buffer.clear();
+      buffer.position(start);
+      buffer.limit(start + read);
+      dst.put(buffer);
+      return read;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -1,63 +1,111 @@
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
 /**
  * Represents a TFTP Protocol DatagramPacket containing Data
  */
 public class DataPacket {
   private byte[] data;
-  private byte[] opcode = {0,TFTPUtils.OP_DAT};
-  private byte[] blocknbr;
+  private int blocknbr;
   private int dataLength;
+  // Reusable packet buffer, where the blocks of a file are read into after the header
+  private ByteBuffer packetBuffer;
+  private DatagramPacket packet;
 
-  public DataPacket(byte[] data, int blocknbr) {
-    this.data = data;
-    this.blocknbr = TFTPUtils.createBlocknbrArray(blocknbr);
+  /**
+   * Creates a DataPacket with a reusable packet buffer, for sending the blocks of a file with readBlock.
+   * @param blksize the blocksize of the session
+   */
+  public DataPacket(int blksize) {
+    byte[] buf = new byte[blksize + 4];
+    this.packetBuffer = ByteBuffer.wrap(buf);
+    this.packet = new DatagramPacket(buf, buf.length);
+    TFTPCodec.putShort(buf, 0, TFTPUtils.OP_DAT);
   }
 
   public DataPacket() {}
 
   /**
-   * Recieves a DatagramPacket containing Data from the DatagramSocket
+   * Reads a block of a file straight into the packet buffer after the header, with a positional read
+   * so that no bytes are copied and nothing is allocated for the block.
+   * 
+   * @param content the file to read from
+   * @param position the position in the file where the block starts
+   * @param blocknbr the blocknumber of the block
+   * @return the number of bytes in the block, which is less than the blocksize at the end of the file
+   * @throws IOException if the file could not be read
+   */
+  public int readBlock(ContentSource.Content content, long position, int blocknbr) throws IOException {
+    packetBuffer.clear();
+    packetBuffer.putShort(2, (short) blocknbr);
+    packetBuffer.position(4);
+
+    int read = content.read(packetBuffer, position);
+    this.dataLength = read;
+    packet.setLength(read + 4);
+    return read;
+  }
+
+  /**
+   * Encodes the next block of a netascii transfer into the packet buffer after the header.
+   *
+   * @param encoder the encoder of the session, which reads the file sequentially
+   * @param blocknbr the blocknumber of the block
+   * @return the number of bytes in the block, which is less than the blocksize at the end of the file
+   * @throws IOException if the file could not be read
+   */
+  public int readBlock(Netascii.Encoder encoder, int blocknbr) throws IOException {
+    packetBuffer.clear();
+    packetBuffer.putShort(2, (short) blocknbr);
+    packetBuffer.position(4);
+
+    int read = encoder.encode(packetBuffer);
+    this.dataLength = read;
+    packet.setLength(read + 4);
+    return read;
+  }
+
+  /**
+   * Recieves a DatagramPacket containing Data from the DatagramSocket, for a session with a negotiated blocksize
+   * Waits for at most the timeout of the socket
    * @param sendSocket the socket which the data will be received from
+   * @param packetsize the largest packet that can be received (blocksize + 4 header bytes)
+   * @return false if the packet is not a DATA packet, its blocknumber is then -1
    * @throws IOException if an exception was thrown
    */
-  public void receiveData(DatagramSocket sendSocket) throws IOException { 
-    byte[] buf = new byte[TFTPUtils.BUFSIZE];
-    DatagramPacket receivedP = new DatagramPacket(buf, buf.length);
-    
+  public boolean receiveData(DatagramSocket sendSocket, int packetsize) throws IOException { 
+    // The receive buffer is reused for every packet of the session, the data of the previous packet is overwritten
+    if (data == null || data.length < packetsize) {
+      data = new byte[packetsize];
+      packet = new DatagramPacket(data, data.length);
+    }
+    packet.setLength(packetsize);
+
     // Receive the packet
-    sendSocket.setSoTimeout(100);
-    sendSocket.receive(receivedP);
+    sendSocket.receive(packet);
 
     // If there is an error opcode in the received packet, throw a socketException and terminate connection
-    TFTPUtils.checkIfErrorPacket(receivedP.getData());
-    
-    this.data = receivedP.getData();
-    this.dataLength = receivedP.getLength();
-    int recievedBlocknbr = TFTPUtils.getBlocknumInt(receivedP.getData());
-    this.blocknbr = TFTPUtils.createBlocknbrArray(recievedBlocknbr);
-    this.dataLength = receivedP.getLength();
+    TFTPUtils.checkIfErrorPacket(data);
+
+    this.dataLength = packet.getLength();
+    if (dataLength < 4 || TFTPCodec.getOpcode(data) != TFTPUtils.OP_DAT) {
+      // A short packet or another opcode has no blocknumber, the one of the previous packet is not kept
+      this.blocknbr = -1;
+      return false;
+    }
+    this.blocknbr = TFTPCodec.getBlocknbr(data);
+    return true;
   }
 
   /**
-   * Is used to create a Datagrampacket of the DataPacket object
+   * Is used to get the Datagrampacket of the DataPacket object, the same DatagramPacket of the packet buffer
+   * is returned on every call without copying
    */
-  public DatagramPacket getDatagramPacket() throws IOException {
-    ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-    
-    // Write both the arrays to a byteArrayOutputStream and get a new merged byte array of them
-    bOut.write(opcode);
-    bOut.write(blocknbr);
-    bOut.write(data);
-
-    byte[] packetBytes = bOut.toByteArray();
-
-    // Create a DatagramPacket of the new byte array
-    DatagramPacket p = new DatagramPacket(packetBytes, packetBytes.length);
-    return p;
+  public DatagramPacket getDatagramPacket() {
+    return packet;
   }
+
   // Returns the current length of the packet 
   // (the actual bytes within the data, excluding the appended 0-bytes when reading past end of file due to the databuffer being ex: 516)
   public int getPacketLength() {
@@ -71,4 +119,11 @@ public class DataPacket {
   public byte[] getData() {
     return this.data;
   }
+
+  /**
+   * @return the blocknumber of the last received packet
+   */
+  public int getBlocknbr() {
+    return this.blocknbr;
+  }
 }
@@ -1,6 +1,5 @@
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 
 /**
  * Represents a TFTP protocol Error Packet
@@ -25,58 +24,40 @@ public class ErrorPacket {
    * @return a DatagramPacket
    */
   public DatagramPacket getErrorDatagramPacket() {
-    byte[] errorPacketData = null;
-    byte errCode = 0;
-
-    // Add the corresponding error code according to the TFTP protocol
-    switch(this.eState) {
-      case Undefined: errCode = ERR_UNDEFINED; break;
-      case FileNotFound: errCode = ERR_FILENOTFOUND; break;
-      case AccessViolation:  errCode = ERR_NOACCESS; break;
-      case FileExists:  errCode = ERR_FILEEXISTS; break;
-      case IllegalTFTPOperation: errCode = ERR_ILLEGAL_TFTP_OPERATION; break;
-      case AllocationExceeded: errCode = ERR_AllocationExceeded; break;
-    }
     // Create a DatagramPacket with a byte array containing the bytes for the Opcode, Error value and Error message
-    errorPacketData = createErrByteArr(errCode, error);
+    String message = getMessage();
+    byte[] errorPacketData = new byte[TFTPCodec.getErrorLength(message)];
+    TFTPCodec.encodeError(ByteBuffer.wrap(errorPacketData), getErrorCode(), message);
     DatagramPacket errP = new DatagramPacket(errorPacketData, errorPacketData.length);
     
     return errP;
   }
 
   /**
-   * Writes the error opcode and error message into a ByteArrayOutputStream
-   * With the intention of merging them into one consecutive byte array
-   * @param errCodeValue the TFTP protocol value for the error that occured
-   * @param error the thrown error/exception
-   * @return a consecutive byte array in the format of: | ERR_OPCODE | ERR_VALUE | ERR_MSG | 0 |
+   * Writes the ErrorPacket into a reusable buffer and flips it, in the format of: | ERR_OPCODE | ERR_VALUE | ERR_MSG | 0 |
+   * The message is cut off if it does not fit in the buffer.
+   * @param buf the buffer to write the packet into
    */
-  private byte[] createErrByteArr(byte errCodeValue, Throwable error)  {
-    byte[] errorMsgBytes = {0};
-    byte[] errOPCodeHeader = {0, TFTPUtils.OP_ERR};
-    byte[] errorCode = {0, errCodeValue};
-    byte[] returnErrorArr = null;
-    
-    if (error != null) {
-      errorMsgBytes = error.getMessage().getBytes();
-    }
-      
-    try {
-      
-      ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-      bOut.write(errOPCodeHeader);
-      bOut.write(errorCode);
-      bOut.write(errorMsgBytes);
-      bOut.write(0);
-      returnErrorArr = bOut.toByteArray();
-
-    } catch(IOException e) {
+  public void encode(ByteBuffer buf) {
+    TFTPCodec.encodeError(buf, getErrorCode(), getMessage());
+  }
 
-      // If the byteArrayoutputstream could not write the error message, send undefined error
-      byte[] emptyError = {0, 5, 0 ,(byte) ERR_UNDEFINED};
-      return emptyError;
+  /**
+   * @return the TFTP protocol value for the error that occured
+   */
+  public int getErrorCode() {
+    // Add the corresponding error code according to the TFTP protocol
+    switch(this.eState) {
+      case FileNotFound: return ERR_FILENOTFOUND;
+      case AccessViolation: return ERR_NOACCESS;
+      case FileExists: return ERR_FILEEXISTS;
+      case IllegalTFTPOperation: return ERR_ILLEGAL_TFTP_OPERATION;
+      case AllocationExceeded: return ERR_AllocationExceeded;
+      default: return ERR_UNDEFINED;
     }
+  }
 
-    return returnErrorArr;
+  private String getMessage() {
+    return (error != null) ? error.getMessage() : null;
   }
-} 
\ No newline at end of file
+}
\ No newline at end of file
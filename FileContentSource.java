@@ -0,0 +1,137 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
+
+/**
+ * Serves the files of the read directory on the disk. The requests are validated by the server (see
+ * TFTPServer.getFileInputStream), and files that fit in the block cache are read from memory instead of the disk.
+ * The NIO engine opens the files with openNow, which reads a file that is not cached yet from the disk while it is
+ * loaded into the cache on a loader thread, and switches to the cache once it is loaded.
+ */
+public class FileContentSource implements ContentSource {
+  private final TFTPServer server;
+  private final String directory;
+  private final BlockCache blockCache;
+
+  /**
+   * @param server the server that validates the requested files
+   * @param directory the read directory, which the requested names are appended to
+   * @param blockCache the cache of the read files, or null
+   */
+  public FileContentSource(TFTPServer server, String directory, BlockCache blockCache) {
+    this.server = server;
+    this.directory = directory;
+    this.blockCache = blockCache;
+  }
+
+  @Override
+  public Content open(String name, InetSocketAddress client) throws IOException {
+    return open(name, true);
+  }
+
+  /**
+   * Opens a file whose first request loads it into the block cache on a loader thread, the transfer reads the file
+   * from the disk until it is loaded.
+   */
+  @Override
+  public Content openNow(String name, InetSocketAddress client) throws IOException {
+    return open(name, false);
+  }
+
+  private Content open(String name, boolean wait) throws IOException {
+    File file = new File(directory + name);
+    FileInputStream fInput = server.getFileInputStream(file.getPath());
+    try {
+      // Files that fit in the block cache are sent from memory, instead of being read from the disk
+      if (blockCache == null) {
+        return new FileContent(file, fInput, null);
+      } else if (wait) {
+        return new FileContent(file, fInput, blockCache.get(file, fInput.getChannel()));
+      }
+      final FileContent content = new FileContent(file, fInput, null);
+      ByteBuffer cached = blockCache.getNow(file, fInput.getChannel(), new Consumer<ByteBuffer>() {
+        public void accept(ByteBuffer loaded) {
+          content.setCached(loaded);
+        }
+      });
+      if (cached != null) {
+        content.setCached(cached);
+      }
+      return content;
+    } catch (IOException | RuntimeException e) {
+      fInput.close();
+      throw e;
+    }
+  }
+
+  /**
+   * An open file, which is read from the block cache when it is cached, otherwise with positional reads.
+   */
+  private static final class FileContent implements Content {
+    private final File file;
+    private final FileInputStream fInput;
+    private final FileChannel fileChannel;
+    // Is set by a loader thread when the file is loaded into the cache after it was opened
+    private volatile BufferContent cached;
+    private final long size;
+
+    FileContent(File file, FileInputStream fInput, ByteBuffer cached) throws IOException {
+      this.file = file;
+      this.fInput = fInput;
+      this.fileChannel = fInput.getChannel();
+      // The version is always taken from the file, so the cached contents do not need their own
+      this.cached = (cached != null) ? new BufferContent(cached, 0) : null;
+      // The size is taken once, the blocks of a transfer that has started do not change with the file
+      this.size = (cached != null) ? cached.capacity() : fileChannel.size();
+    }
+
+    /**
+     * Switches the reads to the cached contents, which are the same file of the same size.
+     */
+    void setCached(ByteBuffer cached) {
+      if (cached.capacity() == size) {
+        this.cached = new BufferContent(cached, 0);
+      }
+    }
+
+    @Override
+    public long size() {
+      return size;
+    }
+
+    /**
+     * @return the modification time of the file, which is only read when the version is needed (ex. by multicast)
+     */
+    @Override
+    public long version() {
+      return file.lastModified();
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+      BufferContent cached = this.cached;
+      if (cached != null) {
+        return cached.read(dst, position);
+      }
+      // A read may return fewer bytes than requested, keep reading until dst is full or the end of the file is reached
+      int read = 0;
+      while (dst.hasRemaining()) {
+        int n = fileChannel.read(dst, position + read);
+        if (n == -1) {
+          break;
+        }
+        read += n;
+      }
+      return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+      fInput.close();
+    }
+  }
+}
@@ -0,0 +1,235 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of the metadata that the requests are validated with (if a file exists, and if access to it is denied),
+ * so that repeated requests of the same file do not stat it again. Missing files are cached as well, as clients
+ * that boot over the network probe many files that do not exist (ex. a PXE config per MAC address) again and again.
+ *
+ * The directories of the looked up files are watched with a WatchService, and an entry is removed as soon as its
+ * file is created, deleted or changed. Every entry also expires after a TTL, which bounds how long an entry can be
+ * stale on a file system whose changes are not reported (ex. a network file system), or in a directory that could
+ * not be watched. A lookup that raced with a change of the directory is not cached.
+ */
+public class FileMetadataCache implements Runnable {
+  // The largest number of directories that are watched, lookups in other directories only rely on the TTL
+  private static final int MAXWATCHEDDIRS = 4096;
+  // How often a full cache removes its expired entries
+  private static final long SWEEPNANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * The metadata of a file, at the time it was looked up.
+   */
+  public static final class Metadata {
+    private final boolean exists;
+    private final boolean denied;
+    private final long expires;
+
+    private Metadata(boolean exists, boolean denied, long expires) {
+      this.exists = exists;
+      this.denied = denied;
+      this.expires = expires;
+    }
+
+    /**
+     * Reads the metadata of a file from the file system.
+     * @param file the file to look up
+     * @param expires the System.nanoTime() at which the metadata has to be read again
+     */
+    public static Metadata read(File file, long expires) {
+      boolean exists = file.exists();
+      // Access is denied if the file is either unable to be read by the server (or a hidden file), or it is a directory
+      boolean denied = exists && (file.isDirectory() || file.isHidden() || !file.canRead());
+      return new Metadata(exists, denied, expires);
+    }
+
+    public boolean exists() {
+      return exists;
+    }
+
+    public boolean isDenied() {
+      return denied;
+    }
+  }
+
+  private final ConcurrentHashMap<Path, Metadata> entries = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Path, WatchKey> watched = new ConcurrentHashMap<>();
+  private final WatchService watcher;
+  private final int maxEntries;
+  private final long ttlNanos;
+  // Counts the invalidations, a lookup is only cached if no invalidation happened while it read the file system
+  private final AtomicLong generation = new AtomicLong();
+  private volatile long lastSweep = System.nanoTime();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder invalidations = new LongAdder();
+
+  /**
+   * @param maxEntries the largest number of files that are cached
+   * @param ttlMillis how long an entry is used before its file is looked up again
+   */
+  public FileMetadataCache(int maxEntries, long ttlMillis) {
+    this.maxEntries = maxEntries;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    WatchService service = null;
+    try {
+      service = FileSystems.getDefault().newWatchService();
+    } catch (IOException | UnsupportedOperationException e) {
+      AccessLog.warn("The file system can not be watched, the metadata cache only relies on its TTL: %s", e);
+    }
+    this.watcher = service;
+  }
+
+  /**
+   * Starts the thread that removes the entries of the files that are changed.
+   */
+  public void start() {
+    if (watcher == null) {
+      return;
+    }
+    Thread thread = new Thread(this, "tftp-metadata-watch");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Retrieves the metadata of a file, from the cache or else from the file system.
+   * @param file the requested file
+   * @return the metadata of the file
+   */
+  public Metadata lookup(File file) {
+    Path path = file.toPath().toAbsolutePath().normalize();
+    long now = System.nanoTime();
+    Metadata metadata = entries.get(path);
+    if (metadata != null && now - metadata.expires < 0) {
+      hits.increment();
+      return metadata;
+    }
+    misses.increment();
+
+    // The directory is watched before the file is read, so that a change after the read is not missed
+    watch(path.getParent());
+    long before = generation.get();
+    metadata = Metadata.read(file, now + ttlNanos);
+    if (generation.get() == before && hasRoom(now)) {
+      entries.put(path, metadata);
+    }
+    return metadata;
+  }
+
+  /**
+   * Removes the entry of a file that the server has changed itself, ex. the file of an upload that it created.
+   */
+  public void invalidate(File file) {
+    invalidate(file.toPath().toAbsolutePath().normalize(), false);
+  }
+
+  /**
+   * @param subtree if the entries of the files below path are removed as well, as path is (or was) a directory
+   */
+  private void invalidate(Path path, boolean subtree) {
+    generation.incrementAndGet();
+    invalidations.increment();
+    entries.remove(path);
+    if (subtree) {
+      entries.keySet().removeIf(key -> key.startsWith(path));
+    }
+  }
+
+  /**
+   * @return true if another entry may be added, the expired entries of a full cache are removed at most once a second
+   */
+  private boolean hasRoom(long now) {
+    if (entries.size() < maxEntries) {
+      return true;
+    }
+    if (now - lastSweep > SWEEPNANOS) {
+      lastSweep = now;
+      entries.values().removeIf(metadata -> now - metadata.expires >= 0);
+    }
+    return entries.size() < maxEntries;
+  }
+
+  /**
+   * Watches a directory, unless it is already watched. If it does not exist its nearest existing parent is watched
+   * instead, which reports when the missing directory is created.
+   */
+  private void watch(Path directory) {
+    if (watcher == null || directory == null || watched.containsKey(directory) || watched.size() >= MAXWATCHEDDIRS) {
+      return;
+    }
+    try {
+      WatchKey key = directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+      watched.put(directory, key);
+    } catch (IOException e) {
+      watch(directory.getParent());
+    }
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      WatchKey key;
+      try {
+        key = watcher.take();
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+      Path directory = (Path) key.watchable();
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          // Some changes were lost, every entry may be stale
+          generation.incrementAndGet();
+          invalidations.increment();
+          entries.clear();
+          continue;
+        }
+        Path path = directory.resolve((Path) event.context());
+        // A directory that is created or deleted changes every file below it
+        boolean subtree = event.kind() == StandardWatchEventKinds.ENTRY_DELETE
+            || (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path));
+        invalidate(path, subtree);
+      }
+      // The key of a directory that was deleted is no longer valid, the directory is watched again if it is created
+      if (!key.reset()) {
+        watched.remove(directory, key);
+      }
+    }
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * @return the number of changes of files that removed entries, as reported by the WatchService or by the server
+   */
+  public long getInvalidations() {
+    return invalidations.sum();
+  }
+
+  /**
+   * @return the number of cached files, including expired entries that have not been removed yet
+   */
+  public int getEntries() {
+    return entries.size();
+  }
+}
@@ -0,0 +1,128 @@
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the free space in a directory without asking the filesystem for every written block.
+ *
+ * The free space is read from the filesystem at most once per interval, in between the bytes that have been
+ * reserved since the last check are subtracted from it. The filesystem is asked again before the estimate
+ * would run out, so a full disk is still detected before the write that does not fit.
+ *
+ * An upload that announces its size (the tsize option) allocates that space up front, so that an upload that does
+ * not fit is refused before its first block. The allocated bytes that have not been written yet are kept apart from
+ * the estimate, and are subtracted from the free space until the upload has written them or has ended.
+ */
+public class FreeSpaceCheck {
+  private final File directory;
+  private final long intervalMillis;
+  private volatile long freeBytes;
+  private volatile long checkedAt;
+  private final AtomicLong reservedSinceCheck = new AtomicLong();
+  private final AtomicLong allocated = new AtomicLong();
+
+  /**
+   * The space of one upload. The blocks of the upload are reserved through it, they use the allocated space first
+   * and are reserved one by one after that. Is closed when the upload ends, which frees the unused space.
+   */
+  public final class Allocation implements AutoCloseable {
+    private long remaining;
+    private boolean closed = false;
+
+    private Allocation(long bytes) {
+      this.remaining = bytes;
+    }
+
+    /**
+     * Reserves space for bytes of the upload that are about to be written.
+     * @param bytes the number of bytes that will be written
+     * @throws OutOfMemoryError if the bytes do not fit in the allocation and not in the directory either
+     */
+    public synchronized void reserve(long bytes) throws OutOfMemoryError {
+      if (closed) {
+        // A block of an aborted upload that the writer was already writing, its file is closed and removed
+        return;
+      }
+      long covered = Math.min(bytes, remaining);
+      if (covered > 0) {
+        // The bytes move from the allocation to the bytes written since the last check
+        remaining -= covered;
+        reservedSinceCheck.addAndGet(covered);
+        allocated.addAndGet(-covered);
+      }
+      if (bytes > covered) {
+        FreeSpaceCheck.this.reserve(bytes - covered);
+      }
+    }
+
+    /**
+     * Frees the space that the upload has not used.
+     */
+    @Override
+    public synchronized void close() {
+      closed = true;
+      allocated.addAndGet(-remaining);
+      remaining = 0;
+    }
+  }
+
+  /**
+   * @param directory the directory that is written to
+   * @param intervalMillis the longest time between two checks of the filesystem
+   */
+  public FreeSpaceCheck(String directory, long intervalMillis) {
+    this.directory = new File(directory);
+    this.intervalMillis = intervalMillis;
+    refresh(System.currentTimeMillis());
+  }
+
+  /**
+   * Reserves space for bytes that are about to be written.
+   * @param bytes the number of bytes that will be written
+   * @throws OutOfMemoryError if there is not enough space left in the directory
+   */
+  public void reserve(long bytes) throws OutOfMemoryError {
+    long now = System.currentTimeMillis();
+    long reserved = reservedSinceCheck.addAndGet(bytes);
+    // The allocations are left out of the trigger, an allocation of more than half the free space would otherwise
+    // ask the filesystem for every block of its upload
+    boolean refreshed = false;
+    if (now - checkedAt > intervalMillis || reserved > freeBytes / 2) {
+      refresh(now);
+      reserved = reservedSinceCheck.addAndGet(bytes);
+      refreshed = true;
+    }
+    if (!refreshed && freeBytes - reserved - allocated.get() < 0) {
+      // The estimate ran out, the filesystem is asked before the write is refused
+      refresh(now);
+      reserved = reservedSinceCheck.addAndGet(bytes);
+    }
+    if (freeBytes - reserved - allocated.get() < 0) {
+      reservedSinceCheck.addAndGet(-bytes);
+      throw new OutOfMemoryError("There's not enough disk space left for the file");
+    }
+  }
+
+  /**
+   * Allocates the space of an upload before it starts, the filesystem is always asked for its free space.
+   * @param bytes the size of the upload, 0 or less if it is unknown
+   * @return the allocation which the blocks of the upload are reserved through
+   * @throws OutOfMemoryError if the upload does not fit in the directory
+   */
+  public Allocation allocate(long bytes) throws OutOfMemoryError {
+    if (bytes <= 0) {
+      return new Allocation(0);
+    }
+    refresh(System.currentTimeMillis());
+    if (freeBytes - allocated.addAndGet(bytes) < 0) {
+      allocated.addAndGet(-bytes);
+      throw new OutOfMemoryError("The upload of " + bytes + " bytes does not fit on the disk");
+    }
+    return new Allocation(bytes);
+  }
+
+  private void refresh(long now) {
+    reservedSinceCheck.set(0);
+    freeBytes = directory.getUsableSpace();
+    checkedAt = now;
+  }
+}
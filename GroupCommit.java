@@ -0,0 +1,285 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Publishes the staging files of the finished uploads (see StagedUpload) on a dedicated thread, and makes them
+ * durable before their last block is acknowledged: every file is synced to the disk, renamed to its final name,
+ * and then its directory is synced so that the new name survives a crash as well.
+ *
+ * The uploads are committed in groups. The thread takes every upload that finished while the previous group was
+ * being synced at once, syncs all of their files at the same time on a pool of sync threads, and syncs every
+ * directory only once per group. A journaling file system (ex. ext4, XFS) joins the syncs that wait at the same time
+ * into one commit of its journal, with one flush of the disk for the whole group. Syncs that were issued back to
+ * back would each wait for a journal commit and a flush of their own. The more uploads finish at the same time,
+ * the more of them share one flush of the disk.
+ *
+ * The number of uploads in every group and the time that the files of a group took to sync are in the metrics.
+ * A group whose sync time is close to that of a single file has shared its flush.
+ */
+public class GroupCommit implements Runnable {
+  // The largest number of uploads that are committed at once
+  private static final int MAXBATCH = 256;
+  // Number of files of a group that are synced at the same time
+  private static final int SYNCTHREADS = 16;
+
+  /**
+   * An upload that waits to be committed.
+   */
+  private static final class Commit {
+    private final StagedUpload upload;
+    private final Consumer<IOException> done;
+    private final long queuedAt = System.nanoTime();
+    private IOException error;
+
+    Commit(StagedUpload upload, Consumer<IOException> done) {
+      this.upload = upload;
+      this.done = done;
+    }
+  }
+
+  private final LinkedBlockingQueue<Commit> queue = new LinkedBlockingQueue<>();
+  private final List<Commit> batch = new ArrayList<>(MAXBATCH);
+  private final Set<File> directories = new LinkedHashSet<>();
+  private final boolean fsync;
+  private final Consumer<File> published;
+  private boolean directorySyncFailed = false;
+  private final ExecutorService syncers = Executors.newFixedThreadPool(SYNCTHREADS, new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "tftp-sync");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final LongAdder commits = new LongAdder();
+  private final LongAdder groups = new LongAdder();
+  private final LongAdder syncs = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final Histogram commitMicros = new Histogram();
+  private final Histogram groupSizes = new Histogram();
+  private final Histogram syncMicros = new Histogram();
+
+  /**
+   * @param fsync if the files and their directories are synced to the disk, otherwise they are only renamed
+   * @param published is told about every file that got its final name
+   */
+  public GroupCommit(boolean fsync, Consumer<File> published) {
+    this.fsync = fsync;
+    this.published = published;
+  }
+
+  /**
+   * Starts the commit thread.
+   */
+  public void start() {
+    Thread thread = new Thread(this, "tftp-commit");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Queues a finished upload to be committed, without waiting for it. Is used by the NIO engine.
+   *
+   * @param upload the upload, whose blocks have all been written
+   * @param done is run on the commit thread when the upload was committed, with null or the error that failed it
+   */
+  public void commit(StagedUpload upload, Consumer<IOException> done) {
+    queue.add(new Commit(upload, done));
+  }
+
+  /**
+   * Commits a finished upload, and waits until it is committed.
+   *
+   * @param upload the upload, whose blocks have all been written
+   * @throws IOException if the upload could not be committed, ex. FileAlreadyExistsException
+   */
+  public void commit(StagedUpload upload) throws IOException {
+    CompletableFuture<IOException> result = new CompletableFuture<>();
+    commit(upload, result::complete);
+    IOException error;
+    try {
+      error = result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the disk", e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        batch.add(queue.take());
+        queue.drainTo(batch, MAXBATCH - 1);
+        commitBatch();
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        batch.clear();
+        directories.clear();
+      }
+    }
+  }
+
+  private void commitBatch() {
+    groups.increment();
+    groupSizes.record(batch.size());
+    // The contents of every file are on the disk before any of them gets its final name
+    if (fsync) {
+      long start = System.nanoTime();
+      syncFiles();
+      syncMicros.record((System.nanoTime() - start) / 1000);
+    }
+    for (Commit commit : batch) {
+      if (commit.error == null) {
+        try {
+          commit.upload.publish();
+          directories.add(commit.upload.getDirectory());
+        } catch (IOException e) {
+          commit.error = e;
+        }
+      }
+    }
+    // The new names are on the disk before any upload is acknowledged
+    if (fsync) {
+      for (File directory : directories) {
+        syncDirectory(directory);
+      }
+    }
+
+    for (Commit commit : batch) {
+      commits.increment();
+      if (commit.error != null) {
+        failures.increment();
+      } else {
+        published.accept(commit.upload.getTarget());
+      }
+      commitMicros.record((System.nanoTime() - commit.queuedAt) / 1000);
+      try {
+        commit.done.accept(commit.error);
+      } catch (RuntimeException e) {
+        AccessLog.error("Could not complete the commit of %s: %s", commit.upload.getTarget(), e);
+      }
+    }
+  }
+
+  /**
+   * Syncs the files of the group at the same time, and waits until all of them are synced.
+   */
+  private void syncFiles() {
+    if (batch.size() == 1) {
+      sync(batch.get(0));
+      return;
+    }
+    List<Callable<Void>> tasks = new ArrayList<>(batch.size());
+    for (final Commit commit : batch) {
+      tasks.add(new Callable<Void>() {
+        public Void call() {
+          sync(commit);
+          return null;
+        }
+      });
+    }
+    try {
+      syncers.invokeAll(tasks);
+    } catch (InterruptedException e) {
+      // The files that are not known to be synced are not published, and the thread stops after this group
+      for (Commit commit : batch) {
+        commit.error = new InterruptedIOException("The commit was interrupted");
+      }
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void sync(Commit commit) {
+    try {
+      commit.upload.sync();
+      syncs.increment();
+    } catch (IOException e) {
+      commit.error = e;
+    }
+  }
+
+  /**
+   * Syncs the entries of a directory. Some platforms (ex. Windows) can not open a directory, where the rename
+   * itself has to be trusted, which is only warned about once.
+   */
+  private void syncDirectory(File directory) {
+    try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+      channel.force(true);
+      syncs.increment();
+    } catch (IOException e) {
+      if (!directorySyncFailed) {
+        directorySyncFailed = true;
+        AccessLog.warn("Could not sync the directory %s, renamed uploads may be lost in a crash: %s", directory, e);
+      }
+    }
+  }
+
+  /**
+   * @return the number of committed uploads, including the failed ones
+   */
+  public long getCommits() {
+    return commits.sum();
+  }
+
+  /**
+   * @return the number of groups that the uploads were committed in
+   */
+  public long getGroups() {
+    return groups.sum();
+  }
+
+  /**
+   * @return the number of syncs of files and directories
+   */
+  public long getSyncs() {
+    return syncs.sum();
+  }
+
+  public long getFailures() {
+    return failures.sum();
+  }
+
+  /**
+   * @return the number of uploads in every group
+   */
+  public Histogram getGroupSizes() {
+    return groupSizes;
+  }
+
+  /**
+   * @return the time that the files of every group took to sync
+   */
+  public Histogram getSyncMicros() {
+    return syncMicros;
+  }
+
+  /**
+   * @return the time from the end of an upload until it was committed
+   */
+  public Histogram getCommitMicros() {
+    return commitMicros;
+  }
+}
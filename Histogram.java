@@ -0,0 +1,78 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values (ex. microseconds), with buckets of powers of two.
+ *
+ * Bucket 0 counts the value 0, bucket i counts the values from 2^(i-1) to 2^i - 1. The percentiles are therefore
+ * estimates, reported as the upper bound of the bucket that contains them, which is at most twice the real value.
+ * Recording a value only increments LongAdders, so many threads can record into the same histogram without contention.
+ */
+public class Histogram {
+  private static final int BUCKETS = 40;
+
+  private final LongAdder[] buckets = new LongAdder[BUCKETS];
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+
+  public Histogram() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * @param value the value to record, negative values are recorded as 0
+   */
+  public void record(long value) {
+    value = Math.max(0, value);
+    int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    buckets[bucket].increment();
+    count.increment();
+    sum.add(value);
+  }
+
+  /**
+   * @param percentile the percentile between 0 and 1, ex. 0.99
+   * @return the upper bound of the bucket containing the percentile, or 0 if nothing has been recorded
+   */
+  public long getPercentile(double percentile) {
+    long[] counts = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets[i].sum();
+      total += counts[i];
+    }
+    long rank = (long) Math.ceil(percentile * total);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank && seen > 0) {
+        return getUpperBound(i);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return the largest value that is counted in the bucket
+   */
+  public static long getUpperBound(int bucket) {
+    return (bucket == 0) ? 0 : (1L << bucket) - 1;
+  }
+
+  public static int getBucketCount() {
+    return BUCKETS;
+  }
+
+  public long getBucket(int bucket) {
+    return buckets[bucket].sum();
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getSum() {
+    return sum.sum();
+  }
+}
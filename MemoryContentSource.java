@@ -0,0 +1,95 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves files that are held in memory, so that a read request never reaches the disk.
+ * The files are either preloaded from a directory when the server starts, or put into the source by the application
+ * that embeds the server. Files that are put again replace the old contents with a new version, transfers that have
+ * already started keep sending the old contents.
+ */
+public class MemoryContentSource implements ContentSource {
+  private final ConcurrentHashMap<String, BufferContent> files = new ConcurrentHashMap<>();
+  private final AtomicLong versions = new AtomicLong();
+
+  /**
+   * Creates a source with every file of a directory and its subdirectories, hidden files are left out
+   * as the server would deny access to them.
+   *
+   * @param directory the directory to load
+   * @return the loaded source
+   * @throws IOException if a file could not be read
+   */
+  public static MemoryContentSource load(File directory) throws IOException {
+    MemoryContentSource source = new MemoryContentSource();
+    source.loadDirectory(directory, "");
+    return source;
+  }
+
+  private void loadDirectory(File directory, String prefix) throws IOException {
+    File[] children = directory.listFiles();
+    if (children == null) {
+      throw new IOException("Could not list the directory " + directory);
+    }
+    for (File child : children) {
+      if (child.isHidden()) {
+        continue;
+      }
+      if (child.isDirectory()) {
+        loadDirectory(child, prefix + child.getName() + "/");
+      } else if (child.canRead()) {
+        put(prefix + child.getName(), Files.readAllBytes(child.toPath()));
+      }
+    }
+  }
+
+  /**
+   * Adds a file, or replaces its contents.
+   *
+   * @param name the name that clients request the file with, relative to the read directory (ex. "pxelinux.cfg/default")
+   * @param contents the contents of the file, which must not be changed afterwards
+   */
+  public void put(String name, byte[] contents) {
+    files.put(normalize(name), new BufferContent(ByteBuffer.wrap(contents), versions.incrementAndGet()));
+  }
+
+  /**
+   * Removes a file, transfers that have already started still send it.
+   */
+  public void remove(String name) {
+    files.remove(normalize(name));
+  }
+
+  /**
+   * @return the number of files in the source
+   */
+  public int size() {
+    return files.size();
+  }
+
+  @Override
+  public Content open(String name, InetSocketAddress client) throws IOException {
+    BufferContent content = files.get(normalize(name));
+    if (content == null) {
+      throw new FileNotFoundException("File does not exist on server");
+    }
+    // Every transfer reads through its own view of the contents
+    return content.duplicate();
+  }
+
+  /**
+   * Some clients request their files with a leading slash (ex. "/pxelinux.0"), which is ignored like it is on the disk.
+   */
+  static String normalize(String name) {
+    int start = 0;
+    while (start < name.length() && name.charAt(start) == '/') {
+      start++;
+    }
+    return name.substring(start);
+  }
+}
@@ -0,0 +1,45 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics as plain text on http://127.0.0.1:port/metrics, only on the loopback interface
+ * so that the metrics can be scraped locally (ex. by a Prometheus agent) without being reachable from the network.
+ */
+public class MetricsEndpoint {
+  private final HttpServer httpServer;
+
+  /**
+   * @param metrics the metrics to serve
+   * @param port the local port of the endpoint
+   * @throws IOException if the port could not be bound
+   */
+  public MetricsEndpoint(final TFTPMetrics metrics, int port) throws IOException {
+    httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    httpServer.createContext("/metrics", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        byte[] body = metrics.toText().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(body);
+        }
+      }
+    });
+  }
+
+  /**
+   * Starts serving the metrics on a thread of the HttpServer.
+   */
+  public void start() {
+    httpServer.start();
+    AccessLog.info("Serving metrics at http://%s:%d/metrics",
+        httpServer.getAddress().getAddress().getHostAddress(), httpServer.getAddress().getPort());
+  }
+}
@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serves read requests with the multicast option (RFC 2090), so that a file which many clients read at the same time
+ * is sent once to a multicast group instead of once to every client.
+ *
+ * Every file that is being multicast has one MulticastTransfer, which all clients that request the file with the same
+ * blocksize join. Every transfer sends to its own port of the group: the configured port for the first transfer,
+ * the next port for the second, and so on, up to MAXTRANSFERS transfers at the same time.
+ */
+public class MulticastSessions {
+  // Number of files that can be multicast at the same time, each on its own port of the group
+  static final int MAXTRANSFERS = 64;
+
+  private final TFTPServer server;
+  private final TFTPMetrics metrics;
+  private final InetSocketAddress group;
+  private final NetworkInterface networkInterface;
+  private final int ttl;
+  private final Map<String, MulticastTransfer> transfers = new HashMap<>();
+  private final BitSet usedPorts = new BitSet(MAXTRANSFERS);
+  private int threads = 0;
+
+  /**
+   * @param server the server which is used to open the requested files
+   * @param metrics the metrics of the server, where the errors are counted
+   * @param group the multicast address and the port of the first transfer
+   * @param interfaceName the network interface which the packets are sent from, or null for the default interface
+   * @param ttl the time-to-live of the multicast packets
+   * @throws SocketException if the network interface does not exist
+   */
+  public MulticastSessions(TFTPServer server, TFTPMetrics metrics, InetSocketAddress group, String interfaceName, int ttl)
+      throws SocketException {
+    this.server = server;
+    this.metrics = metrics;
+    this.group = group;
+    this.ttl = ttl;
+    this.networkInterface = (interfaceName != null) ? NetworkInterface.getByName(interfaceName) : null;
+    if (interfaceName != null && networkInterface == null) {
+      throw new SocketException("Unknown network interface: " + interfaceName);
+    }
+    AccessLog.info("Multicast reads are sent to %s:%d-%d", group.getAddress().getHostAddress(), group.getPort(),
+        group.getPort() + MAXTRANSFERS - 1);
+  }
+
+  /**
+   * Adds a client to the multicast transfer of the requested file, and starts a new transfer if there is none yet.
+   *
+   * @param clientAddress the socket address of the client
+   * @param requestedFile the requested name, which is opened through the content source of the server
+   * @param options the negotiated options of the client
+   * @param session the metrics of the session
+   * @return false if the file can not be multicast, then the request has to be served as a unicast read
+   */
+  public boolean join(InetSocketAddress clientAddress, String requestedFile, TFTPOptions options,
+      TFTPMetrics.Session session) {
+    // Netascii blocks are encoded in order for every client, so only octet reads are multicast
+    if (options.isNetascii()) {
+      return false;
+    }
+    // Errors of the file are sent by the unicast read, which opens the file again. The file is opened outside the
+    // lock, and without waiting for the block cache, as join runs on the thread that takes in every request
+    ContentSource.Content content;
+    try {
+      content = server.getContentSource().openNow(requestedFile, clientAddress);
+    } catch (IOException | OutOfMemoryError | IllegalArgumentException e) {
+      AccessLog.debug("%s can not be multicast: %s", requestedFile, e.getMessage());
+      return false;
+    }
+    // Clients only share a transfer while the file does not change, a changed file starts a transfer of its own
+    String key = requestedFile + ":" + options.getBlksize() + ":" + content.version();
+    boolean joined;
+    synchronized (this) {
+      MulticastTransfer transfer = transfers.get(key);
+      if (transfer == null) {
+        transfer = start(key, requestedFile, content, options);
+        if (transfer == null) {
+          close(content);
+          return false;
+        }
+        // The new transfer sends the file that was opened for this client
+        content = null;
+      }
+      options.setFileSize(transfer.getFileSize());
+      joined = transfer.add(clientAddress, options, session);
+    }
+    if (content != null) {
+      close(content);
+    }
+    return joined;
+  }
+
+  /**
+   * Starts a transfer on a free port of the group, is called under the lock of join.
+   * @return the transfer, or null if the file can not be multicast
+   */
+  private MulticastTransfer start(String key, String requestedFile, ContentSource.Content content, TFTPOptions options) {
+    int slot = usedPorts.nextClearBit(0);
+    if (slot >= MAXTRANSFERS) {
+      AccessLog.warn("Every multicast port is in use, %s is sent as a unicast read", requestedFile);
+      return null;
+    }
+    MulticastTransfer transfer;
+    try {
+      InetSocketAddress transferGroup = new InetSocketAddress(group.getAddress(), group.getPort() + slot);
+      transfer = new MulticastTransfer(server, this, key, slot, content, options.getBlksize(), transferGroup,
+          networkInterface, ttl, metrics);
+    } catch (IOException | IllegalArgumentException e) {
+      AccessLog.debug("%s can not be multicast: %s", requestedFile, e.getMessage());
+      return null;
+    }
+    usedPorts.set(slot);
+    transfers.put(key, transfer);
+
+    Thread thread = new Thread(transfer, "tftp-multicast-" + (++threads));
+    thread.setDaemon(true);
+    thread.start();
+    AccessLog.debug("Multicast read of %s to %s", requestedFile, transfer.getGroup());
+    return transfer;
+  }
+
+  private void close(ContentSource.Content content) {
+    try {
+      content.close();
+    } catch (IOException e) {
+      AccessLog.warn("Could not close a multicast file: %s", e);
+    }
+  }
+
+  /**
+   * Removes a transfer once it has no clients left, so that a new request for the file starts a new transfer.
+   * The check and the removal are made under the lock of join, so that no client can join a finished transfer.
+   *
+   * @param transfer the transfer which has run out of clients, or has failed
+   * @param force if the transfer is removed even if it still has clients
+   * @return true if the transfer was removed and has to end
+   */
+  synchronized boolean remove(MulticastTransfer transfer, boolean force) {
+    if (!transfer.close(force)) {
+      return false;
+    }
+    transfers.remove(transfer.getKey());
+    usedPorts.clear(transfer.getSlot());
+    return true;
+  }
+}
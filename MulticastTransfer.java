@@ -0,0 +1,374 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends one file to every client that has joined its multicast group (RFC 2090).
+ *
+ * Every client gets an OACK with "multicast" set to "address,port,0", which makes it listen to the group.
+ * One client at a time is made the master client with an OACK that ends in ",1". The master client ACKs the last
+ * block it has received without a gap, and the transfer sends the block after that to the group, in lock-step
+ * with the ACKs of the master. All the other clients receive the same blocks without ACKing them.
+ *
+ * When the master client has the whole file (or stops answering), the next client that joined is made the master,
+ * and its first ACK tells which blocks it is still missing. A client that joined late is therefore sent the blocks
+ * it missed when it becomes the master. A client that receives the whole file before it becomes the master
+ * ACKs the last block, and is removed from the transfer. The transfer ends when it has no clients left.
+ *
+ * The blocknumbers of RFC 2090 can not roll over, so files with more than 65535 blocks are not multicast.
+ */
+public class MulticastTransfer implements Runnable {
+  // Returned by receiveAck when the deadline passed, and when the master client has sent an ERROR
+  private static final int TIMEOUT = -1;
+  private static final int GONE = -2;
+
+  private final MulticastSessions sessions;
+  private final String key;
+  private final int slot;
+  private final ContentSource.Content content;
+  private final int blksize;
+  private final long fileSize;
+  private final int lastBlock;
+  private final InetSocketAddress group;
+  private final MulticastSocket socket;
+  private final TFTPMetrics metrics;
+  private final TFTPServer server;
+
+  // The clients in the order they joined, guarded by the lock of the transfer
+  private final Map<InetSocketAddress, Client> clients = new LinkedHashMap<>();
+  private boolean closed = false;
+
+  private final DataPacket data;
+  // The last block that was sent to the group, a new master client may need earlier blocks again
+  private int sent = 0;
+  private final byte[] receiveBuf = new byte[TFTPUtils.BUFSIZE];
+  private final DatagramPacket received = new DatagramPacket(receiveBuf, receiveBuf.length);
+
+  private static class Client {
+    private final InetSocketAddress address;
+    private final TFTPOptions options;
+    private final TFTPMetrics.Session session;
+
+    Client(InetSocketAddress address, TFTPOptions options, TFTPMetrics.Session session) {
+      this.address = address;
+      this.options = options;
+      this.session = session;
+    }
+  }
+
+  /**
+   * @param server the server whose rate limits the blocks are sent with
+   * @param sessions the sessions which the transfer is removed from when it ends
+   * @param key the file, blocksize and version of the transfer
+   * @param slot the port of the group that is used, counted from the first multicast port
+   * @param content the file to send, which is closed when the transfer ends
+   * @param blksize the blocksize of every client of the transfer
+   * @param group the multicast address and port which the blocks are sent to
+   * @param networkInterface the network interface which the blocks are sent from, or null for the default interface
+   * @param ttl the time-to-live of the blocks
+   * @param metrics the metrics of the server, where the errors are counted
+   * @throws IOException if the file size could not be read or the socket could not be created
+   * @throws IllegalArgumentException if the file has too many blocks to be multicast
+   */
+  public MulticastTransfer(TFTPServer server, MulticastSessions sessions, String key, int slot, ContentSource.Content content, int blksize,
+      InetSocketAddress group, NetworkInterface networkInterface, int ttl, TFTPMetrics metrics) throws IOException {
+    this.server = server;
+    this.sessions = sessions;
+    this.key = key;
+    this.slot = slot;
+    this.content = content;
+    this.blksize = blksize;
+    this.group = group;
+    this.metrics = metrics;
+
+    // The size is taken once, the blocks of a transfer that has started do not change with the file
+    this.fileSize = content.size();
+    long blocks = fileSize / blksize + 1;
+    if (blocks > TFTPUtils.MAXBLOCKSIZE) {
+      throw new IllegalArgumentException("The file has more than " + TFTPUtils.MAXBLOCKSIZE + " blocks");
+    }
+    this.lastBlock = (int) blocks;
+    this.data = new DataPacket(blksize);
+
+    this.socket = new MulticastSocket(0);
+    if (networkInterface != null) {
+      socket.setNetworkInterface(networkInterface);
+    }
+    socket.setTimeToLive(ttl);
+  }
+
+  /**
+   * Adds a client to the transfer and sends it an OACK, which makes it listen to the group.
+   * A repeated request of a client that has already joined only sends the OACK again.
+   *
+   * @return false if the transfer has already ended
+   */
+  public boolean add(InetSocketAddress clientAddress, TFTPOptions options, TFTPMetrics.Session session) {
+    synchronized (this) {
+      if (closed) {
+        return false;
+      }
+      Client client = clients.get(clientAddress);
+      if (client == null) {
+        clients.put(clientAddress, new Client(clientAddress, options, session));
+      } else {
+        // The client is already served by its first session, the repeated one is not a failed transfer
+        AccessLog.debug("Repeated multicast read request from %s", clientAddress);
+        session.endDuplicate();
+      }
+    }
+    AccessLog.debug("Multicast read request from %s using port %d", clientAddress.getAddress().getHostAddress(), clientAddress.getPort());
+    try {
+      socket.send(createOack(clientAddress, options, false));
+    } catch (IOException e) {
+      AccessLog.debug("Could not send the OACK to %s: %s", clientAddress, e);
+    }
+    return true;
+  }
+
+  public void run() {
+    // A multicast transfer is scheduled as one flow, the blocks it sends again for a late client are resends
+    try (TransferScheduler.Flow flow = server.openFlow(null, fileSize)) {
+      Client master;
+      while ((master = nextMaster()) != null) {
+        serve(master, flow);
+      }
+    } catch (IOException | RuntimeException e) {
+      // The transfer is removed before its clients get the error, so that a new request starts a new transfer
+      AccessLog.error("Multicast of %s failed: %s", key, e);
+      sessions.remove(this, true);
+      for (Client client : removeAll()) {
+        sendError(client, e);
+      }
+    } finally {
+      socket.close();
+      try {
+        content.close();
+      } catch (IOException e) {
+        AccessLog.warn("Could not close %s: %s", key, e);
+      }
+    }
+  }
+
+  /**
+   * Sends the file to the group in lock-step with the ACKs of the master client, until it has every block.
+   */
+  private void serve(Client master, TransferScheduler.Flow flow) throws IOException {
+    RttEstimator rtt = new RttEstimator(master.options.getTimeout());
+
+    // The master ACKs the OACK with the last block it has received without a gap
+    int acked = sendAndWait(master, createOack(master.address, master.options, true), 0, -1, flow, rtt);
+    while (acked >= 0 && acked < lastBlock) {
+      int block = acked + 1;
+      int length = data.readBlock(content, (long) (block - 1) * blksize, block);
+      DatagramPacket packet = data.getDatagramPacket();
+      packet.setSocketAddress(group);
+      server.shape(flow, null, length, block <= sent);
+      sent = Math.max(sent, block);
+      master.session.blockSent(length);
+      acked = sendAndWait(master, packet, block, length, flow, rtt);
+    }
+
+    remove(master);
+    master.session.end(acked == lastBlock);
+    if (acked != lastBlock) {
+      AccessLog.debug("Master client %s of %s stopped answering", master.address, key);
+    }
+  }
+
+  /**
+   * Sends a packet and waits until the master client ACKs the block, or a later block. The packet is sent again
+   * after every retransmission timeout.
+   *
+   * @param block the block that has to be acknowledged
+   * @param length the number of bytes in the block, or -1 if the packet is the OACK
+   * @param flow the flow of the transfer in the scheduler, or null if the transfer is not scheduled
+   * @return the acknowledged block, or -1 if the master client is gone
+   */
+  private int sendAndWait(Client master, DatagramPacket packet, int block, int length, TransferScheduler.Flow flow,
+      RttEstimator rtt) throws IOException {
+    socket.send(packet);
+    long sentAt = System.nanoTime();
+    boolean resent = false;
+    int timeouts = TFTPUtils.ALLOWEDTIMEOUTS;
+    long deadline = System.currentTimeMillis() + rtt.getRto();
+    while (true) {
+      int ack = receiveAck(master, deadline);
+      if (ack == GONE) {
+        return -1;
+      }
+      if (ack == TIMEOUT) {
+        if (timeouts-- == 0) {
+          return -1;
+        }
+        if (length >= 0) {
+          server.shape(flow, null, length, true);
+        }
+        socket.send(packet);
+        if (length >= 0) {
+          master.session.blockResent(length);
+        } else {
+          master.session.retransmitted();
+        }
+        resent = true;
+        rtt.backoff();
+        deadline = System.currentTimeMillis() + rtt.getRto();
+        continue;
+      }
+      if (ack >= block) {
+        if (!resent) {
+          long rttNanos = System.nanoTime() - sentAt;
+          rtt.sample(rttNanos / 1000000);
+          master.session.rtt(rttNanos);
+        }
+        return ack;
+      }
+    }
+  }
+
+  /**
+   * Receives the packets of the clients until the master client ACKs a block or the deadline passes.
+   * The other clients only send an ACK of the last block when they have received the whole file, or an ERROR
+   * when they give up, both remove them from the transfer.
+   *
+   * @return the block the master client acknowledged, TIMEOUT or GONE
+   */
+  private int receiveAck(Client master, long deadline) throws IOException {
+    while (true) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return TIMEOUT;
+      }
+      socket.setSoTimeout((int) remaining);
+      received.setLength(receiveBuf.length);
+      try {
+        socket.receive(received);
+      } catch (SocketTimeoutException e) {
+        return TIMEOUT;
+      }
+      if (received.getLength() < 4) {
+        continue;
+      }
+
+      int opcode = TFTPCodec.getOpcode(receiveBuf);
+      InetSocketAddress from = (InetSocketAddress) received.getSocketAddress();
+      if (from.equals(master.address)) {
+        if (opcode == TFTPUtils.OP_ACK) {
+          return TFTPCodec.getBlocknbr(receiveBuf);
+        }
+        if (opcode == TFTPUtils.OP_ERR) {
+          return GONE;
+        }
+        continue;
+      }
+
+      Client client;
+      synchronized (this) {
+        client = clients.get(from);
+      }
+      if (client == null) {
+        continue;
+      }
+      if (opcode == TFTPUtils.OP_ACK && TFTPCodec.getBlocknbr(receiveBuf) == lastBlock) {
+        remove(client);
+        client.session.end(true);
+      } else if (opcode == TFTPUtils.OP_ERR) {
+        remove(client);
+        client.session.end(false);
+      }
+    }
+  }
+
+  /**
+   * @return the client that joined first, or null if the transfer has no clients left and has been removed
+   */
+  private Client nextMaster() {
+    while (true) {
+      synchronized (this) {
+        Iterator<Client> it = clients.values().iterator();
+        if (it.hasNext()) {
+          return it.next();
+        }
+      }
+      // A client may join between the check and the removal, then it becomes the next master
+      if (sessions.remove(this, false)) {
+        return null;
+      }
+    }
+  }
+
+  private synchronized void remove(Client client) {
+    clients.remove(client.address);
+  }
+
+  private synchronized List<Client> removeAll() {
+    List<Client> removed = new ArrayList<>(clients.values());
+    clients.clear();
+    return removed;
+  }
+
+  /**
+   * Ends the transfer, called by MulticastSessions under the lock of join.
+   * @param force if the transfer ends even if it still has clients
+   * @return true if the transfer has ended
+   */
+  synchronized boolean close(boolean force) {
+    if (!force && !clients.isEmpty()) {
+      return false;
+    }
+    closed = true;
+    return true;
+  }
+
+  /**
+   * Creates the OACK of a client, with the options it has negotiated and the multicast option (RFC 2090)
+   * in the format of: address,port,mc where mc is 1 for the master client and 0 for the others.
+   */
+  private DatagramPacket createOack(InetSocketAddress clientAddress, TFTPOptions options, boolean master) throws IOException {
+    Map<String, String> acknowledged = new LinkedHashMap<>(options.getAcknowledged());
+    acknowledged.put("multicast", group.getAddress().getHostAddress() + "," + group.getPort() + "," + (master ? 1 : 0));
+    DatagramPacket oackP = new OackPacket(acknowledged).getDatagramPacket();
+    oackP.setSocketAddress(clientAddress);
+    return oackP;
+  }
+
+  private void sendError(Client client, Throwable error) {
+    TFTPUtils.ErrorState eState = TFTPUtils.getErrorState(error);
+    client.session.error(eState);
+    client.session.end(false);
+    DatagramPacket errP = new ErrorPacket(eState, error).getErrorDatagramPacket();
+    errP.setSocketAddress(client.address);
+    try {
+      socket.send(errP);
+    } catch (IOException e) {
+      AccessLog.debug("Could not send the error to %s: %s", client.address, e);
+    }
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public int getSlot() {
+    return slot;
+  }
+
+  public InetSocketAddress getGroup() {
+    return group;
+  }
+
+  /**
+   * @return the size of the file when the transfer started, which is acknowledged as the tsize of every client
+   */
+  public long getFileSize() {
+    return fileSize;
+  }
+}
@@ -0,0 +1,189 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The netascii transfer mode (RFC 1350, RFC 764), which sends every line end as CR LF and a lone CR as CR NUL.
+ * The files on the server have Unix line ends: a LF is sent as CR LF, and a received CR LF is written as LF.
+ *
+ * Both directions are streaming and work block by block, with only the bytes that cross a block boundary as state:
+ * the second byte of a CR LF or CR NUL that did not fit in the previous block, or a CR at the end of a received block
+ * whose meaning depends on the first byte of the next one. As the length of a netascii block does not match a range
+ * of the file, the blocks of a read are encoded in order, and a retransmission resends the block that was kept.
+ * Octet transfers do not use this class, so they have no per-byte work at all.
+ */
+public class Netascii {
+  private static final byte CR = '\r';
+  private static final byte LF = '\n';
+  private static final byte NUL = 0;
+
+  private Netascii() {}
+
+  /**
+   * Encodes a file for a read request, one block after the other.
+   */
+  public static final class Encoder {
+    private static final int CHUNK = 8192;
+
+    private final ContentSource.Content content;
+    private final ByteBuffer in = ByteBuffer.allocate(CHUNK);
+    private long position = 0;
+    // Encodes the blocks of direct buffers, allocated once
+    private byte[] scratch;
+    // The second byte of an encoded CR or LF that did not fit in the previous block, or -1
+    private int pending = -1;
+
+    /**
+     * @param content the file to encode, which is read sequentially from its start
+     */
+    public Encoder(ContentSource.Content content) {
+      this.content = content;
+      this.in.flip();
+    }
+
+    /**
+     * Encodes the next bytes of the file into dst, until the block is full or the end of the file is reached.
+     * @param dst the array of the block
+     * @param offset the position of the block in dst
+     * @param length the blocksize
+     * @return the number of bytes in the block, which is less than length at the end of the file
+     * @throws IOException if the file could not be read
+     */
+    public int encode(byte[] dst, int offset, int length) throws IOException {
+      int out = offset;
+      int end = offset + length;
+      while (out < end) {
+        if (pending != -1) {
+          dst[out++] = (byte) pending;
+          pending = -1;
+          continue;
+        }
+        if (!in.hasRemaining() && !refill()) {
+          break;
+        }
+        byte b = in.get();
+        if (b == LF) {
+          dst[out++] = CR;
+          pending = LF;
+        } else if (b == CR) {
+          dst[out++] = CR;
+          pending = NUL;
+        } else {
+          dst[out++] = b;
+        }
+      }
+      return out - offset;
+    }
+
+    /**
+     * Encodes the next bytes of the file into the remaining space of a heap or direct buffer.
+     * @return the number of bytes that were put into dst
+     */
+    public int encode(ByteBuffer dst) throws IOException {
+      if (dst.hasArray()) {
+        int n = encode(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+        dst.position(dst.position() + n);
+        return n;
+      }
+      if (scratch == null || scratch.length < dst.remaining()) {
+        scratch = new byte[dst.remaining()];
+      }
+      int n = encode(scratch, 0, dst.remaining());
+      dst.put(scratch, 0, n);
+      return n;
+    }
+
+    /**
+     * Reads the next chunk of the file with a positional read.
+     * @return false at the end of the file
+     */
+    private boolean refill() throws IOException {
+      in.clear();
+      int n = content.read(in, position);
+      in.flip();
+      if (n <= 0) {
+        return false;
+      }
+      position += n;
+      return true;
+    }
+  }
+
+  /**
+   * Decodes the blocks of a write request, in the order they are received.
+   */
+  public static final class Decoder {
+    private final byte[] out;
+    private final ByteBuffer outBuffer;
+    // Holds the blocks of direct buffers while they are decoded
+    private final byte[] scratch;
+    // If the previous block ended with a CR
+    private boolean pendingCR = false;
+
+    /**
+     * @param blksize the blocksize of the session
+     */
+    public Decoder(int blksize) {
+      // A CR of the previous block that turns out to be a lone CR can add one byte to a block
+      this.out = new byte[blksize + 1];
+      this.outBuffer = ByteBuffer.wrap(out);
+      this.scratch = new byte[blksize];
+    }
+
+    /**
+     * Decodes a received block.
+     * @param src the array of the block
+     * @param offset the position of the block in src
+     * @param length the number of bytes in the block
+     * @param last if this is the last block of the transfer, which writes a CR that ends it
+     * @return the decoded bytes, which are valid until the next block is decoded
+     */
+    public ByteBuffer decode(byte[] src, int offset, int length, boolean last) {
+      int o = 0;
+      int end = offset + length;
+      for (int i = offset; i < end; i++) {
+        byte b = src[i];
+        if (pendingCR) {
+          pendingCR = false;
+          if (b == LF) {
+            out[o++] = LF;
+            continue;
+          }
+          // CR NUL is a CR, any other byte after a CR is not netascii and is kept as it is
+          out[o++] = CR;
+          if (b == NUL) {
+            continue;
+          }
+        }
+        if (b == CR) {
+          pendingCR = true;
+        } else {
+          out[o++] = b;
+        }
+      }
+      if (last && pendingCR) {
+        pendingCR = false;
+        out[o++] = CR;
+      }
+      outBuffer.clear();
+      outBuffer.limit(o);
+      return outBuffer;
+    }
+
+    /**
+     * Decodes the remaining bytes of a received block.
+     * @param src the block, which is consumed
+     */
+    public ByteBuffer decode(ByteBuffer src, boolean last) {
+      int length = src.remaining();
+      ByteBuffer decoded;
+      if (src.hasArray()) {
+        decoded = decode(src.array(), src.arrayOffset() + src.position(), length, last);
+      } else {
+        src.duplicate().get(scratch, 0, length);
+        decoded = decode(scratch, 0, length, last);
+      }
+      src.position(src.limit());
+      return decoded;
+    }
+  }
+}
@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An event loop engine which runs many transfers on one or a few threads, instead of one thread per transfer.
+ *
+ * Every event loop has its own Selector and TimerWheel. The transfers are non-blocking state machines (NioTransfer)
+ * that are spread over the event loops, and are driven by the packets received on their DatagramChannel
+ * and by their retransmission deadlines on the timer wheel.
+ */
+public class NioEngine {
+  // Precision of the retransmission deadlines, and the number of slots in the timer wheel of each event loop
+  private static final int TICKMILLIS = 10;
+  private static final int WHEELSIZE = 512;
+
+  private final TFTPServer server;
+  private final EventLoop[] loops;
+  private final AtomicInteger nextLoop = new AtomicInteger();
+
+  /**
+   * @param server the server which is used to open the requested files
+   * @param threads the number of event loops
+   * @throws IOException if a selector could not be opened
+   */
+  public NioEngine(TFTPServer server, int threads) throws IOException {
+    this.server = server;
+    this.loops = new EventLoop[threads];
+    for (int i = 0; i < threads; i++) {
+      loops[i] = new EventLoop();
+    }
+  }
+
+  /**
+   * Starts the threads of the event loops.
+   */
+  public void start() {
+    for (int i = 0; i < loops.length; i++) {
+      Thread thread = new Thread(loops[i], "tftp-nio-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    AccessLog.info("Using %d NIO event loop(s)", loops.length);
+  }
+
+  /**
+   * Hands a new request to one of the event loops, the loops are chosen in turn.
+   * Is called by every listener of the server.
+   *
+   * @param clientAddress the socket address of the client
+   * @param requestedFile the path of the file to read/write
+   * @param opcode RRQ or WRQ
+   * @param options the negotiated options for the session
+   * @param session the metrics of the session
+   */
+  public void submit(InetSocketAddress clientAddress, String requestedFile, int opcode, TFTPOptions options, TFTPMetrics.Session session) {
+    try {
+      NioTransfer transfer = new NioTransfer(server, clientAddress, requestedFile, opcode, options, session);
+      loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(transfer);
+    } catch (IOException e) {
+      AccessLog.error("Could not open the channel of a transfer: %s", e);
+      session.end(false);
+    }
+  }
+
+  /**
+   * A single thread that selects on the channels of its transfers and advances its timer wheel.
+   */
+  private static class EventLoop implements Runnable, Executor {
+    private final Selector selector;
+    private final TimerWheel wheel;
+    private final ConcurrentLinkedQueue<NioTransfer> pending = new ConcurrentLinkedQueue<>();
+    // Work that other threads handed back to the transfers of this loop, ex. a committed upload. The transfers
+    // wrap their tasks and timeouts themselves, so that a failed task closes the transfer it belongs to
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Reused for every received packet, large enough for the largest blocksize
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(TFTPUtils.MAXBLKSIZE + 4);
+    // The packet buffers of the transfers on this event loop, only used by its thread
+    private final BufferPool pool = new BufferPool(TFTPServer.DIRECTBUFFERS);
+
+    EventLoop() throws IOException {
+      this.selector = Selector.open();
+      this.wheel = new TimerWheel(WHEELSIZE, TICKMILLIS, System.currentTimeMillis());
+    }
+
+    /**
+     * Queues a transfer to be started by the event loop, can be called from any thread.
+     */
+    void register(NioTransfer transfer) {
+      pending.add(transfer);
+      selector.wakeup();
+    }
+
+    /**
+     * Queues a task to be run by the event loop, can be called from any thread.
+     */
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          NioTransfer transfer;
+          while ((transfer = pending.poll()) != null) {
+            start(transfer);
+          }
+          Runnable task;
+          while ((task = tasks.poll()) != null) {
+            task.run();
+          }
+
+          long wait = wheel.advance(System.currentTimeMillis());
+          if (!pending.isEmpty() || !tasks.isEmpty()) {
+            continue;
+          }
+          selector.select(wait);
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            receive((NioTransfer) key.attachment());
+          }
+        } catch (IOException | RuntimeException e) {
+          // The event loop has to survive, as every transfer on it would otherwise stall
+          AccessLog.error("Event loop error: %s", e);
+        }
+      }
+    }
+
+    /**
+     * Starts a transfer, a transfer that fails to start is closed so that its session and resources are released.
+     */
+    private void start(NioTransfer transfer) {
+      try {
+        transfer.start(selector, wheel, pool, this);
+      } catch (RuntimeException e) {
+        AccessLog.error("Could not start a transfer: %s", e);
+        transfer.close(false);
+      }
+    }
+
+    /**
+     * Reads every packet that is waiting on the channel of a transfer.
+     */
+    private void receive(NioTransfer transfer) {
+      try {
+        while (!transfer.isClosed()) {
+          receiveBuffer.clear();
+          try {
+            if (transfer.getChannel().read(receiveBuffer) <= 0) {
+              break;
+            }
+          } catch (PortUnreachableException e) {
+            // Reported for an earlier packet, packets from the client may still be waiting behind it
+            continue;
+          }
+          receiveBuffer.flip();
+          transfer.onPacket(receiveBuffer);
+        }
+      } catch (IOException | RuntimeException e) {
+        AccessLog.warn("%s was thrown", e);
+        transfer.close(false);
+      }
+    }
+  }
+}
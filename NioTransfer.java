@@ -0,0 +1,685 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Represents a single RRQ or WRQ transfer which is driven by an event loop of the NioEngine.
+ * Instead of blocking on its socket, the transfer is a state machine that reacts to received packets
+ * and to its retransmission timeout on the TimerWheel of the event loop.
+ *
+ * The read requests are sent with the same sliding window as the blocking server (RFC 7440),
+ * where a windowsize of 1 is the lock-step transfer of RFC 1350.
+ */
+public class NioTransfer {
+  private final TFTPServer server;
+  private final DatagramChannel channel;
+  private final InetSocketAddress clientAddress;
+  private final String requestedFile;
+  private final int opcode;
+  private final TFTPOptions options;
+  private final TFTPMetrics.Session session;
+  private final TimerWheel.Timeout timeout = new TimerWheel.Timeout(guarded(this::onTimeout));
+  // Sends the rest of the window when the rate limits allow it
+  private final TimerWheel.Timeout resume = new TimerWheel.Timeout(guarded(this::onResume));
+  private final RttEstimator rtt;
+  private TimerWheel wheel;
+  private BufferPool pool;
+  private Executor loop;
+  private SelectionKey key;
+  private int timeouts = TFTPUtils.ALLOWEDTIMEOUTS;
+  private boolean closed = false;
+
+  // The OACK (or the last ACK of a write request) which is resent when the client does not answer
+  private ByteBuffer control;
+  private boolean waitingForOackAck = false;
+  private long controlSentAt;
+  private boolean controlResent;
+
+  // State of a read request, the blocks are counted from 1 without wrapping and their blocknumber rolls over after 65535
+  private ContentSource.Content content;
+  // Encodes the blocks of a netascii read, which are read in order
+  private Netascii.Encoder encoder;
+  private ByteBuffer[] window;
+  // When each block of the window was sent, and if it was sent more than once (those are not measured, Karn's rule)
+  private long[] sentAt;
+  private boolean[] resent;
+  private long sent = 0;
+  private long acked = 0;
+  private long next = 1;
+  private long read = 0;
+  private long lastBlock = -1;
+  // The block that the window was last rolled back to
+  private long rolledBack = 0;
+  // The buckets of the client, or null if the packets are not rate limited
+  private TrafficShaper.Client shapedClient;
+  // If the window waits for the rate limits, and if the next block has already been taken from the buckets
+  private boolean throttled = false;
+  private boolean reserved = false;
+  // The flow of the transfer in the scheduler, or null, and if the next block has already been granted by it
+  private TransferScheduler.Flow flow;
+  private boolean granted = false;
+  // When the scheduler was asked for the next block, to end a transfer that it keeps passing over
+  private long requestedAt;
+
+  // State of a write request
+  private StagedUpload staged;
+  private FileChannel fileChannel;
+  private WriteBehindWriter.Upload upload;
+  private FreeSpaceCheck.Allocation allocation;
+  private Netascii.Decoder decoder;
+  private long received = 0;
+  // A block that waits for a free buffer of the write-behind upload before it is acknowledged, or null
+  private ByteBuffer stalled;
+  private boolean stalledLast;
+  // If the last block waits for the upload to be flushed and committed, before it is acknowledged
+  private boolean committing = false;
+  private boolean dallying = false;
+
+  public NioTransfer(TFTPServer server, InetSocketAddress clientAddress, String requestedFile, int opcode, TFTPOptions options,
+      TFTPMetrics.Session session) throws IOException {
+    this.server = server;
+    this.clientAddress = clientAddress;
+    this.requestedFile = requestedFile;
+    this.opcode = opcode;
+    this.options = options;
+    this.session = session;
+    this.rtt = new RttEstimator(options.getTimeout());
+
+    // Every transfer uses its own port, as in the blocking server
+    this.channel = DatagramChannel.open();
+    this.channel.bind(new InetSocketAddress(0));
+    this.channel.connect(clientAddress);
+    this.channel.configureBlocking(false);
+  }
+
+  /**
+   * Registers the transfer on the selector of an event loop and sends the first packet.
+   * Is called from the thread of the event loop.
+   *
+   * @param selector the selector of the event loop
+   * @param wheel the timer wheel of the event loop
+   * @param pool the packet buffers of the event loop, which the buffers of the transfer are taken from
+   * @param loop runs the work that other threads hand back to the transfer on the event loop
+   */
+  public void start(Selector selector, TimerWheel wheel, BufferPool pool, Executor loop) {
+    this.wheel = wheel;
+    this.pool = pool;
+    this.loop = loop;
+    try {
+      key = channel.register(selector, SelectionKey.OP_READ, this);
+    } catch (IOException e) {
+      AccessLog.error("Could not register a transfer: %s", e);
+      close(false);
+      return;
+    }
+
+    AccessLog.debug("%s request for %s from %s using port %d",
+        (opcode == TFTPUtils.OP_RRQ) ? "Read" : "Write",
+        requestedFile, clientAddress.getAddress().getHostAddress(), clientAddress.getPort());
+
+    try {
+      options.checkMode();
+      if (opcode == TFTPUtils.OP_RRQ) {
+        // The event loop does not wait for a file to be loaded into the block cache
+        content = server.getContentSource().openNow(requestedFile, clientAddress);
+        options.setFileSize(content.size());
+        flow = server.openFlow(clientAddress.getAddress(), content.size());
+        shapedClient = server.shapedClient(clientAddress.getAddress());
+        window = new ByteBuffer[options.getWindowsize()];
+        sentAt = new long[options.getWindowsize()];
+        resent = new boolean[options.getWindowsize()];
+        if (options.isNetascii()) {
+          encoder = new Netascii.Encoder(content);
+        }
+      } else if (opcode == TFTPUtils.OP_WRQ) {
+        // The space of an upload with the tsize option is allocated before the file is created
+        allocation = server.getFreeSpaceCheck().allocate(options.getTransferSize());
+        staged = server.getStagedUpload(requestedFile);
+        fileChannel = staged.getChannel();
+        if (options.isNetascii()) {
+          decoder = new Netascii.Decoder(options.getBlksize());
+        }
+        if (server.getWriteBehind() != null) {
+          // A decoded netascii block can be one byte longer than the blocksize, with the CR of the previous block
+          upload = server.getWriteBehind().open(fileChannel, options.getBlksize() + (decoder != null ? 1 : 0), allocation);
+        }
+      } else {
+        throw new IllegalArgumentException("Invalid Opcode");
+      }
+
+      // When options were accepted, the OACK replaces the ACK for block 0 of a write request,
+      // and for a read request the client acknowledges the OACK with an ACK for block 0 (RFC 2347)
+      if (options.hasAcknowledged()) {
+        DatagramPacket oackP = new OackPacket(options.getAcknowledged()).getDatagramPacket();
+        control = pool.acquire(oackP.getLength());
+        control.put(oackP.getData(), 0, oackP.getLength());
+        control.flip();
+        waitingForOackAck = (opcode == TFTPUtils.OP_RRQ);
+        sendControl(false);
+      } else if (opcode == TFTPUtils.OP_WRQ) {
+        control = pool.acquire(4);
+        sendAck(0);
+      }
+
+      if (opcode == TFTPUtils.OP_RRQ && !waitingForOackAck) {
+        sendWindow();
+      }
+      restartTimeout();
+
+    } catch (IOException | OutOfMemoryError | IllegalArgumentException e) {
+      AccessLog.debug("%s was thrown", e);
+      sendError(e);
+      close(false);
+    }
+  }
+
+  /**
+   * Handles a packet that was received from the client.
+   * @param packet the received packet, positioned at the opcode
+   */
+  public void onPacket(ByteBuffer packet) {
+    if (closed || packet.remaining() < 4) {
+      return;
+    }
+    int receivedOpcode = TFTPCodec.getOpcode(packet);
+    int blocknbr = TFTPCodec.getBlocknbr(packet);
+
+    try {
+      if (receivedOpcode == TFTPUtils.OP_ERR) {
+        AccessLog.debug("Client is dead, exiting connection");
+        close(false);
+      } else if (opcode == TFTPUtils.OP_RRQ && receivedOpcode == TFTPUtils.OP_ACK) {
+        onAck(blocknbr);
+      } else if (opcode == TFTPUtils.OP_WRQ && receivedOpcode == TFTPUtils.OP_DAT) {
+        onData(blocknbr, packet);
+      }
+    } catch (IOException | OutOfMemoryError | IllegalArgumentException e) {
+      AccessLog.debug("%s was thrown", e);
+      sendError(e);
+      close(false);
+    }
+  }
+
+  /**
+   * Handles an ACK of a read request. ACKs are cumulative, an ACK for an earlier block than the last sent one
+   * means that the client is missing the blocks after it, which rolls back the window.
+   */
+  private void onAck(int blocknbr) throws IOException {
+    if (waitingForOackAck) {
+      if (blocknbr == 0) {
+        measureControl();
+        waitingForOackAck = false;
+        timeouts = TFTPUtils.ALLOWEDTIMEOUTS;
+        sendWindow();
+        restartTimeout();
+      }
+      return;
+    }
+
+    long ackedBlock = TFTPUtils.toBlock(blocknbr, acked, options.getRollover());
+    if (ackedBlock >= next) {
+      return;
+    }
+    if (ackedBlock > acked) {
+      int slot = (int) ((ackedBlock - 1) % window.length);
+      if (!resent[slot]) {
+        long rttNanos = System.nanoTime() - sentAt[slot];
+        rtt.sample(rttNanos / 1000000);
+        session.rtt(rttNanos);
+      }
+      acked = ackedBlock;
+      timeouts = TFTPUtils.ALLOWEDTIMEOUTS;
+      if (acked == lastBlock) {
+        close(true);
+        return;
+      }
+      restartTimeout();
+    }
+    // The client acknowledges every block that arrives out of order after a gap, so the window is only
+    // rolled back once for the same gap. A duplicate ACK is ignored for lock-step transfers to avoid
+    // the Sorcerer's Apprentice Syndrome
+    if (window.length > 1 && acked < next - 1 && acked + 1 != rolledBack) {
+      next = acked + 1;
+      rolledBack = next;
+    }
+    sendWindow();
+  }
+
+  /**
+   * Sends every block of the window that has not been sent yet, reading new blocks from the file when needed.
+   */
+  private void sendWindow() throws IOException {
+    if (throttled) {
+      return;
+    }
+    int windowsize = window.length;
+    int packetsize = options.getBlksize() + 4;
+    while (next <= acked + windowsize && (lastBlock == -1 || next <= lastBlock)) {
+      int slot = (int) ((next - 1) % windowsize);
+      if (next > read) {
+        if (window[slot] == null) {
+          window[slot] = pool.acquire(packetsize);
+        }
+        ByteBuffer block = window[slot];
+        TFTPCodec.encodeDataHeader(block, packetsize, TFTPUtils.toBlocknbr(next, options.getRollover()));
+        if (encoder != null) {
+          encoder.encode(block);
+        } else {
+          // A positional read, so that a rolled back window reads its blocks again from their position
+          content.read(block, (next - 1) * options.getBlksize());
+        }
+        block.flip();
+        read = next;
+        if (block.limit() < packetsize) {
+          lastBlock = next;
+        }
+      }
+      // The event loop can not wait for the scheduler, the window continues when the block is granted instead
+      if (flow != null && !granted) {
+        throttled = true;
+        requestedAt = System.currentTimeMillis();
+        flow.request(window[slot].limit() - 4, next <= sent, () -> loop.execute(guarded(this::onGranted)));
+        return;
+      }
+      // The event loop can not wait for the rate limits, the window continues from the timer wheel instead
+      if (shapedClient != null && !reserved) {
+        long delay = server.getShaper().reserve(shapedClient, window[slot].limit() - 4);
+        if (delay > 0) {
+          throttled = true;
+          reserved = true;
+          wheel.schedule(resume, System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(delay));
+          return;
+        }
+      }
+      granted = false;
+      reserved = false;
+      if (next > sent) {
+        sentAt[slot] = System.nanoTime();
+        resent[slot] = false;
+        sent = next;
+        session.blockSent(window[slot].limit() - 4);
+      } else {
+        resent[slot] = true;
+        session.blockResent(window[slot].limit() - 4);
+      }
+      send(window[slot]);
+      next++;
+    }
+  }
+
+  /**
+   * Handles a DATA packet of a write request. The expected block is written and acknowledged,
+   * a duplicate of the previous block is acknowledged again as the client did not receive the ACK.
+   * A packet with more data than the negotiated blocksize is dropped.
+   */
+  private void onData(int blocknbr, ByteBuffer packet) throws IOException {
+    if (committing || stalled != null) {
+      // The block is acknowledged once it has a buffer, and the last block once its upload is committed
+      return;
+    }
+    if (packet.remaining() - 4 > options.getBlksize()) {
+      // The buffers of the upload and of the netascii decoder only hold a block of the negotiated blocksize
+      AccessLog.debug("Dropped a DATA packet of %d bytes from %s, the blocksize is %d", packet.remaining() - 4,
+          clientAddress, options.getBlksize());
+      return;
+    }
+    long expected = received + 1;
+    if (blocknbr == TFTPUtils.toBlocknbr(expected, options.getRollover()) && !dallying) {
+      int dataLength = packet.remaining() - 4;
+      packet.position(packet.position() + 4);
+
+      boolean lastBlock = dataLength < options.getBlksize();
+      measureControl();
+      session.blockReceived(dataLength);
+      ByteBuffer data = (decoder != null) ? decoder.decode(packet, lastBlock) : packet;
+      if (upload != null) {
+        if (!upload.offer(data)) {
+          // Every buffer of the upload waits for the disk. The event loop does not wait for the writer, the block
+          // is kept without an ACK instead, which holds the client back until the writer has a free buffer
+          stalled = pool.acquire(options.getBlksize() + 4);
+          stalled.put(data);
+          stalled.flip();
+          stalledLast = lastBlock;
+          upload.whenFree(() -> loop.execute(guarded(this::onFree)));
+          return;
+        }
+      } else {
+        allocation.reserve(data.remaining());
+        while (data.hasRemaining()) {
+          fileChannel.write(data);
+        }
+      }
+      onWritten(lastBlock);
+    } else if (blocknbr == TFTPUtils.toBlocknbr(received, options.getRollover())) {
+      sendControl(true);
+    }
+  }
+
+  /**
+   * Acknowledges the block that was written or queued for the writer, or commits the upload after the last block.
+   */
+  private void onWritten(boolean lastBlock) throws IOException {
+    received++;
+    timeouts = TFTPUtils.ALLOWEDTIMEOUTS;
+    int blocknbr = TFTPUtils.toBlocknbr(received, options.getRollover());
+    if (lastBlock) {
+      // The upload is synced and renamed on the commit thread, so that the event loop never waits for a flush
+      // of the disk, and the last block is acknowledged when the commit is handed back to the event loop
+      committing = true;
+      if (upload != null) {
+        upload.flush(() -> loop.execute(guarded(() -> onFlushed(blocknbr))));
+      } else {
+        commit(blocknbr);
+      }
+    } else {
+      sendAck(blocknbr);
+    }
+    restartTimeout();
+  }
+
+  private void commit(int blocknbr) {
+    server.getGroupCommit().commit(staged, error -> loop.execute(guarded(() -> onCommitted(blocknbr, error))));
+  }
+
+  /**
+   * Is run by the event loop when the writer has a free buffer for the stalled block.
+   */
+  private void onFree() {
+    if (closed) {
+      return;
+    }
+    try {
+      if (!upload.offer(stalled)) {
+        upload.whenFree(() -> loop.execute(guarded(this::onFree)));
+        return;
+      }
+      pool.release(stalled);
+      stalled = null;
+      onWritten(stalledLast);
+    } catch (IOException | OutOfMemoryError e) {
+      AccessLog.debug("%s was thrown", e);
+      sendError(e);
+      close(false);
+    }
+  }
+
+  /**
+   * Is run by the event loop when the writer has written every block of the upload, before it is committed.
+   * @param blocknbr the blocknumber of the last block
+   */
+  private void onFlushed(int blocknbr) {
+    if (closed) {
+      committing = false;
+      return;
+    }
+    try {
+      // Does not wait, as every block has been written, but throws the error of a block that failed
+      upload.flush();
+      commit(blocknbr);
+    } catch (IOException | OutOfMemoryError e) {
+      committing = false;
+      AccessLog.debug("%s was thrown", e);
+      sendError(e);
+      close(false);
+    }
+  }
+
+  /**
+   * Is run by the event loop when the upload has been committed, acknowledges the last block or sends the error.
+   * @param blocknbr the blocknumber of the last block
+   * @param error the error that failed the commit, or null
+   */
+  private void onCommitted(int blocknbr, IOException error) {
+    committing = false;
+    if (closed) {
+      return;
+    }
+    try {
+      if (error != null) {
+        throw error;
+      }
+      staged.close();
+      sendAck(blocknbr);
+      // Wait one timeout before closing, so that the final ACK can be resent if the client did not receive it
+      dallying = true;
+      restartTimeout();
+    } catch (IOException e) {
+      AccessLog.debug("%s was thrown", e);
+      sendError(e);
+      close(false);
+    }
+  }
+
+  /**
+   * Is run by the event loop when the scheduler has granted the next block of the window.
+   */
+  private void onGranted() {
+    granted = true;
+    onResume();
+  }
+
+  /**
+   * Is run by the timer wheel when the rate limits allow the next block of the window to be sent.
+   */
+  private void onResume() {
+    if (closed) {
+      return;
+    }
+    throttled = false;
+    try {
+      sendWindow();
+    } catch (IOException e) {
+      AccessLog.debug("%s was thrown", e);
+      close(false);
+    }
+  }
+
+  /**
+   * Is run by the timer wheel when the client has not answered within the timeout.
+   * Resends the last packet(s), or ends the transfer when the retransmissions have been used up.
+   */
+  private void onTimeout() {
+    if (closed) {
+      return;
+    }
+    if (dallying) {
+      close(true);
+      return;
+    }
+    if (throttled && flow != null && !granted && System.currentTimeMillis() - requestedAt > TransferScheduler.MAXWAITMILLIS) {
+      AccessLog.debug("The scheduler did not grant the next block in time, ending transfer");
+      sendError(new SocketTimeoutException("The scheduler did not grant the next block in time, ending transfer"));
+      close(false);
+      return;
+    }
+    if (throttled || committing || stalled != null) {
+      // The client can not answer blocks that are still waiting for the rate limits, or ACKs that wait for the disk
+      restartTimeout();
+      return;
+    }
+    if (timeouts-- == 0) {
+      AccessLog.debug("Client could not Acknowledge the packet after retranmissions, ending transfer");
+      close(false);
+      return;
+    }
+
+    try {
+      rtt.backoff();
+      if (waitingForOackAck || opcode == TFTPUtils.OP_WRQ) {
+        AccessLog.debug("Timeout, resending packet: #%d", received);
+        sendControl(true);
+      } else {
+        AccessLog.debug("Timeout, resending from packet: #%d", acked + 1);
+        next = acked + 1;
+        rolledBack = next;
+        sendWindow();
+      }
+      restartTimeout();
+    } catch (IOException e) {
+      AccessLog.debug("%s was thrown", e);
+      close(false);
+    }
+  }
+
+  /**
+   * Wraps a task that the event loop or its timer wheel runs for this transfer, so that a RuntimeException
+   * ends the transfer and releases its socket, file, session and buffers, instead of only being logged by the loop.
+   */
+  private Runnable guarded(final Runnable task) {
+    return () -> {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        AccessLog.error("The transfer of %s failed: %s", requestedFile, e);
+        close(false);
+      }
+    };
+  }
+
+  /**
+   * Schedules the timeout after the current retransmission timeout of the session. After the last block
+   * of a write request, the transfer waits at least TIMEOUTLENGTH for a retransmission from the client.
+   */
+  private void restartTimeout() {
+    long delay = dallying ? Math.max(TFTPUtils.TIMEOUTLENGTH, rtt.getRto()) : rtt.getRto();
+    wheel.schedule(timeout, System.currentTimeMillis() + delay);
+  }
+
+  private void sendAck(int blocknbr) throws IOException {
+    TFTPCodec.encodeAck(control, blocknbr);
+    sendControl(false);
+  }
+
+  /**
+   * Sends the OACK or the last ACK, and remembers when it was sent to measure the round trip.
+   * @param retransmission if the packet has been sent before
+   */
+  private void sendControl(boolean retransmission) throws IOException {
+    if (retransmission) {
+      controlResent = true;
+      session.retransmitted();
+    } else {
+      controlSentAt = System.nanoTime();
+      controlResent = false;
+    }
+    send(control);
+  }
+
+  /**
+   * Measures the round trip of the OACK or the last ACK, when the client has answered it.
+   */
+  private void measureControl() {
+    if (control != null && !controlResent) {
+      long rttNanos = System.nanoTime() - controlSentAt;
+      rtt.sample(rttNanos / 1000000);
+      session.rtt(rttNanos);
+    }
+  }
+
+  /**
+   * Sends a packet to the client. If the socket buffer is full, or an earlier packet was reported as unreachable,
+   * the packet is dropped, which is handled in the same way as a lost packet by the retransmission timeout.
+   */
+  private void send(ByteBuffer packet) throws IOException {
+    packet.rewind();
+    try {
+      channel.write(packet);
+    } catch (PortUnreachableException e) {
+      // The error belongs to an earlier packet, the client is given until the timeout to answer
+    }
+  }
+
+  private void sendError(Throwable error) {
+    TFTPUtils.ErrorState eState = TFTPUtils.getErrorState(error);
+    session.error(eState);
+    ByteBuffer errP = pool.acquire(TFTPUtils.BUFSIZE);
+    new ErrorPacket(eState, error).encode(errP);
+    try {
+      channel.write(errP);
+    } catch (IOException e) {
+      AccessLog.debug("Could not send the error to %s: %s", clientAddress, e);
+    } finally {
+      pool.release(errP);
+    }
+  }
+
+  /**
+   * Ends the transfer and releases the socket and the file.
+   * @param successful if the transfer concluded successfully
+   */
+  public void close(boolean successful) {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (wheel != null) {
+      wheel.cancel(timeout);
+      wheel.cancel(resume);
+    }
+    if (key != null) {
+      key.cancel();
+    }
+    // Every resource is closed on its own, so that one that fails to close does not leave the others open
+    try {
+      channel.close();
+    } catch (IOException e) {
+      AccessLog.warn("Could not close the socket of the transfer of %s: %s", requestedFile, e);
+    }
+    if (flow != null) {
+      flow.close();
+    }
+    if (content != null) {
+      try {
+        content.close();
+      } catch (IOException e) {
+        AccessLog.warn("Could not close the file of the transfer of %s: %s", requestedFile, e);
+      }
+    }
+    if (upload != null) {
+      // The queued blocks are dropped before the file and the allocation are closed
+      upload.abort();
+    }
+    if (staged != null) {
+      try {
+        staged.close();
+      } catch (IOException e) {
+        AccessLog.warn("Could not close the upload of %s: %s", requestedFile, e);
+      }
+    }
+    if (allocation != null) {
+      allocation.close();
+    }
+
+    // The buffers are handed to the next transfers of the event loop
+    if (pool != null) {
+      pool.release(control);
+      control = null;
+      pool.release(stalled);
+      stalled = null;
+      if (window != null) {
+        for (int i = 0; i < window.length; i++) {
+          pool.release(window[i]);
+          window[i] = null;
+        }
+      }
+    }
+    session.end(successful);
+  }
+
+  public DatagramChannel getChannel() {
+    return channel;
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+}
@@ -0,0 +1,37 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Represents an Option Acknowledgment (OACK) packet for the TFTP protocol (RFC 2347)
+ */
+public class OackPacket {
+  private byte[] opcode = {0, TFTPUtils.OP_OACK};
+  private Map<String, String> options;
+
+  public OackPacket(Map<String, String> options) {
+    this.options = options;
+  }
+
+  /**
+   * Is used to create a Datagrampacket of the OackPacket object
+   * The packet is in the format of: | OPCODE | OPT1 | 0 | VALUE1 | 0 | ... | OPTN | 0 | VALUEN | 0 |
+   */
+  public DatagramPacket getDatagramPacket() throws IOException {
+    ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+
+    bOut.write(opcode);
+    for (Map.Entry<String, String> option : options.entrySet()) {
+      bOut.write(option.getKey().getBytes(StandardCharsets.US_ASCII));
+      bOut.write(0);
+      bOut.write(option.getValue().getBytes(StandardCharsets.US_ASCII));
+      bOut.write(0);
+    }
+
+    byte[] packetBytes = bOut.toByteArray();
+    DatagramPacket p = new DatagramPacket(packetBytes, packetBytes.length);
+    return p;
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Estimates the round-trip time of a session and calculates the retransmission timeout (RTO) from it,
+ * in the same way as TCP does (RFC 6298).
+ *
+ * The smoothed round-trip time (SRTT) and its variation (RTTVAR) are updated with every measured round trip,
+ * and the RTO is SRTT + 4 * RTTVAR. Every timeout doubles the RTO (exponential backoff) until a new round trip
+ * is measured. Round trips of retransmitted packets shall not be measured, as it is unknown which of the
+ * transmissions was acknowledged (Karn's rule).
+ *
+ * When the client has negotiated the timeout option (RFC 2349), that timeout is used without any adaptation.
+ */
+public class RttEstimator {
+  private final boolean fixed;
+  private long srtt = -1;
+  private long rttvar;
+  private long rto;
+  private long backedOffRto;
+
+  /**
+   * @param timeoutSeconds the timeout negotiated with the timeout option, or 0 to estimate the timeout
+   */
+  public RttEstimator(int timeoutSeconds) {
+    this.fixed = timeoutSeconds > 0;
+    this.rto = fixed ? timeoutSeconds * 1000L : TFTPUtils.INITIALRTO;
+    this.backedOffRto = rto;
+  }
+
+  /**
+   * Updates the estimate with a measured round trip, of a packet that was only sent once.
+   * @param rttMillis the time between sending the packet and receiving its acknowledgement
+   */
+  public void sample(long rttMillis) {
+    if (fixed) {
+      return;
+    }
+    if (srtt < 0) {
+      srtt = rttMillis;
+      rttvar = rttMillis / 2;
+    } else {
+      // RTTVAR = 3/4 * RTTVAR + 1/4 * |SRTT - R|, SRTT = 7/8 * SRTT + 1/8 * R
+      rttvar = (3 * rttvar + Math.abs(srtt - rttMillis)) / 4;
+      srtt = (7 * srtt + rttMillis) / 8;
+    }
+    rto = Math.max(TFTPUtils.MINRTO, Math.min(TFTPUtils.MAXRTO, srtt + 4 * rttvar));
+    backedOffRto = rto;
+  }
+
+  /**
+   * Doubles the timeout after a retransmission, up to the largest allowed timeout.
+   */
+  public void backoff() {
+    if (fixed) {
+      return;
+    }
+    backedOffRto = Math.min(TFTPUtils.MAXRTO, backedOffRto * 2);
+  }
+
+  /**
+   * @return the current retransmission timeout in milliseconds
+   */
+  public long getRto() {
+    return backedOffRto;
+  }
+
+  /**
+   * @return the smoothed round-trip time in milliseconds, or -1 if no round trip has been measured
+   */
+  public long getSrtt() {
+    return srtt;
+  }
+}
@@ -0,0 +1,101 @@
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The transfers that are running, by the address and port of their client.
+ *
+ * A client that does not receive the first answer of the server in time sends its request again, from the same port.
+ * The listener checks every request against this table, and drops a request for the same file that the client
+ * already has a transfer of, so that the file is not read and sent twice in parallel. The running transfer
+ * retransmits its first packet on its own timeout, which answers the repeated request as well.
+ *
+ * The table is a ConcurrentHashMap, which the listener reads without locking. Ended sessions are removed by
+ * a sweeper thread once a second, which also evicts the sessions that have been idle for longer than any transfer
+ * can wait for its client, so that a transfer that never ended can not block the requests of its client forever.
+ */
+public class SessionTable {
+  private static final long SWEEPMILLIS = 1000;
+  // A transfer gives up after its retransmissions, which all wait at most MAXRTO
+  private static final long IDLEMILLIS = (TFTPUtils.ALLOWEDTIMEOUTS + 1) * (long) TFTPUtils.MAXRTO;
+
+  private final Map<InetSocketAddress, Entry> sessions = new ConcurrentHashMap<>();
+  private final TFTPMetrics metrics;
+
+  private static final class Entry {
+    private final int opcode;
+    private final String file;
+    private final TFTPMetrics.Session session;
+
+    Entry(int opcode, String file, TFTPMetrics.Session session) {
+      this.opcode = opcode;
+      this.file = file;
+      this.session = session;
+    }
+  }
+
+  /**
+   * @param metrics the metrics where the evicted sessions are counted
+   */
+  public SessionTable(TFTPMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Starts the sweeper thread.
+   */
+  public void start() {
+    ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "tftp-session-sweeper");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    sweeper.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        sweep();
+      }
+    }, SWEEPMILLIS, SWEEPMILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @param clientAddress the address and port the request was sent from
+   * @param opcode RRQ or WRQ
+   * @param file the requested file
+   * @return true if the client already has a running transfer of the same request
+   */
+  public boolean isDuplicate(InetSocketAddress clientAddress, int opcode, String file) {
+    Entry entry = sessions.get(clientAddress);
+    return entry != null && !entry.session.isEnded() && entry.opcode == opcode && entry.file.equals(file);
+  }
+
+  /**
+   * Adds the transfer of a request, replacing any earlier transfer of the client.
+   * @param session the metrics of the transfer, which tell when it has ended and when it was last active
+   */
+  public void add(InetSocketAddress clientAddress, int opcode, String file, TFTPMetrics.Session session) {
+    sessions.put(clientAddress, new Entry(opcode, file, session));
+  }
+
+  /**
+   * Removes the ended sessions, and evicts the sessions that have been idle for too long.
+   */
+  void sweep() {
+    long idleSince = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(IDLEMILLIS);
+    // An entry is only removed if the client has not made a new request in the meantime
+    for (Map.Entry<InetSocketAddress, Entry> entry : sessions.entrySet()) {
+      TFTPMetrics.Session session = entry.getValue().session;
+      if (session.isEnded()) {
+        sessions.remove(entry.getKey(), entry.getValue());
+      } else if (session.getLastActivityNanos() - idleSince < 0 && sessions.remove(entry.getKey(), entry.getValue())) {
+        AccessLog.warn("Evicting the idle session of %s", entry.getKey());
+        metrics.evictedSession();
+      }
+    }
+  }
+}
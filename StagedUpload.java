@@ -0,0 +1,171 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The file of an upload (WRQ), which is written to a hidden staging file next to its final name, and is only
+ * renamed to the final name once the whole file has been received (and synced to the disk, see GroupCommit).
+ * A failed transfer deletes its staging file, so that a partial upload never appears under the requested name.
+ *
+ * The staging files are hidden, so a read request for one is denied, and the staging files that a crash left
+ * behind are removed when the server starts.
+ */
+public class StagedUpload implements Closeable {
+  // The end of the names of the staging files, which only the staging files of the server end with
+  static final String SUFFIX = ".tftp-part";
+
+  private final File target;
+  private final File staging;
+  private final FileOutputStream fStream;
+  private boolean published = false;
+  private boolean closed = false;
+
+  /**
+   * Creates the staging file of an upload, in the directory of its final name.
+   *
+   * @param target the final name of the file
+   * @throws FileNotFoundException if the directory of the file does not exist
+   * @throws IOException if the staging file could not be created
+   */
+  public StagedUpload(File target) throws IOException {
+    this.target = target;
+    File directory = target.getAbsoluteFile().getParentFile();
+    if (directory == null || !directory.isDirectory()) {
+      throw new FileNotFoundException(target.getPath() + " (No such file or directory)");
+    }
+    // The staging file is in the same directory, so that it is renamed on the same file system
+    File file;
+    do {
+      file = new File(directory, "." + target.getName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + SUFFIX);
+    } while (!file.createNewFile());
+    this.staging = file;
+    try {
+      this.fStream = new FileOutputStream(staging);
+    } catch (IOException e) {
+      staging.delete();
+      throw e;
+    }
+  }
+
+  /**
+   * @return the stream that the received blocks are written to
+   */
+  public FileOutputStream getOutputStream() {
+    return fStream;
+  }
+
+  public FileChannel getChannel() {
+    return fStream.getChannel();
+  }
+
+  /**
+   * @return the final name of the file
+   */
+  public File getTarget() {
+    return target;
+  }
+
+  /**
+   * @return the directory that the file is published in
+   */
+  public File getDirectory() {
+    return staging.getParentFile();
+  }
+
+  /**
+   * Writes the contents of the staging file through to the disk.
+   * @throws IOException if the file could not be synced, ex. as it was closed by a failed transfer
+   */
+  void sync() throws IOException {
+    fStream.getChannel().force(true);
+  }
+
+  /**
+   * Gives the staging file its final name. The final name is linked to the staging file, which fails if a file
+   * of that name was created in the meantime (ex. by another upload of the same name), instead of replacing it.
+   * File systems without hard links fall back to an atomic rename, after checking that the name is still free.
+   *
+   * @throws FileAlreadyExistsException if a file of the final name exists
+   * @throws IOException if the file could not be renamed, ex. as it was closed by a failed transfer
+   */
+  synchronized void publish() throws IOException {
+    if (closed) {
+      throw new IOException("The upload was closed before it was published");
+    }
+    boolean linked;
+    try {
+      Files.createLink(target.toPath(), staging.toPath());
+      linked = true;
+    } catch (FileAlreadyExistsException e) {
+      throw new FileAlreadyExistsException("File already exists");
+    } catch (UnsupportedOperationException | FileSystemException e) {
+      linked = false;
+    }
+    if (!linked) {
+      if (target.exists()) {
+        throw new FileAlreadyExistsException("File already exists");
+      }
+      Files.move(staging.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+    published = true;
+    if (linked) {
+      // The file is published, a staging name that could not be removed is removed when the server starts again
+      try {
+        Files.delete(staging.toPath());
+      } catch (IOException e) {
+        AccessLog.warn("Could not remove the staging file %s: %s", staging, e);
+      }
+    }
+  }
+
+  /**
+   * Closes the file, and deletes the staging file if it was not published.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      fStream.close();
+    } finally {
+      if (!published) {
+        Files.deleteIfExists(staging.toPath());
+      }
+    }
+  }
+
+  /**
+   * Removes the staging files that were left behind by a crash, in a directory and its subdirectories.
+   *
+   * @param directory the write directory
+   * @return the number of removed files
+   */
+  public static int removeAbandoned(File directory) {
+    File[] children = directory.listFiles();
+    if (children == null) {
+      return 0;
+    }
+    int removed = 0;
+    for (File child : children) {
+      if (Files.isSymbolicLink(child.toPath())) {
+        continue;
+      }
+      if (child.isDirectory()) {
+        removed += removeAbandoned(child);
+      } else if (child.getName().startsWith(".") && child.getName().endsWith(SUFFIX) && child.delete()) {
+        removed++;
+      }
+    }
+    return removed;
+  }
+}
@@ -0,0 +1,124 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes the headers of TFTP packets directly in byte arrays and ByteBuffers that are reused
+ * by the sessions, without allocating any temporary arrays or wrappers.
+ *
+ * The decode methods read the header at the start of a packet (index 0 of an array, or the position of a buffer)
+ * with absolute reads, so the position of the buffer is left unchanged.
+ * The encode methods write a packet from the start of a buffer and leave it ready to be sent.
+ */
+public class TFTPCodec {
+
+  private TFTPCodec() {}
+
+  /**
+   * @return the opcode of the packet
+   */
+  public static int getOpcode(byte[] packet) {
+    return getUnsignedShort(packet, 0);
+  }
+
+  /**
+   * @return the blocknumber of a DATA or ACK packet, from 0 to 65535
+   */
+  public static int getBlocknbr(byte[] packet) {
+    return getUnsignedShort(packet, 2);
+  }
+
+  /**
+   * @return the opcode of the packet that starts at the position of the buffer
+   */
+  public static int getOpcode(ByteBuffer packet) {
+    return packet.getShort(packet.position()) & 0xFFFF;
+  }
+
+  /**
+   * @return the blocknumber of the DATA or ACK packet that starts at the position of the buffer, from 0 to 65535
+   */
+  public static int getBlocknbr(ByteBuffer packet) {
+    return packet.getShort(packet.position() + 2) & 0xFFFF;
+  }
+
+  /**
+   * Reads two bytes in network byte order as an unsigned value.
+   */
+  public static int getUnsignedShort(byte[] array, int offset) {
+    return ((array[offset] & 0xFF) << 8) | (array[offset + 1] & 0xFF);
+  }
+
+  /**
+   * Writes the lowest 16 bits of a value as two bytes in network byte order.
+   */
+  public static void putShort(byte[] array, int offset, int value) {
+    array[offset] = (byte) (value >>> 8);
+    array[offset + 1] = (byte) value;
+  }
+
+  /**
+   * Writes the header of a DATA packet at the start of the buffer, and leaves the buffer positioned
+   * after the header so that the block can be put or read into it.
+   *
+   * @param buf the packet buffer
+   * @param packetsize the size of a full packet (blocksize + 4 header bytes), which becomes the limit of the buffer
+   * @param blocknbr the blocknumber, only the lowest 16 bits are sent
+   */
+  public static void encodeDataHeader(ByteBuffer buf, int packetsize, int blocknbr) {
+    buf.clear();
+    buf.limit(packetsize);
+    buf.putShort((short) TFTPUtils.OP_DAT);
+    buf.putShort((short) blocknbr);
+  }
+
+  /**
+   * Writes an ACK packet into the buffer and flips it.
+   * @param buf the packet buffer, at least 4 bytes
+   * @param blocknbr the blocknumber, only the lowest 16 bits are sent
+   */
+  public static void encodeAck(ByteBuffer buf, int blocknbr) {
+    buf.clear();
+    buf.putShort((short) TFTPUtils.OP_ACK);
+    buf.putShort((short) blocknbr);
+    buf.flip();
+  }
+
+  /**
+   * Writes an ACK packet into the start of the array.
+   * @param packet the packet array, at least 4 bytes
+   * @param blocknbr the blocknumber, only the lowest 16 bits are sent
+   */
+  public static void encodeAck(byte[] packet, int blocknbr) {
+    putShort(packet, 0, TFTPUtils.OP_ACK);
+    putShort(packet, 2, blocknbr);
+  }
+
+  /**
+   * Writes an ERROR packet into the buffer and flips it. The message is written as ASCII
+   * and is cut off when it does not fit in the buffer.
+   *
+   * @param buf the packet buffer, at least 5 bytes
+   * @param errorCode the TFTP error code
+   * @param message the error message, or null for an empty message
+   */
+  public static void encodeError(ByteBuffer buf, int errorCode, String message) {
+    buf.clear();
+    buf.putShort((short) TFTPUtils.OP_ERR);
+    buf.putShort((short) errorCode);
+    if (message != null) {
+      int length = Math.min(message.length(), buf.remaining() - 1);
+      for (int i = 0; i < length; i++) {
+        char c = message.charAt(i);
+        buf.put(c < 128 ? (byte) c : (byte) '?');
+      }
+    }
+    buf.put((byte) 0);
+    buf.flip();
+  }
+
+  /**
+   * @return the size of the ERROR packet of a message
+   */
+  public static int getErrorLength(String message) {
+    return 5 + (message == null ? 0 : message.length());
+  }
+}
@@ -0,0 +1,824 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A load generator that runs many concurrent TFTP clients against a running TFTPServer, for example to reproduce
+ * a boot storm of thousands of nodes that all read the same image at once.
+ *
+ * Every client runs on its own thread and does its transfers one after the other, each from a new socket (TID) as
+ * a real client does. The packets are encoded and decoded with the same DataPacket, AckPacket and TFTPUtils as the
+ * server, and the retransmission timeout is estimated with the same RttEstimator.
+ *
+ * At the end it reports the goodput (payload bytes of the completed transfers per second), the p50/p99/p999
+ * transfer latencies, the retransmissions and the failed transfers.
+ */
+public class TFTPLoadGenerator {
+  // Number of concurrent clients, and the number of transfers each client does, --clients and --transfers
+  public static int CLIENTS = 100;
+  public static int TRANSFERS = 1;
+  // Percentage of the transfers that are reads, the others are writes, --read-percent
+  public static int READPERCENT = 100;
+  // File sizes in bytes, the transfers go through them in turn, --sizes
+  public static int[] SIZES = {1048576};
+  // Options that are requested (0 does not request the option), --blksize, --windowsize and --timeout
+  public static int BLKSIZE = 0;
+  public static int WINDOWSIZE = 0;
+  public static int TIMEOUT = 0;
+  // When the clients start: all at once ("burst"), evenly spread ("linear") or in groups ("step"),
+  // over --ramp-time milliseconds and in --ramp-steps groups
+  public static String RAMP = "burst";
+  public static int RAMPTIME = 0;
+  public static int RAMPSTEPS = 10;
+  // File that every read requests, otherwise a read of n bytes requests "load-n.bin", --read-file
+  public static String READFILE = null;
+  // Read directory of the server, where the "load-n.bin" files are created if they are missing, --read-dir
+  public static String READDIR = null;
+  // Prefix of the names of the written files, which are unique for every run, --write-prefix
+  public static String WRITEPREFIX = "load";
+  // If the reads request the multicast option (RFC 2090), and the interface which the group is joined on,
+  // --multicast and --multicast-interface
+  public static boolean MULTICAST = false;
+  public static String MULTICASTINTERFACE = null;
+
+  private final SocketAddress server;
+  private final String runId = Long.toString(System.currentTimeMillis(), 36);
+  // Contents of the written files by size, shared by all clients, every transfer reads them through its own duplicate
+  private final Map<Integer, ByteBuffer> contents = new ConcurrentHashMap<>();
+
+  private final LongAdder completed = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder reads = new LongAdder();
+  private final LongAdder writes = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+  private final LongAdder retransmits = new LongAdder();
+  private final LongAdder duplicates = new LongAdder();
+  private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+  // Durations of the completed transfers in nanoseconds, sorted for the percentiles at the end
+  private final long[] latencies;
+  private final AtomicInteger latencyCount = new AtomicInteger();
+  private long elapsedNanos;
+
+  public TFTPLoadGenerator(SocketAddress server) {
+    this.server = server;
+    this.latencies = new long[CLIENTS * TRANSFERS];
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length < 2) {
+      printUsage();
+      System.exit(1);
+    }
+    SocketAddress server = null;
+    try {
+      server = new InetSocketAddress(InetAddress.getByName(args[0]), Integer.parseInt(args[1]));
+    } catch (IllegalArgumentException e) {
+      System.err.println("Invalid port: " + args[1]);
+      printUsage();
+      System.exit(1);
+    }
+    parseFlags(args);
+    if (READDIR != null && READFILE == null) {
+      createReadFiles(new File(READDIR));
+    }
+
+    TFTPLoadGenerator generator = new TFTPLoadGenerator(server);
+    generator.run();
+    generator.printReport(System.out);
+  }
+
+  private static void printUsage() {
+    System.err.printf("usage: java %s: [host] [port] [--clients=n] [--transfers=n] [--read-percent=n] [--sizes=bytes,...]\n"
+        + "       [--blksize=n] [--windowsize=n] [--timeout=s] [--ramp=burst|linear|step] [--ramp-time=ms] [--ramp-steps=n]\n"
+        + "       [--read-file=name] [--read-dir=path] [--write-prefix=name] [--multicast=true|false] [--multicast-interface=name]\n", TFTPLoadGenerator.class.getCanonicalName());
+  }
+
+  /**
+   * Parses the optional flags which are given after the host and port, in the format of: --name=value
+   * Exits if a flag is unknown or has an invalid value.
+   * @param args the command line arguments
+   */
+  private static void parseFlags(String[] args) {
+    for (int i = 2; i < args.length; i++) {
+      String[] flag = args[i].split("=", 2);
+      try {
+        if (flag.length != 2) {
+          throw new IllegalArgumentException("Missing value for flag: " + args[i]);
+        }
+        switch (flag[0]) {
+          case "--clients":
+            CLIENTS = parseIntFlag(flag, 1, 100000);
+            break;
+          case "--transfers":
+            TRANSFERS = parseIntFlag(flag, 1, 100000);
+            break;
+          case "--read-percent":
+            READPERCENT = parseIntFlag(flag, 0, 100);
+            break;
+          case "--sizes":
+            String[] sizes = flag[1].split(",");
+            SIZES = new int[sizes.length];
+            for (int j = 0; j < sizes.length; j++) {
+              SIZES[j] = parseIntFlag(new String[] {flag[0], sizes[j].trim()}, 0, Integer.MAX_VALUE);
+            }
+            break;
+          case "--blksize":
+            BLKSIZE = parseIntFlag(flag, 0, TFTPUtils.MAXBLKSIZE);
+            break;
+          case "--windowsize":
+            WINDOWSIZE = parseIntFlag(flag, 0, TFTPUtils.MAXWINDOWSIZE);
+            break;
+          case "--timeout":
+            TIMEOUT = parseIntFlag(flag, 0, 255);
+            break;
+          case "--ramp":
+            if (!flag[1].equals("burst") && !flag[1].equals("linear") && !flag[1].equals("step")) {
+              throw new IllegalArgumentException("--ramp has to be either burst, linear or step");
+            }
+            RAMP = flag[1];
+            break;
+          case "--ramp-time":
+            RAMPTIME = parseIntFlag(flag, 0, Integer.MAX_VALUE);
+            break;
+          case "--ramp-steps":
+            RAMPSTEPS = parseIntFlag(flag, 1, 100000);
+            break;
+          case "--read-file":
+            READFILE = flag[1];
+            break;
+          case "--read-dir":
+            READDIR = flag[1];
+            break;
+          case "--write-prefix":
+            WRITEPREFIX = flag[1];
+            break;
+          case "--multicast":
+            MULTICAST = Boolean.parseBoolean(flag[1]);
+            break;
+          case "--multicast-interface":
+            MULTICASTINTERFACE = flag[1];
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown flag: " + flag[0]);
+        }
+      } catch (IllegalArgumentException e) {
+        System.err.println(e.getMessage());
+        printUsage();
+        System.exit(1);
+      }
+    }
+    if ((long) CLIENTS * TRANSFERS > 10000000) {
+      System.err.println("--clients times --transfers has to be at most 10000000");
+      System.exit(1);
+    }
+    if (BLKSIZE != 0 && BLKSIZE < TFTPUtils.MINBLKSIZE) {
+      System.err.println("--blksize has to be 0 or between " + TFTPUtils.MINBLKSIZE + " and " + TFTPUtils.MAXBLKSIZE);
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Parses the integer value of a flag.
+   * @throws IllegalArgumentException if the value is not a number or is out of range
+   */
+  private static int parseIntFlag(String[] flag, int min, int max) {
+    int value = Integer.parseInt(flag[1]);
+    if (value < min || value > max) {
+      throw new IllegalArgumentException(flag[0] + " has to be between " + min + " and " + max);
+    }
+    return value;
+  }
+
+  /**
+   * Creates the "load-n.bin" file of every size in the read directory of the server, unless it already has that size.
+   */
+  private static void createReadFiles(File directory) throws IOException {
+    for (int size : SIZES) {
+      File file = new File(directory, readFileName(size));
+      if (file.length() == size) {
+        continue;
+      }
+      ByteBuffer content = createContent(size);
+      try (OutputStream out = new FileOutputStream(file)) {
+        out.write(content.array(), 0, size);
+      }
+      System.out.println("Created " + file.getPath());
+    }
+  }
+
+  private static String readFileName(int size) {
+    return "load-" + size + ".bin";
+  }
+
+  /**
+   * @return size bytes of pseudo-random contents, the same for every run
+   */
+  private static ByteBuffer createContent(int size) {
+    byte[] content = new byte[size];
+    new Random(size).nextBytes(content);
+    return ByteBuffer.wrap(content);
+  }
+
+  /**
+   * Starts every client after the delay of the ramp profile, and waits until all of them have done their transfers.
+   */
+  public void run() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(CLIENTS);
+    final long start = System.nanoTime();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < CLIENTS; i++) {
+      final int client = i;
+      Thread thread = new Thread(new Runnable() {
+        public void run() {
+          try {
+            long delay = start + TimeUnit.MILLISECONDS.toNanos(getStartDelay(client)) - System.nanoTime();
+            if (delay > 0) {
+              TimeUnit.NANOSECONDS.sleep(delay);
+            }
+            runClient(client);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            done.countDown();
+          }
+        }
+      }, "load-client-" + client);
+      threads.add(thread);
+      thread.start();
+    }
+
+    // Show the progress of long runs
+    while (!done.await(5, TimeUnit.SECONDS)) {
+      System.out.printf("%.1f s: %d of %d transfers done, %d failed%n", (System.nanoTime() - start) / 1e9,
+          completed.sum() + failed.sum(), (long) CLIENTS * TRANSFERS, failed.sum());
+    }
+    elapsedNanos = System.nanoTime() - start;
+    for (Thread thread : threads) {
+      thread.join();
+    }
+  }
+
+  /**
+   * @return the milliseconds after the start of the run when the client starts, as given by the ramp profile
+   */
+  private long getStartDelay(int client) {
+    switch (RAMP) {
+      case "linear":
+        return (long) RAMPTIME * client / CLIENTS;
+      case "step":
+        long step = (long) client * RAMPSTEPS / CLIENTS;
+        return RAMPTIME * step / RAMPSTEPS;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * Does the transfers of one client, and records their results.
+   */
+  private void runClient(int client) {
+    Random random = new Random(client);
+    for (int n = 0; n < TRANSFERS; n++) {
+      int size = SIZES[(client * TRANSFERS + n) % SIZES.length];
+      boolean read = random.nextInt(100) < READPERCENT;
+      long started = System.nanoTime();
+      try {
+        long transferred;
+        if (read) {
+          reads.increment();
+          String file = (READFILE != null) ? READFILE : readFileName(size);
+          transferred = MULTICAST ? readMulticast(file) : read(file);
+        } else {
+          writes.increment();
+          transferred = write(WRITEPREFIX + "-" + runId + "-" + client + "-" + n + ".bin", getContent(size));
+        }
+        latencies[latencyCount.getAndIncrement()] = System.nanoTime() - started;
+        bytes.add(transferred);
+        completed.increment();
+      } catch (IOException e) {
+        failed.increment();
+        String reason = (e instanceof SocketTimeoutException) ? "Timed out" : e.getMessage();
+        failures.computeIfAbsent(reason, k -> new LongAdder()).increment();
+      }
+    }
+  }
+
+  private ByteBuffer getContent(int size) {
+    return contents.computeIfAbsent(size, TFTPLoadGenerator::createContent).duplicate();
+  }
+
+  /**
+   * Reads a file from the server, with the requested options. The payload is counted and discarded.
+   * @return the number of bytes that were read
+   * @throws IOException if the server answered with an error, or too many timeouts happened in a row
+   */
+  private long read(String file) throws IOException {
+    try (DatagramSocket socket = new DatagramSocket()) {
+      Map<String, String> options = requestedOptions(true);
+      DatagramPacket request = encodeRequest(TFTPUtils.OP_RRQ, file, options);
+      request.setSocketAddress(server);
+      if (WINDOWSIZE > 1) {
+        int windowBytes = WINDOWSIZE * (Math.max(BLKSIZE, TFTPUtils.DEFAULTBLKSIZE) + 4);
+        if (socket.getReceiveBufferSize() < windowBytes) {
+          socket.setReceiveBufferSize(windowBytes);
+        }
+      }
+      RttEstimator rtt = new RttEstimator(TIMEOUT);
+      AckPacket ack = new AckPacket(0);
+      DataPacket data = new DataPacket();
+
+      // The first answer is an OACK, the first DATA block if no options were accepted, or an ERROR
+      byte[] first = new byte[Math.max(BLKSIZE, TFTPUtils.DEFAULTBLKSIZE) + 4];
+      DatagramPacket answer = new DatagramPacket(first, first.length);
+      receiveFirst(socket, request, answer, rtt);
+      socket.connect(answer.getSocketAddress());
+
+      int blksize = TFTPUtils.DEFAULTBLKSIZE;
+      int windowsize = 1;
+      long received = 0;
+      int expected = 1;
+      int inWindow = 0;
+      if (TFTPUtils.getOpcode(first) == TFTPUtils.OP_OACK) {
+        Map<String, String> accepted = decodeOptions(first, answer.getLength());
+        blksize = getInt(accepted, "blksize", blksize);
+        windowsize = getInt(accepted, "windowsize", windowsize);
+        socket.send(ack.getDatagramPacket());
+      } else {
+        int length = answer.getLength() - 4;
+        received += length;
+        expected = 2;
+        ack.setBlocknbr(1);
+        socket.send(ack.getDatagramPacket());
+        if (length < blksize) {
+          return received;
+        }
+      }
+
+      // Every window is acknowledged with its last block, a block that arrives out of order is answered once
+      // with an ACK of the last block received in order, so that the server continues from there (RFC 7440)
+      int timeouts = 0;
+      int gapAcked = -1;
+      long ackSentAt = System.nanoTime();
+      boolean measure = true;
+      long deadline = ackSentAt + TimeUnit.MILLISECONDS.toNanos(rtt.getRto());
+      while (true) {
+        try {
+          setDeadline(socket, deadline);
+          data.receiveData(socket, blksize + 4);
+        } catch (SocketTimeoutException e) {
+          if (++timeouts > TFTPUtils.ALLOWEDTIMEOUTS) {
+            throw e;
+          }
+          socket.send(ack.getDatagramPacket());
+          retransmits.increment();
+          rtt.backoff();
+          measure = false;
+          deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(rtt.getRto());
+          continue;
+        } catch (SocketException e) {
+          throw new IOException("Error from server", e);
+        }
+
+        if (TFTPUtils.getOpcode(data.getData()) != TFTPUtils.OP_DAT) {
+          // The OACK again, as the ACK of it was lost
+          duplicates.increment();
+          continue;
+        }
+        timeouts = 0;
+        int length = data.getDataLength() - 4;
+        if (data.getBlocknbr() != expected) {
+          duplicates.increment();
+          if (gapAcked != expected) {
+            gapAcked = expected;
+            ack.setBlocknbr((expected - 1) & 0xFFFF);
+            socket.send(ack.getDatagramPacket());
+            inWindow = 0;
+          }
+          continue;
+        }
+
+        long now = System.nanoTime();
+        if (measure && inWindow == 0) {
+          rtt.sample(TimeUnit.NANOSECONDS.toMillis(now - ackSentAt));
+        }
+        received += length;
+        ack.setBlocknbr(expected);
+        expected = (expected + 1) & 0xFFFF;
+        inWindow++;
+        if (length < blksize) {
+          socket.send(ack.getDatagramPacket());
+          return received;
+        }
+        if (inWindow >= windowsize) {
+          socket.send(ack.getDatagramPacket());
+          inWindow = 0;
+          ackSentAt = now;
+          measure = true;
+        }
+        deadline = now + TimeUnit.MILLISECONDS.toNanos(rtt.getRto());
+      }
+    }
+  }
+
+  /**
+   * Reads a file from the server with the multicast option (RFC 2090). The blocks are received from the multicast
+   * group in any order, and are only ACKed while the server has made this client the master client. Once every block
+   * has been received, the last block is ACKed so that the server removes this client from the transfer.
+   *
+   * @return the number of bytes that were read
+   * @throws IOException if the server answered with an error or did not accept the multicast option,
+   *                     or nothing was received for too long
+   */
+  private long readMulticast(String file) throws IOException {
+    Map<String, String> options = requestedOptions(true);
+    options.remove("windowsize");
+    options.put("multicast", "");
+    DatagramPacket request = encodeRequest(TFTPUtils.OP_RRQ, file, options);
+
+    try (Selector selector = Selector.open();
+         DatagramChannel control = DatagramChannel.open(StandardProtocolFamily.INET);
+         DatagramChannel multicast = DatagramChannel.open(StandardProtocolFamily.INET)) {
+      control.bind(null);
+      control.configureBlocking(false);
+      control.register(selector, SelectionKey.OP_READ);
+      control.send(ByteBuffer.wrap(request.getData(), 0, request.getLength()), server);
+
+      RttEstimator rtt = new RttEstimator(TIMEOUT);
+      ByteBuffer buf = ByteBuffer.allocate(Math.max(BLKSIZE, TFTPUtils.DEFAULTBLKSIZE) + 4);
+      ByteBuffer ack = ByteBuffer.allocate(4);
+      SocketAddress tid = null;
+      boolean master = false;
+      int blksize = TFTPUtils.DEFAULTBLKSIZE;
+      BitSet blocks = new BitSet();
+      int firstMissing = 1;
+      int lastBlock = -1;
+      long received = 0;
+      int timeouts = 0;
+      long idleSince = System.nanoTime();
+
+      while (true) {
+        // Non-master clients wait for the blocks of other masters, and only give up when nothing arrives for long
+        if (selector.select(rtt.getRto()) == 0) {
+          long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - idleSince);
+          if (tid == null || master) {
+            if (++timeouts > TFTPUtils.ALLOWEDTIMEOUTS) {
+              throw new SocketTimeoutException();
+            }
+            if (tid == null) {
+              control.send(ByteBuffer.wrap(request.getData(), 0, request.getLength()), server);
+            } else {
+              sendAck(control, ack, firstMissing - 1, tid);
+            }
+            retransmits.increment();
+            rtt.backoff();
+          } else if (idle > (TFTPUtils.ALLOWEDTIMEOUTS + 1) * (long) TFTPUtils.MAXRTO) {
+            throw new SocketTimeoutException();
+          }
+          continue;
+        }
+        selector.selectedKeys().clear();
+        timeouts = 0;
+        idleSince = System.nanoTime();
+
+        // The OACKs and ERRORs of the server are sent to the control channel
+        buf.clear();
+        SocketAddress from = control.receive(buf);
+        if (from != null && (tid == null || tid.equals(from))) {
+          buf.flip();
+          int opcode = TFTPCodec.getOpcode(buf);
+          if (opcode == TFTPUtils.OP_ERR) {
+            throw new IOException("Error " + TFTPCodec.getUnsignedShort(buf.array(), 2) + ": "
+                + new String(buf.array(), 4, Math.max(0, buf.limit() - 5), StandardCharsets.US_ASCII));
+          }
+          if (opcode != TFTPUtils.OP_OACK) {
+            throw new IOException("Multicast was not accepted");
+          }
+          Map<String, String> accepted = decodeOptions(buf.array(), buf.limit());
+          String[] group = accepted.getOrDefault("multicast", "").split(",", -1);
+          if (group.length != 3) {
+            throw new IOException("Multicast was not accepted");
+          }
+          if (tid == null) {
+            tid = from;
+            blksize = getInt(accepted, "blksize", blksize);
+            joinGroup(multicast, selector, group[0], Integer.parseInt(group[1]));
+          }
+          master = group[2].equals("1");
+          if (master) {
+            sendAck(control, ack, firstMissing - 1, tid);
+          }
+        }
+
+        // The blocks are sent to the multicast group by the server
+        buf.clear();
+        from = (tid != null) ? multicast.receive(buf) : null;
+        if (from != null && from.equals(tid)) {
+          buf.flip();
+          if (TFTPCodec.getOpcode(buf) != TFTPUtils.OP_DAT) {
+            continue;
+          }
+          int block = TFTPCodec.getBlocknbr(buf);
+          int length = buf.limit() - 4;
+          if (block == 0 || blocks.get(block)) {
+            duplicates.increment();
+          } else {
+            blocks.set(block);
+            received += length;
+            if (length < blksize) {
+              lastBlock = block;
+            }
+            while (blocks.get(firstMissing)) {
+              firstMissing++;
+            }
+          }
+          if (lastBlock != -1 && firstMissing > lastBlock) {
+            sendAck(control, ack, lastBlock, tid);
+            return received;
+          }
+          if (master) {
+            sendAck(control, ack, firstMissing - 1, tid);
+          }
+        }
+      }
+    }
+  }
+
+  private void joinGroup(DatagramChannel multicast, Selector selector, String address, int port) throws IOException {
+    InetAddress group = InetAddress.getByName(address);
+    NetworkInterface networkInterface = (MULTICASTINTERFACE != null)
+        ? NetworkInterface.getByName(MULTICASTINTERFACE)
+        : NetworkInterface.getByInetAddress(((InetSocketAddress) server).getAddress());
+    if (networkInterface == null) {
+      throw new IOException("No network interface to join " + address + " on, set --multicast-interface");
+    }
+    // Every local receiver of the group binds the same port
+    multicast.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+    multicast.bind(new InetSocketAddress(port));
+    multicast.join(group, networkInterface);
+    multicast.configureBlocking(false);
+    multicast.register(selector, SelectionKey.OP_READ);
+  }
+
+  private static void sendAck(DatagramChannel control, ByteBuffer ack, int blocknbr, SocketAddress tid) throws IOException {
+    TFTPCodec.encodeAck(ack, blocknbr);
+    control.send(ack, tid);
+  }
+
+  /**
+   * Writes content to a new file on the server, one block at a time.
+   * @return the number of bytes that were written
+   * @throws IOException if the server answered with an error, or too many timeouts happened in a row
+   */
+  private long write(String file, ByteBuffer content) throws IOException {
+    try (DatagramSocket socket = new DatagramSocket()) {
+      DatagramPacket request = encodeRequest(TFTPUtils.OP_WRQ, file, requestedOptions(false));
+      request.setSocketAddress(server);
+      RttEstimator rtt = new RttEstimator(TIMEOUT);
+
+      // The first answer is an OACK, an ACK of block 0 if no options were accepted, or an ERROR
+      byte[] first = new byte[TFTPUtils.BUFSIZE];
+      DatagramPacket answer = new DatagramPacket(first, first.length);
+      receiveFirst(socket, request, answer, rtt);
+      socket.connect(answer.getSocketAddress());
+      int blksize = TFTPUtils.DEFAULTBLKSIZE;
+      if (TFTPUtils.getOpcode(first) == TFTPUtils.OP_OACK) {
+        blksize = getInt(decodeOptions(first, answer.getLength()), "blksize", blksize);
+      }
+
+      // The blocks are read the way the server reads a file from memory
+      ContentSource.Content source = new ContentSource.BufferContent(content, 0);
+      DataPacket data = new DataPacket(blksize);
+      AckPacket ack = new AckPacket();
+      long position = 0;
+      int blocknbr = 1;
+      while (true) {
+        int length = data.readBlock(source, position, blocknbr);
+        DatagramPacket packet = data.getDatagramPacket();
+        socket.send(packet);
+        long sentAt = System.nanoTime();
+        long deadline = sentAt + TimeUnit.MILLISECONDS.toNanos(rtt.getRto());
+        boolean resent = false;
+        int timeouts = 0;
+
+        // Duplicate ACKs of the previous block are ignored, so that they do not cause retransmissions of their own
+        while (true) {
+          try {
+            setDeadline(socket, deadline);
+            if (!ack.receivedAck(socket)) {
+              // A packet that is not an ACK is ignored, the deadline of the block stays the same
+              continue;
+            }
+          } catch (SocketTimeoutException e) {
+            if (++timeouts > TFTPUtils.ALLOWEDTIMEOUTS) {
+              throw e;
+            }
+            socket.send(packet);
+            retransmits.increment();
+            rtt.backoff();
+            resent = true;
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(rtt.getRto());
+            continue;
+          } catch (SocketException e) {
+            throw new IOException("Error from server", e);
+          }
+          if (ack.getBlocknbr() == blocknbr) {
+            break;
+          }
+          duplicates.increment();
+        }
+        if (!resent) {
+          rtt.sample(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt));
+        }
+
+        position += length;
+        blocknbr = (blocknbr + 1) & 0xFFFF;
+        if (length < blksize) {
+          return position;
+        }
+      }
+    }
+  }
+
+  /**
+   * Sends the request and waits for the first answer of the server, sending the request again after every timeout.
+   * @throws IOException if the server answered with an ERROR, or too many timeouts happened in a row
+   */
+  private void receiveFirst(DatagramSocket socket, DatagramPacket request, DatagramPacket answer, RttEstimator rtt)
+      throws IOException {
+    socket.send(request);
+    long sentAt = System.nanoTime();
+    boolean resent = false;
+    int timeouts = 0;
+    while (true) {
+      try {
+        setDeadline(socket, sentAt + TimeUnit.MILLISECONDS.toNanos(rtt.getRto()));
+        answer.setLength(answer.getData().length);
+        socket.receive(answer);
+        break;
+      } catch (SocketTimeoutException e) {
+        if (++timeouts > TFTPUtils.ALLOWEDTIMEOUTS) {
+          throw e;
+        }
+        socket.send(request);
+        retransmits.increment();
+        rtt.backoff();
+        resent = true;
+        sentAt = System.nanoTime();
+      }
+    }
+    if (!resent) {
+      rtt.sample(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt));
+    }
+
+    byte[] packet = answer.getData();
+    if (TFTPUtils.getOpcode(packet) == TFTPUtils.OP_ERR) {
+      // | 2 Bytes: OpCode | 2 Bytes: ErrorCode | n bytes: ErrMsg | 0 Byte |
+      int end = 4;
+      while (end < answer.getLength() && packet[end] != 0) {
+        end++;
+      }
+      throw new IOException("Error " + TFTPCodec.getUnsignedShort(packet, 2) + ": "
+          + new String(packet, 4, end - 4, StandardCharsets.US_ASCII));
+    }
+  }
+
+  /**
+   * Lets the next receive of the socket wait until the deadline.
+   * @throws SocketTimeoutException if the deadline has already passed
+   */
+  private static void setDeadline(DatagramSocket socket, long deadline) throws IOException {
+    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    if (remaining <= 0) {
+      throw new SocketTimeoutException();
+    }
+    socket.setSoTimeout((int) remaining);
+  }
+
+  private static Map<String, String> requestedOptions(boolean read) {
+    Map<String, String> options = new TreeMap<>();
+    if (BLKSIZE > 0) {
+      options.put("blksize", Integer.toString(BLKSIZE));
+    }
+    if (read && WINDOWSIZE > 0) {
+      options.put("windowsize", Integer.toString(WINDOWSIZE));
+    }
+    if (TIMEOUT > 0) {
+      options.put("timeout", Integer.toString(TIMEOUT));
+    }
+    return options;
+  }
+
+  /**
+   * Encodes a RRQ or WRQ in octet mode.
+   * The packet is in the format of: | OPCODE | FILENAME | 0 | MODE | 0 | OPT1 | 0 | VALUE1 | 0 | ... |
+   */
+  private static DatagramPacket encodeRequest(int opcode, String file, Map<String, String> options) throws IOException {
+    ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+    bOut.write(0);
+    bOut.write(opcode);
+    writeField(bOut, file);
+    writeField(bOut, "octet");
+    for (Map.Entry<String, String> option : options.entrySet()) {
+      writeField(bOut, option.getKey());
+      writeField(bOut, option.getValue());
+    }
+    byte[] packetBytes = bOut.toByteArray();
+    return new DatagramPacket(packetBytes, packetBytes.length);
+  }
+
+  private static void writeField(ByteArrayOutputStream bOut, String field) throws IOException {
+    bOut.write(field.getBytes(StandardCharsets.US_ASCII));
+    bOut.write(0);
+  }
+
+  /**
+   * Decodes the options of an OACK, the pairs of 0 byte terminated names and values after the opcode.
+   */
+  private static Map<String, String> decodeOptions(byte[] packet, int length) {
+    Map<String, String> options = new TreeMap<>();
+    String name = null;
+    int start = 2;
+    for (int i = 2; i < length; i++) {
+      if (packet[i] != 0) {
+        continue;
+      }
+      String field = new String(packet, start, i - start, StandardCharsets.US_ASCII);
+      if (name == null) {
+        name = field.toLowerCase(Locale.ROOT);
+      } else {
+        options.put(name, field);
+        name = null;
+      }
+      start = i + 1;
+    }
+    return options;
+  }
+
+  private static int getInt(Map<String, String> options, String name, int defaultValue) {
+    String value = options.get(name);
+    return (value != null) ? Integer.parseInt(value) : defaultValue;
+  }
+
+  /**
+   * Prints the results of the run.
+   */
+  public void printReport(PrintStream out) {
+    double seconds = elapsedNanos / 1e9;
+    out.printf("Transfers:   %d completed, %d failed (%d reads, %d writes) by %d clients in %.3f s%n",
+        completed.sum(), failed.sum(), reads.sum(), writes.sum(), CLIENTS, seconds);
+    out.printf("Goodput:     %.1f MB/s (%.1f Mbit/s), %d bytes%n",
+        bytes.sum() / seconds / 1e6, bytes.sum() * 8 / seconds / 1e6, bytes.sum());
+
+    long[] sorted = Arrays.copyOf(latencies, latencyCount.get());
+    Arrays.sort(sorted);
+    if (sorted.length > 0) {
+      out.printf("Latency:     p50 %.1f ms, p99 %.1f ms, p999 %.1f ms, max %.1f ms%n",
+          getPercentile(sorted, 0.5), getPercentile(sorted, 0.99), getPercentile(sorted, 0.999),
+          sorted[sorted.length - 1] / 1e6);
+    }
+    out.printf("Retransmits: %d sent by the clients, %d duplicate packets received%n",
+        retransmits.sum(), duplicates.sum());
+    for (Map.Entry<String, LongAdder> failure : new TreeMap<>(failures).entrySet()) {
+      out.printf("Failed:      %d x %s%n", failure.getValue().sum(), failure.getKey());
+    }
+  }
+
+  /**
+   * @return the percentile of the sorted durations in milliseconds (nearest rank)
+   */
+  private static double getPercentile(long[] sorted, double percentile) {
+    int rank = (int) Math.ceil(percentile * sorted.length);
+    return sorted[Math.max(0, rank - 1)] / 1e6;
+  }
+}
@@ -0,0 +1,626 @@
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The metrics registry of the server: sessions, bytes and blocks, retransmissions, round-trip times,
+ * time to the first block and the sent errors.
+ *
+ * Every counter is a LongAdder and every latency a Histogram, so the transfers record their metrics without locks.
+ * A transfer records through its own Session, which also keeps the numbers that are only known at its end.
+ * The metrics can be read through JMX (TFTPMetricsMXBean) or as plain text (toText, served by MetricsEndpoint).
+ */
+public class TFTPMetrics implements TFTPMetricsMXBean {
+  // The size classes of the transfers: up to 64 KB (ex. boot loaders and configs), up to 16 MB (ex. kernels) and larger
+  private static final String[] SIZECLASSES = { "small", "medium", "large" };
+  private static final long SMALLBYTES = 64 * 1024;
+  private static final long MEDIUMBYTES = 16 * 1024 * 1024;
+
+  private final LongAdder activeSessions = new LongAdder();
+  private final LongAdder readRequests = new LongAdder();
+  private final LongAdder writeRequests = new LongAdder();
+  private final LongAdder completedSessions = new LongAdder();
+  private final LongAdder failedSessions = new LongAdder();
+  private final LongAdder bytesSent = new LongAdder();
+  private final LongAdder bytesReceived = new LongAdder();
+  private final LongAdder blocksSent = new LongAdder();
+  private final LongAdder blocksReceived = new LongAdder();
+  private final LongAdder retransmits = new LongAdder();
+  private final LongAdder duplicateRequests = new LongAdder();
+  private final LongAdder evictedSessions = new LongAdder();
+  private final LongAdder[] errors = new LongAdder[TFTPUtils.ErrorState.values().length];
+
+  private final Histogram rttMicros = new Histogram();
+  private final Histogram firstBlockMicros = new Histogram();
+  private final Histogram transferMicros = new Histogram();
+  // The time of the completed transfers by their size class, to compare the policies of the scheduler
+  private final Histogram[] transferMicrosBySize = { new Histogram(), new Histogram(), new Histogram() };
+  private final Histogram retransmitsPerSession = new Histogram();
+
+  private volatile BlockCache blockCache;
+  private volatile FileMetadataCache metadataCache;
+  private volatile GroupCommit groupCommit;
+  private volatile TransferScheduler scheduler;
+  private volatile TrafficShaper shaper;
+  private volatile AdmissionControl admission;
+
+  /**
+   * The metrics of a single transfer, which is used by one thread at a time.
+   * Whether it has ended and when it was last active are also read by the SessionTable.
+   * When the session ends it is written to the AccessLog as the access record of the transfer.
+   */
+  public final class Session {
+    private final long startNanos = System.nanoTime();
+    private final int opcode;
+    private final InetSocketAddress client;
+    private final String file;
+    private boolean firstBlock = true;
+    private long sessionRetransmits = 0;
+    private long sessionBytes = 0;
+    private TFTPUtils.ErrorState error;
+    private boolean successful = false;
+    private long endNanos;
+    private Runnable endListener;
+    private volatile boolean ended = false;
+    private volatile long lastActivityNanos = startNanos;
+
+    private Session(int opcode, InetSocketAddress client, String file) {
+      this.opcode = opcode;
+      this.client = client;
+      this.file = file;
+    }
+
+    /**
+     * Records a DATA packet that was sent for the first time.
+     * @param bytes the number of bytes in the block
+     */
+    public void blockSent(int bytes) {
+      lastActivityNanos = System.nanoTime();
+      blocksSent.increment();
+      bytesSent.add(bytes);
+      sessionBytes += bytes;
+      recordFirstBlock();
+    }
+
+    /**
+     * Records a DATA packet that was sent again.
+     * @param bytes the number of bytes in the block
+     */
+    public void blockResent(int bytes) {
+      blocksSent.increment();
+      bytesSent.add(bytes);
+      retransmitted();
+    }
+
+    /**
+     * Records a DATA packet that was received and written.
+     * @param bytes the number of bytes in the block
+     */
+    public void blockReceived(int bytes) {
+      lastActivityNanos = System.nanoTime();
+      blocksReceived.increment();
+      bytesReceived.add(bytes);
+      sessionBytes += bytes;
+      recordFirstBlock();
+    }
+
+    /**
+     * Records an OACK or ACK that was sent again.
+     */
+    public void retransmitted() {
+      lastActivityNanos = System.nanoTime();
+      retransmits.increment();
+      sessionRetransmits++;
+    }
+
+    /**
+     * Records an error that was sent to the client of the session.
+     */
+    public void error(TFTPUtils.ErrorState eState) {
+      errors[eState.ordinal()].increment();
+      error = eState;
+    }
+
+    /**
+     * Records the time between sending a packet and receiving its answer.
+     */
+    public void rtt(long nanos) {
+      rttMicros.record(nanos / 1000);
+    }
+
+    private void recordFirstBlock() {
+      if (firstBlock) {
+        firstBlock = false;
+        firstBlockMicros.record((System.nanoTime() - startNanos) / 1000);
+      }
+    }
+
+    /**
+     * Ends the session, only the first call has any effect.
+     * @param successful if the transfer concluded successfully
+     */
+    public void end(boolean successful) {
+      if (ended) {
+        return;
+      }
+      ended = true;
+      this.successful = successful;
+      endNanos = System.nanoTime();
+      activeSessions.decrement();
+      if (successful) {
+        completedSessions.increment();
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        transferMicros.record(micros);
+        transferMicrosBySize[sizeClass(sessionBytes)].record(micros);
+      } else {
+        failedSessions.increment();
+      }
+      retransmitsPerSession.record(sessionRetransmits);
+      AccessLog.transfer(this);
+      if (endListener != null) {
+        endListener.run();
+      }
+    }
+
+    /**
+     * Ends a session that turned out to repeat the request of a running transfer, ex. a second join of the same
+     * multicast client. It is counted as a duplicate request instead of as a session, and has no access record.
+     */
+    public void endDuplicate() {
+      if (ended) {
+        return;
+      }
+      ended = true;
+      endNanos = System.nanoTime();
+      activeSessions.decrement();
+      duplicateRequests.increment();
+      if (endListener != null) {
+        endListener.run();
+      }
+    }
+
+    /**
+     * @param listener is run once when the session ends, ex. to let the next transfer start
+     */
+    public void setEndListener(Runnable listener) {
+      this.endListener = listener;
+    }
+
+    public boolean isEnded() {
+      return ended;
+    }
+
+    public int getOpcode() {
+      return opcode;
+    }
+
+    /**
+     * @return the address and port of the client, or null if the session has no client
+     */
+    public InetSocketAddress getClient() {
+      return client;
+    }
+
+    /**
+     * @return the requested file, without the read or write directory
+     */
+    public String getFile() {
+      return file;
+    }
+
+    public boolean isSuccessful() {
+      return successful;
+    }
+
+    /**
+     * @return the last error that was sent to the client, or null
+     */
+    public TFTPUtils.ErrorState getError() {
+      return error;
+    }
+
+    /**
+     * @return the bytes of the blocks that were sent for the first time or received
+     */
+    public long getBytes() {
+      return sessionBytes;
+    }
+
+    public long getRetransmits() {
+      return sessionRetransmits;
+    }
+
+    /**
+     * @return the nanoseconds between the request and the end of the session, 0 while it has not ended
+     */
+    public long getDurationNanos() {
+      return ended ? endNanos - startNanos : 0;
+    }
+
+    /**
+     * @return the System.nanoTime() when the session last sent or received a block, or retransmitted a packet
+     */
+    public long getLastActivityNanos() {
+      return lastActivityNanos;
+    }
+  }
+
+  public TFTPMetrics() {
+    for (int i = 0; i < errors.length; i++) {
+      errors[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Starts the metrics of a new transfer, when its request has been received.
+   * @param opcode RRQ or WRQ
+   * @param client the address and port the request was sent from
+   * @param file the requested file
+   */
+  public Session startSession(int opcode, InetSocketAddress client, String file) {
+    activeSessions.increment();
+    if (opcode == TFTPUtils.OP_RRQ) {
+      readRequests.increment();
+    } else if (opcode == TFTPUtils.OP_WRQ) {
+      writeRequests.increment();
+    }
+    return new Session(opcode, client, file);
+  }
+
+  /**
+   * Records a request that was dropped, as the same client already has a transfer of the same file.
+   */
+  public void duplicateRequest() {
+    duplicateRequests.increment();
+  }
+
+  /**
+   * Records a session that was removed from the SessionTable, as it was idle for too long without ending.
+   */
+  public void evictedSession() {
+    evictedSessions.increment();
+  }
+
+  /**
+   * @param blockCache the cache whose counters are included in the metrics, or null
+   */
+  public void setBlockCache(BlockCache blockCache) {
+    this.blockCache = blockCache;
+  }
+
+  /**
+   * @param metadataCache the metadata cache whose counters are included in the metrics, or null
+   */
+  public void setMetadataCache(FileMetadataCache metadataCache) {
+    this.metadataCache = metadataCache;
+  }
+
+  /**
+   * @param groupCommit the commits of the uploads whose counters are included in the metrics, or null
+   */
+  public void setGroupCommit(GroupCommit groupCommit) {
+    this.groupCommit = groupCommit;
+  }
+
+  /**
+   * @param scheduler the scheduler of the transfers whose counters are included in the metrics, or null
+   */
+  public void setScheduler(TransferScheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * @param shaper the rate limits whose counters are included in the metrics, or null
+   */
+  public void setShaper(TrafficShaper shaper) {
+    this.shaper = shaper;
+  }
+
+  /**
+   * @param admission the admission control whose queue and counters are included in the metrics, or null
+   */
+  public void setAdmission(AdmissionControl admission) {
+    this.admission = admission;
+  }
+
+  /**
+   * Registers the metrics with the platform MBeanServer as "tftp:type=Metrics".
+   */
+  public void register() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("tftp:type=Metrics"));
+    } catch (JMException e) {
+      AccessLog.warn("Could not register the metrics with JMX: %s", e);
+    }
+  }
+
+  public long getActiveSessions() {
+    return activeSessions.sum();
+  }
+
+  public long getReadRequests() {
+    return readRequests.sum();
+  }
+
+  public long getWriteRequests() {
+    return writeRequests.sum();
+  }
+
+  public long getCompletedSessions() {
+    return completedSessions.sum();
+  }
+
+  public long getFailedSessions() {
+    return failedSessions.sum();
+  }
+
+  public long getBytesSent() {
+    return bytesSent.sum();
+  }
+
+  public long getBytesReceived() {
+    return bytesReceived.sum();
+  }
+
+  public long getBlocksSent() {
+    return blocksSent.sum();
+  }
+
+  public long getBlocksReceived() {
+    return blocksReceived.sum();
+  }
+
+  public long getRetransmits() {
+    return retransmits.sum();
+  }
+
+  public long getDuplicateRequests() {
+    return duplicateRequests.sum();
+  }
+
+  public long getEvictedSessions() {
+    return evictedSessions.sum();
+  }
+
+  public long getRetransmitsPerSessionP99() {
+    return retransmitsPerSession.getPercentile(0.99);
+  }
+
+  public long getRttP50Micros() {
+    return rttMicros.getPercentile(0.5);
+  }
+
+  public long getRttP99Micros() {
+    return rttMicros.getPercentile(0.99);
+  }
+
+  public long getRttP999Micros() {
+    return rttMicros.getPercentile(0.999);
+  }
+
+  public long getFirstBlockP50Micros() {
+    return firstBlockMicros.getPercentile(0.5);
+  }
+
+  public long getFirstBlockP99Micros() {
+    return firstBlockMicros.getPercentile(0.99);
+  }
+
+  public long getTransferP50Micros() {
+    return transferMicros.getPercentile(0.5);
+  }
+
+  public long getTransferP99Micros() {
+    return transferMicros.getPercentile(0.99);
+  }
+
+  /**
+   * @return the index in SIZECLASSES of a transfer of this many bytes
+   */
+  private static int sizeClass(long bytes) {
+    if (bytes <= SMALLBYTES) {
+      return 0;
+    }
+    return (bytes <= MEDIUMBYTES) ? 1 : 2;
+  }
+
+  public Map<String, Long> getTransferP99MicrosBySize() {
+    Map<String, Long> p99 = new LinkedHashMap<>();
+    for (int i = 0; i < SIZECLASSES.length; i++) {
+      p99.put(SIZECLASSES[i], transferMicrosBySize[i].getPercentile(0.99));
+    }
+    return p99;
+  }
+
+  public int getSchedulerWaiting() {
+    TransferScheduler transfers = scheduler;
+    return (transfers != null) ? transfers.getWaiting() : 0;
+  }
+
+  public Map<String, Long> getErrors() {
+    Map<String, Long> counts = new LinkedHashMap<>();
+    for (TFTPUtils.ErrorState eState : TFTPUtils.ErrorState.values()) {
+      counts.put(eState.name(), errors[eState.ordinal()].sum());
+    }
+    return counts;
+  }
+
+  public long getCacheHits() {
+    BlockCache cache = blockCache;
+    return (cache != null) ? cache.getHits() : 0;
+  }
+
+  public long getCacheMisses() {
+    BlockCache cache = blockCache;
+    return (cache != null) ? cache.getMisses() : 0;
+  }
+
+  public long getMetadataCacheHits() {
+    FileMetadataCache cache = metadataCache;
+    return (cache != null) ? cache.getHits() : 0;
+  }
+
+  public long getMetadataCacheMisses() {
+    FileMetadataCache cache = metadataCache;
+    return (cache != null) ? cache.getMisses() : 0;
+  }
+
+  public long getUploadCommits() {
+    GroupCommit commits = groupCommit;
+    return (commits != null) ? commits.getCommits() : 0;
+  }
+
+  public long getUploadCommitGroups() {
+    GroupCommit commits = groupCommit;
+    return (commits != null) ? commits.getGroups() : 0;
+  }
+
+  public long getShapedPackets() {
+    TrafficShaper limits = shaper;
+    return (limits != null) ? limits.getPackets() : 0;
+  }
+
+  public long getShaperDelayedPackets() {
+    TrafficShaper limits = shaper;
+    return (limits != null) ? limits.getDelayedByGlobal() + limits.getDelayedByClient() + limits.getDelayedBySubnet() : 0;
+  }
+
+  public long getShaperDelayMicros() {
+    TrafficShaper limits = shaper;
+    return (limits != null) ? limits.getDelayMicros() : 0;
+  }
+
+  public int getAdmissionQueueDepth() {
+    AdmissionControl control = admission;
+    return (control != null) ? control.getQueueDepth() : 0;
+  }
+
+  public long getAdmittedRequests() {
+    AdmissionControl control = admission;
+    return (control != null) ? control.getAdmitted() : 0;
+  }
+
+  public long getShedRequests() {
+    AdmissionControl control = admission;
+    return (control != null) ? control.getShedQueueFull() + control.getShedQueueDelay() : 0;
+  }
+
+  public long getAdmissionQueueDelayP99Micros() {
+    AdmissionControl control = admission;
+    return (control != null) ? control.getQueueDelayMicros().getPercentile(0.99) : 0;
+  }
+
+  /**
+   * Writes every metric as plain text, one "name value" line per metric and the histograms as cumulative buckets,
+   * in the text format that Prometheus scrapes.
+   */
+  public String toText() {
+    StringBuilder text = new StringBuilder();
+    appendCounter(text, "tftp_active_sessions", getActiveSessions());
+    appendCounter(text, "tftp_read_requests_total", getReadRequests());
+    appendCounter(text, "tftp_write_requests_total", getWriteRequests());
+    appendCounter(text, "tftp_sessions_completed_total", getCompletedSessions());
+    appendCounter(text, "tftp_sessions_failed_total", getFailedSessions());
+    appendCounter(text, "tftp_bytes_sent_total", getBytesSent());
+    appendCounter(text, "tftp_bytes_received_total", getBytesReceived());
+    appendCounter(text, "tftp_blocks_sent_total", getBlocksSent());
+    appendCounter(text, "tftp_blocks_received_total", getBlocksReceived());
+    appendCounter(text, "tftp_retransmits_total", getRetransmits());
+    appendCounter(text, "tftp_duplicate_requests_total", getDuplicateRequests());
+    appendCounter(text, "tftp_sessions_evicted_total", getEvictedSessions());
+    for (Map.Entry<String, Long> error : getErrors().entrySet()) {
+      text.append("tftp_errors_total{error=\"").append(error.getKey()).append("\"} ").append(error.getValue()).append('\n');
+    }
+    BlockCache cache = blockCache;
+    if (cache != null) {
+      appendCounter(text, "tftp_cache_hits_total", cache.getHits());
+      appendCounter(text, "tftp_cache_misses_total", cache.getMisses());
+      appendCounter(text, "tftp_cache_coalesced_total", cache.getCoalesced());
+      appendCounter(text, "tftp_cache_evictions_total", cache.getEvictions());
+      appendCounter(text, "tftp_cache_bytes", cache.getUsedBytes());
+    }
+    FileMetadataCache metadata = metadataCache;
+    if (metadata != null) {
+      appendCounter(text, "tftp_metadata_cache_hits_total", metadata.getHits());
+      appendCounter(text, "tftp_metadata_cache_misses_total", metadata.getMisses());
+      appendCounter(text, "tftp_metadata_cache_invalidations_total", metadata.getInvalidations());
+      appendCounter(text, "tftp_metadata_cache_entries", metadata.getEntries());
+    }
+    GroupCommit commits = groupCommit;
+    if (commits != null) {
+      appendCounter(text, "tftp_upload_commits_total", commits.getCommits());
+      appendCounter(text, "tftp_upload_commit_groups_total", commits.getGroups());
+      appendCounter(text, "tftp_upload_commit_syncs_total", commits.getSyncs());
+      appendCounter(text, "tftp_upload_commit_failures_total", commits.getFailures());
+      appendHistogram(text, "tftp_upload_commit_micros", commits.getCommitMicros());
+      appendHistogram(text, "tftp_upload_commit_group_size", commits.getGroupSizes());
+      appendHistogram(text, "tftp_upload_commit_sync_micros", commits.getSyncMicros());
+    }
+    TransferScheduler transfers = scheduler;
+    if (transfers != null) {
+      appendCounter(text, "tftp_scheduler_grants_total", transfers.getGrants());
+      appendCounter(text, "tftp_scheduler_waiting", transfers.getWaiting());
+      appendHistogram(text, "tftp_scheduler_wait_micros", transfers.getWaitMicros());
+    }
+    TrafficShaper limits = shaper;
+    if (limits != null) {
+      appendCounter(text, "tftp_shaper_packets_total", limits.getPackets());
+      appendCounter(text, "tftp_shaper_delayed_total{limit=\"global\"}", limits.getDelayedByGlobal());
+      appendCounter(text, "tftp_shaper_delayed_total{limit=\"client\"}", limits.getDelayedByClient());
+      appendCounter(text, "tftp_shaper_delayed_total{limit=\"subnet\"}", limits.getDelayedBySubnet());
+      appendCounter(text, "tftp_shaper_delay_micros_total", limits.getDelayMicros());
+    }
+    AdmissionControl control = admission;
+    if (control != null) {
+      appendCounter(text, "tftp_admission_queue_depth", control.getQueueDepth());
+      appendCounter(text, "tftp_admission_active_sessions", control.getActive());
+      appendCounter(text, "tftp_admitted_total", control.getAdmitted());
+      appendCounter(text, "tftp_admission_queued_total", control.getQueued());
+      appendCounter(text, "tftp_shed_total{reason=\"queue_full\"}", control.getShedQueueFull());
+      appendCounter(text, "tftp_shed_total{reason=\"queue_delay\"}", control.getShedQueueDelay());
+      appendHistogram(text, "tftp_admission_queue_delay_micros", control.getQueueDelayMicros());
+    }
+    appendHistogram(text, "tftp_rtt_micros", rttMicros);
+    appendHistogram(text, "tftp_first_block_micros", firstBlockMicros);
+    appendHistogram(text, "tftp_transfer_micros", transferMicros);
+    for (int i = 0; i < SIZECLASSES.length; i++) {
+      appendHistogram(text, "tftp_transfer_micros_by_size", "size=\"" + SIZECLASSES[i] + "\"", transferMicrosBySize[i]);
+    }
+    appendHistogram(text, "tftp_session_retransmits", retransmitsPerSession);
+    return text.toString();
+  }
+
+  private static void appendCounter(StringBuilder text, String name, long value) {
+    text.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static void appendHistogram(StringBuilder text, String name, Histogram histogram) {
+    appendHistogram(text, name, null, histogram);
+  }
+
+  /**
+   * @param labels the labels of every line of the histogram, ex. size="small", or null
+   */
+  private static void appendHistogram(StringBuilder text, String name, String labels, Histogram histogram) {
+    String bucketLabels = (labels != null) ? labels + "," : "";
+    String totalLabels = (labels != null) ? "{" + labels + "}" : "";
+    long cumulative = 0;
+    for (int i = 0; i < Histogram.getBucketCount(); i++) {
+      long count = histogram.getBucket(i);
+      if (count == 0) {
+        continue;
+      }
+      cumulative += count;
+      text.append(name).append("_bucket{").append(bucketLabels).append("le=\"").append(Histogram.getUpperBound(i)).append("\"} ")
+          .append(cumulative).append('\n');
+    }
+    text.append(name).append("_bucket{").append(bucketLabels).append("le=\"+Inf\"} ").append(histogram.getCount()).append('\n');
+    appendCounter(text, name + "_sum" + totalLabels, histogram.getSum());
+    appendCounter(text, name + "_count" + totalLabels, histogram.getCount());
+  }
+}
@@ -0,0 +1,77 @@
+import java.util.Map;
+
+/**
+ * The metrics of the server as they are exposed through JMX, registered as "tftp:type=Metrics".
+ * The latencies are in microseconds, and the percentiles are estimates (see Histogram).
+ */
+public interface TFTPMetricsMXBean {
+  long getActiveSessions();
+  long getReadRequests();
+  long getWriteRequests();
+  long getCompletedSessions();
+  long getFailedSessions();
+  long getDuplicateRequests();
+  long getEvictedSessions();
+
+  long getBytesSent();
+  long getBytesReceived();
+  long getBlocksSent();
+  long getBlocksReceived();
+  long getRetransmits();
+  long getRetransmitsPerSessionP99();
+
+  long getRttP50Micros();
+  long getRttP99Micros();
+  long getRttP999Micros();
+  long getFirstBlockP50Micros();
+  long getFirstBlockP99Micros();
+  long getTransferP50Micros();
+  long getTransferP99Micros();
+
+  /**
+   * @return the 99th percentile of the time of the completed transfers by their size: small (up to 64 KB),
+   *         medium (up to 16 MB) and large
+   */
+  Map<String, Long> getTransferP99MicrosBySize();
+
+  /**
+   * @return the number of sent errors by TFTPUtils.ErrorState
+   */
+  Map<String, Long> getErrors();
+
+  long getCacheHits();
+  long getCacheMisses();
+
+  /**
+   * Lookups of the metadata of requested files that were answered from the metadata cache, and that had to stat the file
+   */
+  long getMetadataCacheHits();
+  long getMetadataCacheMisses();
+
+  /**
+   * The finished uploads that were committed to their requested names, and the groups they were synced to the disk in
+   */
+  long getUploadCommits();
+  long getUploadCommitGroups();
+
+  /**
+   * The blocks of read transfers that wait for the scheduler to give them the opportunity to be sent
+   */
+  int getSchedulerWaiting();
+
+  /**
+   * The packets that went through the rate limits, the packets that had to wait, and the total wait in microseconds
+   */
+  long getShapedPackets();
+  long getShaperDelayedPackets();
+  long getShaperDelayMicros();
+
+  /**
+   * The requests that wait for admission, that were admitted and that were shed with a busy error,
+   * and the 99th percentile of the time that requests waited for admission
+   */
+  int getAdmissionQueueDepth();
+  long getAdmittedRequests();
+  long getShedRequests();
+  long getAdmissionQueueDelayP99Micros();
+}
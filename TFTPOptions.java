@@ -0,0 +1,203 @@
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Represents the transfer mode and the options (RFC 2347) given in a RRQ/WRQ request,
+ * as well as the values that the server has agreed to use for the session.
+ */
+public class TFTPOptions {
+  private String mode = "octet";
+  private Map<String, String> requested = new LinkedHashMap<>();
+  private Map<String, String> acknowledged = new LinkedHashMap<>();
+  private int blksize = TFTPUtils.DEFAULTBLKSIZE;
+  private int windowsize = 1;
+  private int timeout = 0;
+  private int rollover = TFTPServer.ROLLOVER;
+  private boolean multicast = false;
+  private boolean tsizeRequested = false;
+  private long transferSize = -1;
+
+  public TFTPOptions() {}
+
+  /**
+   * Adds an option that was given in the request. Option names are case insensitive.
+   * @param name the name of the option
+   * @param value the value that the client requested for the option
+   */
+  public void addRequested(String name, String value) {
+    requested.put(name.toLowerCase(Locale.ROOT), value);
+  }
+
+  /**
+   * Goes through the requested options and decides which of them the server accepts, within the limits
+   * that the server was started with. Options that are unknown or have invalid values are ignored, as stated in RFC 2347.
+   *
+   * @param opcode the type of the request (RRQ or WRQ)
+   */
+  public void negotiate(int opcode) {
+    // RFC 2348: blksize may be between 8 and 65464 bytes, the server may answer with a smaller value
+    Integer value = getRequestedInt("blksize");
+    if (value != null && value >= TFTPUtils.MINBLKSIZE) {
+      blksize = Math.min(value, Math.min(TFTPServer.BLKSIZELIMIT, TFTPUtils.MAXBLKSIZE));
+      acknowledged.put("blksize", Integer.toString(blksize));
+    }
+
+    // RFC 2090: multicast is only supported for reads, and only when the server has a multicast group.
+    // Its value is different for every client, so it is added to the OACK by MulticastTransfer
+    multicast = opcode == TFTPUtils.OP_RRQ && requested.containsKey("multicast") && TFTPServer.MULTICAST != null;
+
+    // RFC 7440: windowsize may be between 1 and 65535 blocks, only supported when the server is the sender.
+    // A multicast transfer is in lock-step with its master client
+    value = getRequestedInt("windowsize");
+    if (opcode == TFTPUtils.OP_RRQ && !multicast && value != null && value >= 1) {
+      windowsize = Math.min(value, Math.min(TFTPServer.WINDOWSIZELIMIT, TFTPUtils.MAXWINDOWSIZE));
+      acknowledged.put("windowsize", Integer.toString(windowsize));
+    }
+
+    // RFC 2349: tsize is 0 in a read request and the server answers with the size of the file, which is only known
+    // once the file has been opened (see setFileSize). In a write request it is the size of the upload
+    Long size = getRequestedLong("tsize");
+    if (size != null && size >= 0) {
+      tsizeRequested = true;
+      if (opcode == TFTPUtils.OP_WRQ) {
+        transferSize = size;
+        acknowledged.put("tsize", Long.toString(transferSize));
+      }
+    }
+
+    // rollover is not in an RFC, but is sent by clients that expect the blocknumber to follow 65535 with 1 instead of 0
+    value = getRequestedInt("rollover");
+    if (value != null && (value == 0 || value == 1)) {
+      rollover = value;
+      acknowledged.put("rollover", Integer.toString(rollover));
+    }
+
+    // RFC 2349: timeout may be between 1 and 255 seconds, the server has to accept the value as it is or ignore it
+    value = getRequestedInt("timeout");
+    if (value != null && value >= 1 && value <= 255) {
+      timeout = value;
+      acknowledged.put("timeout", Integer.toString(timeout));
+    }
+  }
+
+  /**
+   * Acknowledges the tsize option of a read request with the size of the file, if the client requested it.
+   * @param size the size of the requested file in bytes
+   */
+  public void setFileSize(long size) {
+    if (tsizeRequested) {
+      transferSize = size;
+      acknowledged.put("tsize", Long.toString(size));
+    }
+  }
+
+  /**
+   * Retrieves the long value of a requested option.
+   * @param name the name of the option
+   * @return the value of the option, or null if it was not requested or is not a number
+   */
+  public Long getRequestedLong(String name) {
+    String value = requested.get(name);
+    if (value == null) {
+      return null;
+    }
+    try {
+      return Long.valueOf(value.trim());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Retrieves the integer value of a requested option.
+   * @param name the name of the option
+   * @return the value of the option, or null if it was not requested or is not a number
+   */
+  public Integer getRequestedInt(String name) {
+    String value = requested.get(name);
+    if (value == null) {
+      return null;
+    }
+    try {
+      return Integer.valueOf(value.trim());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return true if the server has accepted any option, meaning that an OACK shall be sent to the client
+   */
+  public boolean hasAcknowledged() {
+    return !acknowledged.isEmpty();
+  }
+
+  public Map<String, String> getAcknowledged() {
+    return acknowledged;
+  }
+
+  public Map<String, String> getRequested() {
+    return requested;
+  }
+
+  public void setMode(String mode) {
+    this.mode = mode.toLowerCase(Locale.ROOT);
+  }
+
+  public String getMode() {
+    return mode;
+  }
+
+  /**
+   * @return true if the transfer is in netascii mode, otherwise it is in octet mode
+   */
+  public boolean isNetascii() {
+    return mode.equals("netascii");
+  }
+
+  /**
+   * @throws IllegalArgumentException if the mode is neither octet nor netascii (ex. the obsolete mail mode)
+   */
+  public void checkMode() {
+    if (!mode.equals("octet") && !mode.equals("netascii")) {
+      throw new IllegalArgumentException("Unsupported transfer mode: " + mode);
+    }
+  }
+
+  public int getBlksize() {
+    return blksize;
+  }
+
+  public int getWindowsize() {
+    return windowsize;
+  }
+
+  /**
+   * @return the blocknumber that follows 65535, 0 or 1
+   */
+  public int getRollover() {
+    return rollover;
+  }
+
+  /**
+   * @return true if the client has requested a multicast read and the server supports it
+   */
+  public boolean isMulticast() {
+    return multicast;
+  }
+
+  /**
+   * @return the size of the file (tsize) that was acknowledged, or -1 if the client did not request it
+   */
+  public long getTransferSize() {
+    return transferSize;
+  }
+
+  /**
+   * @return the timeout in seconds that the client has requested, or 0 if the server shall estimate the timeout itself
+   */
+  public int getTimeout() {
+    return timeout;
+  }
+}
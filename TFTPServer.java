@@ -1,33 +1,127 @@
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.FileAlreadyExistsException;
-import java.nio.file.NoSuchFileException;
-import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class TFTPServer 
 {
 	public static int TFTPPORT;
   public static String READDIR; 
 	public static String WRITEDIR; 
+	// Largest blocksize (RFC 2348) the server agrees to, can be lowered with --max-blksize
+	public static int BLKSIZELIMIT = TFTPUtils.MAXBLKSIZE;
+	// Largest windowsize (RFC 7440) the server agrees to, can be changed with --max-windowsize
+	public static int WINDOWSIZELIMIT = 64;
+	// The blocknumber that follows 65535 in transfers of more than 65535 blocks (0 or 1), can be changed with --rollover.
+	// A client can choose it for its own transfer with the rollover option
+	public static int ROLLOVER = 0;
+	// Transfers run either with a thread per transfer ("thread") or on NIO event loops ("nio"), chosen with --engine
+	public static String ENGINE = "thread";
+	// Number of event loops used by the NIO engine, can be changed with --nio-threads
+	public static int NIOTHREADS = 1;
+	// ExecutorService that runs the transfers of the thread engine (thread, virtual or pool), chosen with --executor
+	public static String EXECUTOR = "thread";
+	// Number of threads and number of waiting transfers allowed by the pool executor, --pool-size and --pool-queue
+	public static int POOLSIZE = 200;
+	public static int POOLQUEUE = 1000;
+	// Size in MB of the in-memory cache of read files (0 disables it), the largest file in MB it holds,
+	// and if it is kept off-heap. Set with --cache-size, --cache-max-file and --cache-offheap
+	public static int CACHESIZE = 0;
+	public static int CACHEMAXFILE = 256;
+	public static boolean CACHEOFFHEAP = false;
+	// Where the files of the read requests come from: the read directory on the disk ("file"), or every file of the
+	// read directory loaded into memory when the server starts ("memory"). Set with --content. A directory of templates
+	// that are rendered for every client (null disables them) comes before that source, set with --templates
+	public static String CONTENT = "file";
+	public static String TEMPLATES = null;
+	// Number of files whose metadata (and absence) is cached for the validation of the requests (0 disables it),
+	// and how long in ms an entry is used when its change is not reported. Set with --metadata-cache and --metadata-ttl
+	public static int METADATACACHE = 0;
+	public static int METADATATTL = 5000;
+	// If the packet buffers of the NIO engine are direct ByteBuffers. Set with --direct-buffers
+	public static boolean DIRECTBUFFERS = false;
+	// Number of received blocks per upload that may wait for the disk when writing behind (0 writes directly),
+	// set with --write-behind
+	public static int WRITEBEHIND = 0;
+	// If finished uploads are synced to the disk before their last block is acknowledged, set with --fsync
+	public static boolean FSYNC = true;
+	// Local port of the plain-text metrics endpoint (0 disables it), set with --metrics-port
+	public static int METRICSPORT = 0;
+	// Multicast address and first port of the multicast reads (RFC 2090), null disables the multicast option.
+	// Set with --multicast, and the interface and time-to-live of the packets with --multicast-interface and --multicast-ttl
+	public static InetSocketAddress MULTICAST = null;
+	public static String MULTICASTINTERFACE = null;
+	public static int MULTICASTTTL = 1;
+	// Bandwidth limits in Mbit/s of all transfers together, of every client address and of every subnet (0 disables
+	// a limit), the prefix length of the IPv4 subnets and the burst in KB of every limit. Set with --rate-limit,
+	// --client-rate-limit, --subnet-rate-limit, --subnet-prefix and --rate-burst
+	public static int RATELIMIT = 0;
+	public static int CLIENTRATELIMIT = 0;
+	public static int SUBNETRATELIMIT = 0;
+	public static int SUBNETPREFIX = 24;
+	public static int RATEBURST = 64;
+	// The policy that divides the --rate-limit between the read transfers (null lets every transfer take its blocks
+	// as soon as it is ready), and the weights of the clients for WFQ. Set with --scheduler and --client-weights
+	public static TransferScheduler.Policy SCHEDULER = null;
+	public static List<TransferScheduler.Weight> CLIENTWEIGHTS = null;
+	// Least severe level of the log (error, warn, info or debug) and the file it is appended to ("-" is the standard
+	// output). Set with --log-level and --access-log
+	public static AccessLog.Level LOGLEVEL = AccessLog.Level.INFO;
+	public static String ACCESSLOG = "-";
+	// Number of sockets that listen for requests on TFTPPORT with SO_REUSEPORT, each on its own thread. Set with --listeners
+	public static int LISTENERS = 1;
+	// Number of transfers that may run at once (0 disables the admission control), the number of requests that may
+	// wait for admission, and the queue delay target and interval in ms after which waiting requests are shed.
+	// Set with --max-sessions, --admission-queue, --admission-target and --admission-interval
+	public static int MAXSESSIONS = 0;
+	public static int ADMISSIONQUEUE = 1000;
+	public static int ADMISSIONTARGET = 100;
+	public static int ADMISSIONINTERVAL = 1000;
+
+	private final TFTPMetrics metrics = new TFTPMetrics();
+	private final SessionTable sessionTable = new SessionTable(metrics);
+	private BlockCache blockCache;
+	// Where the files of the read requests come from, the read directory unless --content or --templates say otherwise
+	private ContentSource contentSource;
+	private FileMetadataCache metadataCache;
+	private WriteBehindWriter writeBehind;
+	private GroupCommit groupCommit;
+	private MulticastSessions multicast;
+	private TrafficShaper shaper;
+	private TransferScheduler scheduler;
+	private AdmissionControl admission;
+	// The free space of WRITEDIR is only read from the filesystem about once a second
+	private final FreeSpaceCheck freeSpace = new FreeSpaceCheck(WRITEDIR, 1000);
 	// OP codes
 
 
 	public static void main(String[] args) throws IOException {
-		if (args.length > 3 || args.length < 3) 
+		if (args.length < 3) 
 		{
-			System.err.printf("usage: java %s: [port] [readDirectory] [writeDirectory] \n", TFTPServer.class.getCanonicalName());
+			printUsage();
 			System.exit(1);
 		}
 		//Starting the server
@@ -36,25 +130,392 @@ public class TFTPServer
       TFTPPORT = Integer.parseInt(args[0]);
       READDIR = (args[1] + "/");
       WRITEDIR = (args[2] + "/");
+      parseFlags(args);
+			AccessLog.start(LOGLEVEL, ACCESSLOG);
 			TFTPServer server = new TFTPServer();
 			server.start();
 		}
-		catch (SocketException e) 
-			{e.printStackTrace();}
+		catch (IOException e) 
+			{
+				// The log may not have been started, the error is printed before the server exits
+				System.err.println(e.toString() + " was thrown");
+				System.exit(1);
+			}
+	}
+
+	private static void printUsage() {
+		System.err.printf("usage: java %s: [port] [readDirectory] [writeDirectory] [--max-blksize=n] [--max-windowsize=n] [--rollover=0|1] [--engine=thread|nio] [--nio-threads=n]\n"
+				+ "       [--executor=thread|virtual|pool] [--pool-size=n] [--pool-queue=n]\n"
+				+ "       [--cache-size=mb] [--cache-max-file=mb] [--cache-offheap=true|false] [--write-behind=n] [--fsync=true|false]\n"
+				+ "       [--metadata-cache=n] [--metadata-ttl=ms] [--content=file|memory] [--templates=directory]\n"
+				+ "       [--direct-buffers=true|false] [--metrics-port=n]\n"
+				+ "       [--multicast=address:port] [--multicast-interface=name] [--multicast-ttl=n]\n"
+				+ "       [--rate-limit=mbit] [--client-rate-limit=mbit] [--subnet-rate-limit=mbit] [--subnet-prefix=n] [--rate-burst=kb]\n"
+				+ "       [--scheduler=none|fifo|srpt|wfq] [--client-weights=address[/prefix]=weight,...]\n"
+				+ "       [--log-level=error|warn|info|debug] [--access-log=file|-] [--listeners=n]\n"
+				+ "       [--max-sessions=n] [--admission-queue=n] [--admission-target=ms] [--admission-interval=ms]\n", TFTPServer.class.getCanonicalName());
+	}
+
+	/**
+	 * Parses the optional flags which are given after the port and directories, in the format of: --name=value
+	 * Exits the server if a flag is unknown or has an invalid value.
+	 * @param args the command line arguments
+	 */
+	private static void parseFlags(String[] args) {
+		for (int i = 3; i < args.length; i++) {
+			String[] flag = args[i].split("=", 2);
+			try {
+				if (flag.length != 2) {
+					throw new IllegalArgumentException("Missing value for flag: " + args[i]);
+				}
+				switch (flag[0]) {
+					case "--max-blksize":
+						BLKSIZELIMIT = parseIntFlag(flag, TFTPUtils.MINBLKSIZE, TFTPUtils.MAXBLKSIZE);
+						break;
+					case "--max-windowsize":
+						WINDOWSIZELIMIT = parseIntFlag(flag, 1, TFTPUtils.MAXWINDOWSIZE);
+						break;
+					case "--rollover":
+						ROLLOVER = parseIntFlag(flag, 0, 1);
+						break;
+					case "--engine":
+						if (!flag[1].equals("thread") && !flag[1].equals("nio")) {
+							throw new IllegalArgumentException("--engine has to be either thread or nio");
+						}
+						ENGINE = flag[1];
+						break;
+					case "--nio-threads":
+						NIOTHREADS = parseIntFlag(flag, 1, 1024);
+						break;
+					case "--executor":
+						if (!flag[1].equals("thread") && !flag[1].equals("virtual") && !flag[1].equals("pool")) {
+							throw new IllegalArgumentException("--executor has to be either thread, virtual or pool");
+						}
+						EXECUTOR = flag[1];
+						break;
+					case "--pool-size":
+						POOLSIZE = parseIntFlag(flag, 1, 100000);
+						break;
+					case "--pool-queue":
+						POOLQUEUE = parseIntFlag(flag, 1, Integer.MAX_VALUE);
+						break;
+					case "--cache-size":
+						CACHESIZE = parseIntFlag(flag, 0, Integer.MAX_VALUE);
+						break;
+					case "--cache-max-file":
+						CACHEMAXFILE = parseIntFlag(flag, 1, 2047);
+						break;
+					case "--cache-offheap":
+						CACHEOFFHEAP = Boolean.parseBoolean(flag[1]);
+						break;
+					case "--content":
+						CONTENT = flag[1];
+						if (!CONTENT.equals("file") && !CONTENT.equals("memory")) {
+							throw new IllegalArgumentException("--content has to be either file or memory");
+						}
+						break;
+					case "--templates":
+						TEMPLATES = flag[1];
+						break;
+					case "--metadata-cache":
+						METADATACACHE = parseIntFlag(flag, 0, Integer.MAX_VALUE);
+						break;
+					case "--metadata-ttl":
+						METADATATTL = parseIntFlag(flag, 1, Integer.MAX_VALUE);
+						break;
+					case "--write-behind":
+						WRITEBEHIND = parseIntFlag(flag, 0, 65535);
+						break;
+					case "--fsync":
+						FSYNC = Boolean.parseBoolean(flag[1]);
+						break;
+					case "--direct-buffers":
+						DIRECTBUFFERS = Boolean.parseBoolean(flag[1]);
+						break;
+					case "--metrics-port":
+						METRICSPORT = parseIntFlag(flag, 0, 65535);
+						break;
+					case "--multicast":
+						MULTICAST = parseMulticastFlag(flag);
+						break;
+					case "--multicast-interface":
+						MULTICASTINTERFACE = flag[1];
+						break;
+					case "--multicast-ttl":
+						MULTICASTTTL = parseIntFlag(flag, 0, 255);
+						break;
+					case "--rate-limit":
+						RATELIMIT = parseIntFlag(flag, 0, 1000000);
+						break;
+					case "--client-rate-limit":
+						CLIENTRATELIMIT = parseIntFlag(flag, 0, 1000000);
+						break;
+					case "--subnet-rate-limit":
+						SUBNETRATELIMIT = parseIntFlag(flag, 0, 1000000);
+						break;
+					case "--subnet-prefix":
+						SUBNETPREFIX = parseIntFlag(flag, 0, 32);
+						break;
+					case "--rate-burst":
+						RATEBURST = parseIntFlag(flag, 1, 1048576);
+						break;
+					case "--scheduler":
+						try {
+							SCHEDULER = flag[1].equals("none") ? null : TransferScheduler.Policy.parse(flag[1]);
+						} catch (IllegalArgumentException e) {
+							throw new IllegalArgumentException("--scheduler has to be either none, fifo, srpt or wfq");
+						}
+						break;
+					case "--client-weights":
+						CLIENTWEIGHTS = TransferScheduler.parseWeights(flag[1]);
+						break;
+					case "--listeners":
+						LISTENERS = parseIntFlag(flag, 1, 1024);
+						break;
+					case "--max-sessions":
+						MAXSESSIONS = parseIntFlag(flag, 0, Integer.MAX_VALUE);
+						break;
+					case "--admission-queue":
+						ADMISSIONQUEUE = parseIntFlag(flag, 1, Integer.MAX_VALUE);
+						break;
+					case "--admission-target":
+						ADMISSIONTARGET = parseIntFlag(flag, 1, 3600000);
+						break;
+					case "--admission-interval":
+						ADMISSIONINTERVAL = parseIntFlag(flag, 1, 3600000);
+						break;
+					case "--log-level":
+						try {
+							LOGLEVEL = AccessLog.Level.valueOf(flag[1].toUpperCase(Locale.ROOT));
+						} catch (IllegalArgumentException e) {
+							throw new IllegalArgumentException("--log-level has to be either error, warn, info or debug");
+						}
+						break;
+					case "--access-log":
+						ACCESSLOG = flag[1];
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown flag: " + flag[0]);
+				}
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				printUsage();
+				System.exit(1);
+			}
+		}
+		// The scheduler divides the bandwidth of the global rate limit, without a limit there is nothing to divide
+		if (SCHEDULER != null && RATELIMIT == 0) {
+			System.err.println("--scheduler needs a --rate-limit, which is the bandwidth that it divides");
+			printUsage();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Parses the integer value of a flag.
+	 * @param flag the name and value of the flag
+	 * @param min the smallest allowed value
+	 * @param max the largest allowed value
+	 * @return the value of the flag
+	 * @throws IllegalArgumentException if the value is not a number or is out of range
+	 */
+	private static int parseIntFlag(String[] flag, int min, int max) {
+		int value = Integer.parseInt(flag[1]);
+		if (value < min || value > max) {
+			throw new IllegalArgumentException(flag[0] + " has to be between " + min + " and " + max);
+		}
+		return value;
+	}
+
+	/**
+	 * Parses the multicast address and port of the --multicast flag, in the format of: address:port
+	 * @throws IllegalArgumentException if the address is not a multicast address or the port is out of range
+	 */
+	private static InetSocketAddress parseMulticastFlag(String[] flag) {
+		int colon = flag[1].lastIndexOf(':');
+		if (colon == -1) {
+			throw new IllegalArgumentException(flag[0] + " has to be in the format of address:port");
+		}
+		InetAddress address;
+		try {
+			address = InetAddress.getByName(flag[1].substring(0, colon));
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException(flag[0] + " has an unknown address: " + flag[1].substring(0, colon));
+		}
+		if (!address.isMulticastAddress()) {
+			throw new IllegalArgumentException(flag[0] + " has to be a multicast address, ex. 239.255.0.1:1758");
+		}
+		// Every multicast transfer sends to a port of its own above the configured one, which all have to be valid ports
+		int port = parseIntFlag(new String[] {flag[0] + " port", flag[1].substring(colon + 1)}, 1, 65535 - (MulticastSessions.MAXTRANSFERS - 1));
+		return new InetSocketAddress(address, port);
 	}
 
-	private void start() throws SocketException 
+	private void start() throws IOException 
 	{
-		byte[] buf= new byte[TFTPUtils.BUFSIZE];
-		
-		// Create socket
-		DatagramSocket socket= new DatagramSocket(null);
-		
-		// Create local bind point 
-		SocketAddress localBindPoint= new InetSocketAddress(TFTPPORT);
-		socket.bind(localBindPoint);
+		if (CACHESIZE > 0) {
+			blockCache = new BlockCache(CACHESIZE * 1024L * 1024L, CACHEMAXFILE * 1024L * 1024L, CACHEOFFHEAP);
+			metrics.setBlockCache(blockCache);
+		}
+		if (METADATACACHE > 0) {
+			metadataCache = new FileMetadataCache(METADATACACHE, METADATATTL);
+			metadataCache.start();
+			metrics.setMetadataCache(metadataCache);
+		}
+		if (CONTENT.equals("memory")) {
+			MemoryContentSource memory = MemoryContentSource.load(new File(READDIR));
+			AccessLog.info("Loaded %d files of %s into memory", memory.size(), READDIR);
+			contentSource = memory;
+		} else {
+			contentSource = new FileContentSource(this, READDIR, blockCache);
+		}
+		if (TEMPLATES != null) {
+			TemplateContentSource templates = new TemplateContentSource(new File(TEMPLATES), contentSource);
+			AccessLog.info("Loaded %d templates of %s", templates.size(), TEMPLATES);
+			contentSource = templates;
+		}
+		if (WRITEBEHIND > 0) {
+			writeBehind = new WriteBehindWriter(WRITEBEHIND);
+			writeBehind.start();
+		}
+		int abandoned = StagedUpload.removeAbandoned(new File(WRITEDIR));
+		if (abandoned > 0) {
+			AccessLog.info("Removed %d staging files of uploads that did not finish", abandoned);
+		}
+		// The name of a published upload exists from now on, which the watcher of the metadata cache would only report a moment later
+		groupCommit = new GroupCommit(FSYNC, file -> {
+			if (metadataCache != null) {
+				metadataCache.invalidate(file);
+			}
+		});
+		groupCommit.start();
+		metrics.setGroupCommit(groupCommit);
+
+		// With a scheduler the global rate limit is divided by the scheduler, instead of by a bucket of the shaper
+		long globalRate = (SCHEDULER == null) ? RATELIMIT * 125000L : 0;
+		if (globalRate > 0 || CLIENTRATELIMIT > 0 || SUBNETRATELIMIT > 0) {
+			// The NIO engine waits for the buckets on its timer wheel, the burst lets a bucket fill up between its ticks
+			long largestRate = Math.max(globalRate, Math.max(CLIENTRATELIMIT, SUBNETRATELIMIT) * 125000L);
+			long burst = Math.max(RATEBURST * 1024L, largestRate / 50);
+			shaper = new TrafficShaper(globalRate, CLIENTRATELIMIT * 125000L, SUBNETRATELIMIT * 125000L, SUBNETPREFIX, burst);
+			metrics.setShaper(shaper);
+		}
+		if (SCHEDULER != null) {
+			// The scheduler thread waits for the bandwidth itself, a small burst keeps the blocks in the order of the policy
+			scheduler = new TransferScheduler(SCHEDULER, RATELIMIT * 125000L, RATEBURST * 1024L, CLIENTWEIGHTS);
+			scheduler.start();
+			metrics.setScheduler(scheduler);
+			AccessLog.info("Scheduling the read transfers with %s", SCHEDULER);
+		}
+
+		if (MAXSESSIONS > 0) {
+			admission = new AdmissionControl(MAXSESSIONS, ADMISSIONQUEUE, ADMISSIONTARGET, ADMISSIONINTERVAL);
+			admission.start();
+			metrics.setAdmission(admission);
+		}
+
+		if (MULTICAST != null) {
+			multicast = new MulticastSessions(this, metrics, MULTICAST, MULTICASTINTERFACE, MULTICASTTTL);
+		}
+
+		sessionTable.start();
+		metrics.register();
+		if (METRICSPORT > 0) {
+			new MetricsEndpoint(metrics, METRICSPORT).start();
+		}
+
+		// With the NIO engine the transfers run on event loops, instead of on a thread each
+		NioEngine engine = null;
+		if (ENGINE.equals("nio")) {
+			engine = new NioEngine(this, NIOTHREADS);
+			engine.start();
+		}
+
+		// With more than one listener, every listener binds its own socket to the port with SO_REUSEPORT and the kernel
+		// spreads the requests over them, so that the requests are no longer received and parsed by a single thread
+		int listeners = LISTENERS;
+		SocketOption<Boolean> reusePort = getReusePortOption();
+		if (listeners > 1 && reusePort == null) {
+			AccessLog.warn("SO_REUSEPORT is not supported (it requires JDK 9 or later on Linux, macOS or BSD), using one listener");
+			listeners = 1;
+		}
+		DatagramSocket[] sockets = new DatagramSocket[listeners];
+		for (int i = 0; i < listeners; i++) {
+			sockets[i] = openListener((listeners > 1) ? reusePort : null);
+		}
+		AccessLog.info("Listening at port %d for new requests with %d listener(s)", TFTPPORT, listeners);
+
+		// Every listener has its own receive buffer and, with the thread engine, its own share of the executor.
+		// The last listener runs on this thread
+		for (int i = 0; i < listeners; i++) {
+			final DatagramSocket socket = sockets[i];
+			final ExecutorService listenerExecutor = (engine == null) ? createExecutor(listeners) : null;
+			final NioEngine listenerEngine = engine;
+			if (i == listeners - 1) {
+				listen(socket, listenerExecutor, listenerEngine);
+				return;
+			}
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					listen(socket, listenerExecutor, listenerEngine);
+				}
+			}, "tftp-listener-" + i);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Creates the executor of one listener. The pool executor is split over the listeners,
+	 * so that --pool-size and --pool-queue stay the limits of the whole server.
+	 */
+	private static ExecutorService createExecutor(int listeners) {
+		return TransferExecutors.create(EXECUTOR, (POOLSIZE + listeners - 1) / listeners, (POOLQUEUE + listeners - 1) / listeners);
+	}
 
-		System.out.printf("Listening at port %d for new requests\n", TFTPPORT);
+	/**
+	 * Binds a socket to the request port.
+	 * @param reusePort the SO_REUSEPORT option, which is set so that other listeners can bind the same port, or null
+	 * @return the socket of the listener
+	 */
+	private static DatagramSocket openListener(SocketOption<Boolean> reusePort) throws IOException {
+		SocketAddress localBindPoint = new InetSocketAddress(TFTPPORT);
+		if (reusePort == null) {
+			DatagramSocket socket = new DatagramSocket(null);
+			socket.bind(localBindPoint);
+			return socket;
+		}
+		// The option can only be set through the DatagramChannel, whose blocking socket adaptor is used to receive
+		DatagramChannel channel = DatagramChannel.open();
+		channel.setOption(reusePort, true);
+		channel.bind(localBindPoint);
+		return channel.socket();
+	}
+
+	/**
+	 * StandardSocketOptions.SO_REUSEPORT is looked up at runtime, so that the server still compiles and runs on JDK 8.
+	 * @return the option, or null if the JDK or the platform does not support it
+	 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> getReusePortOption() {
+		try {
+			SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+			try (DatagramChannel channel = DatagramChannel.open()) {
+				return channel.supportedOptions().contains(option) ? option : null;
+			}
+		} catch (ReflectiveOperationException | IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Receives and starts the requests of one listener socket, forever.
+	 * Requests of the same client address and port always arrive at the same listener, as the kernel chooses
+	 * the listener by the addresses of the packet, so a repeated request is seen by the listener of the first.
+	 * @param socket the socket of the listener
+	 * @param executor the executor of the transfers of the thread engine, or null
+	 * @param engine the NIO engine, or null
+	 */
+	private void listen(DatagramSocket socket, ExecutorService executor, NioEngine engine) {
+		byte[] buf= new byte[TFTPUtils.BUFSIZE];
 
 		// Loop to handle client requests 
 		while (true) 
@@ -67,41 +528,109 @@ public class TFTPServer
 				continue;
 
 			final StringBuffer requestedFile= new StringBuffer();
-			final int reqtype = ParseRQ(buf, requestedFile);
+			final TFTPOptions options = new TFTPOptions();
+			final int reqtype = ParseRQ(buf, requestedFile, options);
+			options.negotiate(reqtype);
+
+			// A repeated request of a client that already has a transfer of the file is dropped,
+			// its transfer retransmits the first packet instead
+			if (sessionTable.isDuplicate(clientAddress, reqtype, requestedFile.toString())) {
+				AccessLog.debug("Dropped a repeated request from %s", clientAddress);
+				metrics.duplicateRequest();
+				continue;
+			}
+			final TFTPMetrics.Session session = metrics.startSession(reqtype, clientAddress, requestedFile.toString());
+			sessionTable.add(clientAddress, reqtype, requestedFile.toString(), session);
+
+			Runnable start = () -> startTransfer(socket, clientAddress, requestedFile, reqtype, options, session, executor, engine);
+			if (admission == null) {
+				start.run();
+			} else {
+				admission.admit(new AdmissionControl.Request(session, start, () -> sendBusy(socket, clientAddress, session)));
+			}
+		}
+	}
+
+	/**
+	 * Starts the transfer of a request, as a multicast read, on the NIO engine or on the executor.
+	 * @param socket the socket of the listener which received the request
+	 */
+	private void startTransfer(DatagramSocket socket, final InetSocketAddress clientAddress, final StringBuffer requestedFile,
+			final int reqtype, final TFTPOptions options, final TFTPMetrics.Session session, ExecutorService executor, NioEngine engine)
+	{
+		// A multicast read joins the transfer of the file that is already multicast, otherwise it starts one.
+		// Files that can not be multicast are sent as a unicast read instead
+		if (options.isMulticast() && multicast.join(clientAddress, requestedFile.toString(), options, session)) {
+			return;
+		}
 
-			new Thread() 
+		// Read requests open their file through the content source, by the requested name
+		if (engine != null) {
+			if (reqtype == TFTPUtils.OP_WRQ) {
+				requestedFile.insert(0, WRITEDIR);
+			}
+			engine.submit(clientAddress, requestedFile.toString(), reqtype, options, session);
+			return;
+		}
+
+		Runnable transfer = new Runnable() 
+		{
+			public void run() 
 			{
-				public void run() 
+				try 
 				{
-					try 
-					{
-						DatagramSocket sendSocket= new DatagramSocket(0);
-
-						// Connect to client
-						sendSocket.connect(clientAddress);						
-						
-						System.out.printf("%s request for %s from %s using port %d\n",
-								(reqtype == TFTPUtils.OP_RRQ)?"Read":"Write",
-								clientAddress.getHostName(), clientAddress.getAddress(), clientAddress.getPort());  
-								
-						// Read request
-						if (reqtype == TFTPUtils.OP_RRQ) 
-						{      
-							requestedFile.insert(0, READDIR);
-							HandleRQ(sendSocket, requestedFile.toString(), TFTPUtils.OP_RRQ);
-						}
-						// Write request
-						else 
-						{                       
-							requestedFile.insert(0, WRITEDIR);
-							HandleRQ(sendSocket,requestedFile.toString(), reqtype);  
-						}
-						sendSocket.close();
-					} 
-					catch (SocketException e) 
-						{e.printStackTrace();}
-				}
-			}.start();
+					DatagramSocket sendSocket= new DatagramSocket(0);
+
+					// Connect to client
+					sendSocket.connect(clientAddress);						
+					
+					// The client is only known by its address, a reverse DNS lookup would delay the first block
+					AccessLog.debug("%s request for %s from %s using port %d",
+							(reqtype == TFTPUtils.OP_RRQ)?"Read":"Write",
+							requestedFile.toString(), clientAddress.getAddress().getHostAddress(), clientAddress.getPort());
+
+					// Read request
+					if (reqtype == TFTPUtils.OP_RRQ) 
+					{      
+						HandleRQ(sendSocket, requestedFile.toString(), TFTPUtils.OP_RRQ, options, session);
+					}
+					// Write request
+					else 
+					{                       
+						requestedFile.insert(0, WRITEDIR);
+						HandleRQ(sendSocket,requestedFile.toString(), reqtype, options, session);  
+					}
+					sendSocket.close();
+				} 
+				catch (SocketException e) 
+					{AccessLog.error("Could not open the socket of a transfer: %s", e);}
+				finally
+					{session.end(false);}
+			}
+		};
+
+		try {
+			executor.execute(transfer);
+		} catch (RejectedExecutionException e) {
+			// Every thread of the pool is busy and the queue is full, let the client try again later
+			AccessLog.warn("Request from %s was rejected, the server is busy", clientAddress);
+			sendBusy(socket, clientAddress, session);
+		}
+	}
+
+	/**
+	 * Answers a request that can not be served now with a "Server is busy" error, so that the client tries again later.
+	 * @param socket the socket of the listener which received the request
+	 */
+	private void sendBusy(DatagramSocket socket, InetSocketAddress clientAddress, TFTPMetrics.Session session) {
+		DatagramPacket errP = new ErrorPacket(TFTPUtils.ErrorState.Undefined, new IOException("Server is busy")).getErrorDatagramPacket();
+		session.error(TFTPUtils.ErrorState.Undefined);
+		session.end(false);
+		errP.setSocketAddress(clientAddress);
+		try {
+			socket.send(errP);
+		} catch (IOException sendError) {
+			AccessLog.warn("Could not send an error to %s: %s", clientAddress, sendError);
 		}
 	}
 	
@@ -115,6 +644,8 @@ public class TFTPServer
 	{
     InetSocketAddress socketAddress = null;
 
+		// Clear the previous request, so that the parsing of options stops at the end of this request
+		Arrays.fill(buf, (byte) 0);
 		// Create datagram packet
 		DatagramPacket p = new DatagramPacket(buf, buf.length);
 		// Receive packet
@@ -128,8 +659,7 @@ public class TFTPServer
 			buf = p.getData();
 
     } catch(IOException e) {
-      System.err.println(e.getMessage());
-      e.printStackTrace();
+      AccessLog.error("Could not receive a request: %s", e);
       socketAddress = null; 
     }
 
@@ -137,28 +667,62 @@ public class TFTPServer
 	}
 
 	/**
-	 * Parses the request in buf to retrieve the type of request and requestedFile
+	 * Parses the request in buf to retrieve the type of request, requestedFile, mode and options
 	 * 
 	 * @param buf (received request)
 	 * @param requestedFile (name of file to read/write)
+	 * @param options (where to store the mode and the requested options)
 	 * @return opcode (request type: RRQ or WRQ)
 	 */
-	private int ParseRQ(byte[] buf, StringBuffer requestedFile) 
+	private int ParseRQ(byte[] buf, StringBuffer requestedFile, TFTPOptions options) 
 	{
 		// See "TFTP Formats" in TFTP specification for the RRQ/WRQ request contents
 		int opcode = TFTPUtils.getOpcode(buf);
    	// Iterating through the bytes in the Request, as each 'section' is divided by a 0 byte
 		// Skip the first 2 bytes (opcode)
-		// | 2 Bytes: OpCode | n bytes: Filename | 0 Byte |
-		// When the 0 byte has been reached, the filename has been retrieved
-		for (int i = 2; i < buf.length; i++) {
+		// | 2 Bytes: OpCode | n bytes: Filename | 0 Byte | n bytes: Mode | 0 Byte | OPT1 | 0 Byte | VALUE1 | 0 Byte | ...
+		int i = readField(buf, 2, requestedFile);
+
+		StringBuffer field = new StringBuffer();
+		i = readField(buf, i, field);
+		if (field.length() > 0) {
+			options.setMode(field.toString());
+		}
+
+		// Options (RFC 2347) are pairs of name and value, an empty name means that the end of the request has been reached
+		StringBuffer value = new StringBuffer();
+		while (i < buf.length) {
+			field.setLength(0);
+			value.setLength(0);
+			i = readField(buf, i, field);
+			i = readField(buf, i, value);
+			if (field.length() == 0) {
+				break;
+			}
+			options.addRequested(field.toString(), value.toString());
+		}
+		return opcode;
+	}
+
+	/**
+	 * Reads a 0 byte terminated field of the request into field.
+	 * 
+	 * @param buf (received request)
+	 * @param offset (position of the first byte in the field)
+	 * @param field (where to store the field)
+	 * @return the position after the terminating 0 byte
+	 */
+	private int readField(byte[] buf, int offset, StringBuffer field) 
+	{
+		int i = offset;
+		for (; i < buf.length; i++) {
 			if (buf[i] == 0) {
 				break;
 			} else {
-				requestedFile.append((char) buf[i]);
+				field.append((char) buf[i]);
 			}
 		}
-		return opcode;
+		return i + 1;
 	}
 
 	/**
@@ -167,32 +731,37 @@ public class TFTPServer
 	 * @param sendSocket (socket used to send/receive packets)
 	 * @param requestedFile (name of file to read/write)
 	 * @param opcode (RRQ or WRQ)
+	 * @param options (the negotiated options for the session)
 	 */
-	private void HandleRQ(DatagramSocket sendSocket, String requestedFile, int opcode) 
+	private void HandleRQ(DatagramSocket sendSocket, String requestedFile, int opcode, TFTPOptions options, TFTPMetrics.Session session) 
 	{	
     boolean result = false;
-    System.out.println("Recieved OPCODE: " + opcode);	
+    // The mode is checked before the file is opened, so that a refused write request does not leave an empty file
+    try {
+      options.checkMode();
+    } catch (IllegalArgumentException e) {
+      AccessLog.debug("%s was thrown", e);
+      send_ERR(sendSocket, e, session);
+      session.end(false);
+      return;
+    }
 		if(opcode == TFTPUtils.OP_RRQ)
 		{
 			// See "TFTP Formats" in TFTP specification for the DATA and ACK packet contents
-			result = send_DATA_receive_ACK(sendSocket, requestedFile);
+			result = send_DATA_receive_ACK(sendSocket, requestedFile, options, session);
 		}
 		else if (opcode == TFTPUtils.OP_WRQ) 
 		{
-			result = receive_DATA_send_ACK(sendSocket, requestedFile);
+			result = receive_DATA_send_ACK(sendSocket, requestedFile, options, session);
 		}
 		else 
 		{
-			System.err.println("Invalid request. Sending an error packet.");
-			send_ERR(sendSocket, new IllegalArgumentException("Invalid Opcode"));
+			AccessLog.debug("Invalid request. Sending an error packet.");
+			send_ERR(sendSocket, new IllegalArgumentException("Invalid Opcode"), session);
+			session.end(false);
 			return;
 		}		
-
-    if (result) {
-      System.out.println("Transmit was successful");
-    } else {
-      System.out.println("Transmit was not successful");
-    }
+    session.end(result);
 	}
 
 
@@ -201,126 +770,296 @@ public class TFTPServer
    * sent file-data package.
    * 
    * @param sendSocket
-   * @param requestedFile
+   * @param requestedFile the requested name, which is opened through the content source
+   * @param options the negotiated options, if any options were accepted an OACK is sent before the first block
    * @return
    */
-	private boolean send_DATA_receive_ACK(DatagramSocket sendSocket, String requestedFile)  {
+	private boolean send_DATA_receive_ACK(DatagramSocket sendSocket, String requestedFile, TFTPOptions options, TFTPMetrics.Session session)  {
     boolean successfullTransmit = false;
     
-    try (FileInputStream fInput = getFileInputStream(requestedFile)) {
-      byte[] databuffer = new byte[TFTPUtils.BUFSIZE - 4];
-      byte[] datablock = null;
-      int blocknbr = 0;
-
-      System.out.println("Recieved request for file: " + requestedFile + " which is: " + fInput.available() + " bytes");
-      
-      do {
-        blocknbr = increaseBlockNumber(blocknbr);
-        datablock = createDatablock(fInput, databuffer);
-
-        DataPacket dPacket = new DataPacket(datablock, blocknbr);
-        DatagramPacket sendP = dPacket.getDatagramPacket();
-
-        sendSocket.send(sendP);
-        boolean isTransmitted = checkAck(sendSocket, blocknbr);
-
-        if(!isTransmitted) {
-          reTransmit(sendSocket, sendP, blocknbr);
-        }
+    try (ContentSource.Content content = contentSource.open(requestedFile, (InetSocketAddress) sendSocket.getRemoteSocketAddress());
+         TransferScheduler.Flow flow = openFlow(sendSocket.getInetAddress(), content.size())) {
+      options.setFileSize(content.size());
+
+      RttEstimator rtt = new RttEstimator(options.getTimeout());
+      AckPacket ack = new AckPacket();
+
+      // When options were accepted, the client acknowledges the OACK with an ACK for block 0 (RFC 2347)
+      if (options.hasAcknowledged()) {
+        DatagramPacket oackP = new OackPacket(options.getAcknowledged()).getDatagramPacket();
+        sendSocket.send(oackP);
+        reTransmit(sendSocket, oackP, 0, rtt, ack, session);
+      }
 
-      } while(datablock.length >= databuffer.length);
+      sendWindowed(sendSocket, content, flow, options, rtt, ack, session);
 
-      System.out.println("Transmission for file: " + requestedFile + " was completed successfully");
       successfullTransmit = true;
 
     } catch (IOException | OutOfMemoryError | IllegalArgumentException  e) {
-      System.err.println(e.toString() + " was thrown");
-      send_ERR(sendSocket, e);
+      AccessLog.debug("%s was thrown", e);
+      send_ERR(sendSocket, e, session);
     }
     return successfullTransmit;
   }
 
   /**
-   * Increases the current blocknumber on the TFTP server
+   * Sends the blocks of a file while keeping up to 'windowsize' unacknowledged blocks in flight (RFC 7440).
+   * With a windowsize of 1 this is the lock-step transfer of RFC 1350.
+   * 
+   * The blocks of the current window are kept, so that an ACK for an earlier block than the last sent one
+   * (a gap at the client) or a timeout rolls the window back to the block after the last acknowledged block.
+   * The timeout is the retransmission timeout of the session, which is measured from the round trips
+   * of the blocks that were only sent once.
+   * 
+   * @param sendSocket the DatagramSocket which the blocks are sent through
+   * @param content the file that shall be sent
+   * @param flow the flow of the transfer in the scheduler, or null if the transfer is not scheduled
+   * @param options the negotiated blocksize and windowsize
+   * @param rtt the round-trip time estimate of the session
+   * @param ack the reusable packet which the ACKs are received into
+   * @param session the metrics of the session
+   * @throws IOException if the file could not be read or the packets could not be sent
+   * @throws SocketException if the client did not acknowledge any block during the retransmissions
    */
-  public int increaseBlockNumber(int currentBlocknum) {
-    currentBlocknum++;
-    // If the blocknumber reached 65535, reset it back to 0
-    if (currentBlocknum > TFTPUtils.MAXBLOCKSIZE) {
-      System.out.println("Maximum blocksize was reached, resetting back to 0");
-      currentBlocknum = 0;
-    }
+  private void sendWindowed(DatagramSocket sendSocket, ContentSource.Content content, TransferScheduler.Flow flow, TFTPOptions options,
+      RttEstimator rtt, AckPacket ack, TFTPMetrics.Session session) throws IOException {
+    int windowsize = options.getWindowsize();
+    // Netascii blocks are encoded in order, octet blocks are read from their position in the file
+    Netascii.Encoder encoder = options.isNetascii() ? new Netascii.Encoder(content) : null;
+    // One reusable packet buffer for every block of the window
+    DataPacket[] window = new DataPacket[windowsize];
+    // When each block of the window was sent, and if it was sent more than once (those are not measured, Karn's rule)
+    long[] sentAt = new long[windowsize];
+    boolean[] resent = new boolean[windowsize];
+    // Blocks are counted from 1 without wrapping, the blocknumber within the packets rolls over after 65535
+    long acked = 0;
+    long next = 1;
+    long sent = 0;
+    long read = 0;
+    long lastBlock = -1;
+    // The block that the window was last rolled back to
+    long rolledBack = 0;
+    int timeouts = TFTPUtils.ALLOWEDTIMEOUTS;
+    TrafficShaper.Client client = shapedClient(sendSocket.getInetAddress());
+    // The time at which the oldest unacknowledged block times out, 0 when no timeout is running
+    long deadline = 0;
+
+    while (lastBlock == -1 || acked < lastBlock) {
+      // Send every block of the window that has not been sent yet
+      while (next <= acked + windowsize && (lastBlock == -1 || next <= lastBlock)) {
+        int slot = (int) ((next - 1) % windowsize);
+        if (next > read) {
+          if (window[slot] == null) {
+            window[slot] = new DataPacket(options.getBlksize());
+          }
+          int dataLength = (encoder != null)
+              ? window[slot].readBlock(encoder, TFTPUtils.toBlocknbr(next, options.getRollover()))
+              : createDatablock(content, window[slot], next, options.getBlksize(), options.getRollover());
+          read = next;
+          if (dataLength < options.getBlksize()) {
+            lastBlock = next;
+          }
+        }
+        shape(flow, client, window[slot].getDataLength(), next <= sent);
+        sendSocket.send(window[slot].getDatagramPacket());
+        if (next > sent) {
+          sentAt[slot] = System.nanoTime();
+          resent[slot] = false;
+          sent = next;
+          session.blockSent(window[slot].getDataLength());
+        } else {
+          resent[slot] = true;
+          session.blockResent(window[slot].getDataLength());
+        }
+        next++;
+      }
+      if (deadline == 0) {
+        deadline = System.currentTimeMillis() + rtt.getRto();
+      }
+
+      int receivedBlocknbr = receiveAck(sendSocket, ack, deadline);
+      if (receivedBlocknbr == -1) {
+        if (timeouts-- == 0) {
+          throw new SocketException("Client could not Acknowledge the packet after retranmissions, ending transfer");
+        }
+        AccessLog.debug("Timeout, resending from packet: #%d", acked + 1);
+        rtt.backoff();
+        next = acked + 1;
+        rolledBack = next;
+        deadline = 0;
+        continue;
+      }
 
-    return currentBlocknum;
+      // ACKs are cumulative, find the sent block that the 16-bit blocknumber refers to
+      long ackedBlock = TFTPUtils.toBlock(receivedBlocknbr, acked, options.getRollover());
+      if (ackedBlock >= next) {
+        continue;
+      }
+      if (ackedBlock > acked) {
+        int slot = (int) ((ackedBlock - 1) % windowsize);
+        if (!resent[slot]) {
+          long rttNanos = System.nanoTime() - sentAt[slot];
+          rtt.sample(rttNanos / 1000000);
+          session.rtt(rttNanos);
+        }
+        acked = ackedBlock;
+        timeouts = TFTPUtils.ALLOWEDTIMEOUTS;
+        deadline = 0;
+      }
+      // The client is missing the blocks after the acknowledged one, roll the window back.
+      // The client acknowledges every block that arrives out of order after a gap, so the window is only
+      // rolled back once for the same gap. A duplicate ACK is ignored for lock-step transfers to avoid
+      // the Sorcerer's Apprentice Syndrome
+      if (windowsize > 1 && acked < next - 1 && acked + 1 != rolledBack) {
+        next = acked + 1;
+        rolledBack = next;
+      }
+    }
   }
+
   	/**
    * Receives data from the client via the DatagramSocket, responds with ack packets for every
    * successful datablock received. Writes a file with the received data when the transmission has concluded.
    *  
    * @param sendSocket the DatagramSocket connection between client and server, in which data is sent/received
    * @param requestedFile the file that shall be received from the socket
+   * @param options the negotiated options, if any options were accepted an OACK is sent instead of the first ACK
+   * @param session the metrics of the session
    * @return true if the transmission concluded successfully, otherwise false
    */
-  private boolean receive_DATA_send_ACK(DatagramSocket sendSocket, String requestedFile) {
+  private boolean receive_DATA_send_ACK(DatagramSocket sendSocket, String requestedFile, TFTPOptions options, TFTPMetrics.Session session) {
     boolean successfullTransmit = false;
     AckPacket ack = new AckPacket(0);
     DataPacket receivedData = new DataPacket();
+    int packetsize = options.getBlksize() + 4;
     
-    // Open a try statement with the FileOutputStream as resource this is to ensure that the FileOutputStream always closes
-    // even if an exception is thrown. Therefore always releasing the requestedFile  
-    try (FileOutputStream fStream = getFileOutputStream(requestedFile)) {
-
-      System.out.println("Ready for receiving data for file: " + requestedFile + " sending ACK");
-      sendSocket.send(ack.getDatagramPacket());
-      System.out.println("Receiving..");
-      do {
-        receivedData.receiveData(sendSocket);
-        writeBytes(fStream, receivedData);
+    // Open a try statement with the staged upload as resource this is to ensure that its FileOutputStream always closes
+    // even if an exception is thrown, and that the staging file of a failed upload is deleted. Therefore always releasing the requestedFile  
+    // An upload with the tsize option allocates its space before the file is created, so that an upload that does not
+    // fit is refused before its first block. The space it has not used is freed when the allocation is closed
+    // When writing behind, the blocks are written by the writer thread and the ACKs do not wait for the disk.
+    // The upload is closed first, which drops the blocks of a failed upload before its file and allocation are closed.
+    // A decoded netascii block can be one byte longer than the blocksize, with the CR of the previous block
+    try (FreeSpaceCheck.Allocation allocation = freeSpace.allocate(options.getTransferSize());
+         StagedUpload staged = getStagedUpload(requestedFile);
+         WriteBehindWriter.Upload upload = (writeBehind != null)
+             ? writeBehind.open(staged.getChannel(), options.getBlksize() + (options.isNetascii() ? 1 : 0), allocation) : null) {
+      FileOutputStream fStream = staged.getOutputStream();
+      // Netascii blocks are decoded before they are written, octet blocks are written as they are
+      Netascii.Decoder decoder = options.isNetascii() ? new Netascii.Decoder(options.getBlksize()) : null;
+
+      // The last sent ACK (or the OACK) is resent when the next block does not arrive within the timeout
+      DatagramPacket lastAckP = options.hasAcknowledged()
+          ? new OackPacket(options.getAcknowledged()).getDatagramPacket() : ack.getDatagramPacket();
+      sendSocket.send(lastAckP);
+      RttEstimator rtt = new RttEstimator(options.getTimeout());
+      long ackSentAt = System.nanoTime();
+      boolean ackResent = false;
+      int timeouts = TFTPUtils.ALLOWEDTIMEOUTS;
+      // Blocks are counted from 1 without wrapping, the blocknumber within the packets rolls over after 65535
+      long received = 0;
+      int expectedBlocknum = 1;
+
+      while (true) {
+        if (!receiveData(sendSocket, receivedData, packetsize, System.currentTimeMillis() + rtt.getRto())) {
+          if (timeouts-- == 0) {
+            throw new SocketException("Client did not send the next block after retranmissions, ending transfer");
+          }
+          AccessLog.debug("Timeout, resending ACK: #%d", TFTPUtils.toBlocknbr(received, options.getRollover()));
+          rtt.backoff();
+          sendSocket.send(lastAckP);
+          ackResent = true;
+          session.retransmitted();
+          continue;
+        }
 
-        int currentblocknum =  TFTPUtils.getBlocknumInt(receivedData.getData());
-        ack = new AckPacket(currentblocknum);
+        int currentblocknum = receivedData.getBlocknbr();
+        if (currentblocknum != expectedBlocknum) {
+          // A duplicate of the previous block means that the client did not receive its ACK
+          if (currentblocknum == TFTPUtils.toBlocknbr(received, options.getRollover())) {
+            sendSocket.send(lastAckP);
+            ackResent = true;
+            session.retransmitted();
+          }
+          continue;
+        }
+        if (!ackResent) {
+          long rttNanos = System.nanoTime() - ackSentAt;
+          rtt.sample(rttNanos / 1000000);
+          session.rtt(rttNanos);
+        }
+        session.blockReceived(receivedData.getDataLength() - 4);
+
+        // The payload after the opCode and blocknumber, or the decoded payload of a netascii block
+        boolean lastData = receivedData.getPacketLength() < packetsize;
+        byte[] data = receivedData.getData();
+        int offset = 4;
+        int length = receivedData.getDataLength() - 4;
+        if (decoder != null) {
+          ByteBuffer decoded = decoder.decode(data, offset, length, lastData);
+          data = decoded.array();
+          offset = 0;
+          length = decoded.limit();
+        }
 
-        sendSocket.send(ack.getDatagramPacket());
+        if (upload == null) {
+          writeBytes(fStream, data, offset, length, allocation);
+        } else {
+          upload.write(data, offset, length);
+          // The last block is acknowledged when every block is on the disk, so that a failed write can still be reported
+          if (lastData) {
+            upload.flush();
+          }
+        }
+        // The last block is acknowledged once the file is on the disk under its requested name
+        if (lastData) {
+          groupCommit.commit(staged);
+        }
 
-      } while(receivedData.getPacketLength() >= (TFTPUtils.BUFSIZE - 4));
+        ack.setBlocknbr(currentblocknum);
+        lastAckP = ack.getDatagramPacket();
+        sendSocket.send(lastAckP);
+        ackSentAt = System.nanoTime();
+        ackResent = false;
+        timeouts = TFTPUtils.ALLOWEDTIMEOUTS;
+        received++;
+        expectedBlocknum = TFTPUtils.toBlocknbr(received + 1, options.getRollover());
+
+        if (receivedData.getPacketLength() < packetsize) {
+          break;
+        }
+      }
 
-      System.out.println("Transmission complete");
       successfullTransmit = true;
 
     } catch(IOException | OutOfMemoryError | IllegalArgumentException e) {
-      System.err.println(e.toString() + " was thrown");
-      send_ERR(sendSocket, e);
+      AccessLog.debug("%s was thrown", e);
+      send_ERR(sendSocket, e, session);
     }
     return successfullTransmit;
   }
 
   /**
-   * Writes the current receieved bytes from a DatagramPacket to a FileOutputStream
+   * Writes received bytes to a FileOutputStream, after reserving their space on the disk
    * 
    * @param fStream the FileOutputStream which the bytes shall be written to
-   * @param recievedP the DatagramPacket which contains the received bytes from the DatagramSocket
+   * @param data the array which contains the bytes
+   * @param offset the position of the bytes in data
+   * @param payloadLength the number of bytes
+   * @param allocation the space allocated for the upload, or null to reserve the space of every block on its own
    * @throws IOException if an Exception/error occured during the writing of bytes.
    */
-  public void writeBytes(FileOutputStream fStream, DataPacket recievedP) throws IOException {
+  public void writeBytes(FileOutputStream fStream, byte[] data, int offset, int payloadLength,
+      FreeSpaceCheck.Allocation allocation) throws IOException {
     try {
 
-      ByteArrayOutputStream bOutputStream = new ByteArrayOutputStream();
-      ByteArrayInputStream  bInputStream = new ByteArrayInputStream(recievedP.getData());
-
-      if (new File(Paths.get("/").toString()).getFreeSpace() < recievedP.getDataLength()) {
-        throw new OutOfMemoryError("There's not enough disk space left for the file");
+      if (allocation != null) {
+        allocation.reserve(payloadLength);
+      } else {
+        freeSpace.reserve(payloadLength);
       }
 
-      // Write each of the bytes (therefore excluding opCode and blocknumber) to a bytearrayoutputstream
-      for (int i = 0; i < recievedP.getDataLength(); i++) {
-        int readbyte = bInputStream.read();
-        if (i >= 4) {
-          bOutputStream.write(readbyte);
-        }
-      }
-      // Turn the bytes into a bytearray and write them to the FileOutputStream
-      byte[] recievedBytes = bOutputStream.toByteArray();
-      fStream.write(recievedBytes);
+      fStream.write(data, offset, payloadLength);
 
     } catch (IOException | OutOfMemoryError error) {
       // If an IOException has occured, throw it to be handled by the send Error method and close the fileStream
@@ -336,33 +1075,12 @@ public class TFTPServer
    * 
    * @param sendSocket the DatagramSocket which the error packet shall be sent through
    * @param error the error/exception which was thrown
+   * @param session the metrics of the session, which records the sent error
    */
-	private void send_ERR(DatagramSocket sendSocket, Throwable error) {
-    TFTPUtils.ErrorState eState = TFTPUtils.ErrorState.Undefined;
-    
-    if (error != null) {   
-      System.out.println("Sending error for: " + error.toString());
-      if ((error instanceof FileNotFoundException) || (error instanceof NoSuchFileException)) {
-  
-        eState = TFTPUtils.ErrorState.FileNotFound;
-        
-      } else if (error instanceof FileAlreadyExistsException) {
-  
-        eState = TFTPUtils.ErrorState.FileExists;
-  
-      } else if (error instanceof IllegalArgumentException) {
-        
-        eState = TFTPUtils.ErrorState.IllegalTFTPOperation;
+	private void send_ERR(DatagramSocket sendSocket, Throwable error, TFTPMetrics.Session session) {
+    TFTPUtils.ErrorState eState = TFTPUtils.getErrorState(error);
+    session.error(eState);
 
-      } else if (error instanceof OutOfMemoryError) {
-
-        eState = TFTPUtils.ErrorState.AllocationExceeded; 
-
-      } else if (error instanceof AccessDeniedException) {
-
-        eState = TFTPUtils.ErrorState.AccessViolation;
-      }
-    }
     // Create the errorpacket containing the error message
     ErrorPacket errorPacket = new ErrorPacket(eState, error);
     DatagramPacket errP = errorPacket.getErrorDatagramPacket();
@@ -372,67 +1090,76 @@ public class TFTPServer
       sendSocket.send(errP);
     } catch (IOException e) {
       // As the error package could not be sent, it is most likely not possible to send another
-      // therefore; print the stacktrace. 
-      e.printStackTrace();
+      AccessLog.debug("Could not send the error: %s", e);
     }
   }
 
 
 
   /**
-   * If a sent packet was not acknowledged, the server will try to retransmit said packet 
+   * Waits for a sent packet to be acknowledged, and retransmits the packet when it was not acknowledged
+   * within the retransmission timeout. The timeout is doubled after every retransmission.
    * It will try to resend the packet for a maximum of 'allowedTimeouts', after which the connection is declared
    * as ended, as the recipient cannot receive any packets.
    * @param sendSocket the DatagramSocket which the packet will be sent through
-   * @param sendP the DatagramPacket that shall be sent
+   * @param sendP the DatagramPacket that has been sent
    * @param blocknbr the current blocknumber
+   * @param rtt the round-trip time estimate of the session
+   * @param ack the reusable packet which the ACKs are received into
+   * @param session the metrics of the session
    * @throws IOException If an error occured while sending the packet
    * @throws SocketException if the Recipient did not acknowledge the sent packet during the retransmissions
    * (SocketException is caught in IOException, however; the distinction is that this SocketException is manually thrown)
    */
-  public void reTransmit(DatagramSocket sendSocket, DatagramPacket sendP, int blocknbr) throws IOException {
-    long deltaTime = System.currentTimeMillis();
+  public void reTransmit(DatagramSocket sendSocket, DatagramPacket sendP, int blocknbr, RttEstimator rtt, AckPacket ack,
+      TFTPMetrics.Session session) throws IOException {
+    long sentAt = System.nanoTime();
+    long deadline = System.currentTimeMillis() + rtt.getRto();
+    boolean resent = false;
     int timeouts = TFTPUtils.ALLOWEDTIMEOUTS;
-    boolean isAck = false;
-    System.out.println("Packet was not acknowledged, retransmitting packet");
-    while(timeouts > 0) {   
-      if (checkAck(sendSocket, blocknbr)) {
-        isAck = true;
+    while (true) {
+      int receivedBlocknbr = receiveAck(sendSocket, ack, deadline);
+      if (receivedBlocknbr == blocknbr) {
+        if (!resent) {
+          long rttNanos = System.nanoTime() - sentAt;
+          rtt.sample(rttNanos / 1000000);
+          session.rtt(rttNanos);
+        }
         return;
-      }      
-      if (System.currentTimeMillis() - deltaTime > TFTPUtils.TIMEOUTLENGTH){
-        System.out.println("Timeout, resending packet: #" + blocknbr);
-        timeouts--;
-        deltaTime = System.currentTimeMillis();
-        
-        sendSocket.send(sendP);
       }
+      // Other ACKs are ignored, the packet is only resent when the timeout has passed
+      if (receivedBlocknbr != -1) {
+        continue;
+      }
+      if (timeouts-- == 0) {
+        throw new SocketException("Client could not Acknowledge the packet after retranmissions, ending transfer");
+      }
+      AccessLog.debug("Timeout, resending packet: #%d", blocknbr);
+      rtt.backoff();
+      sendSocket.send(sendP);
+      resent = true;
+      session.retransmitted();
+      deadline = System.currentTimeMillis() + rtt.getRto();
     }
-    if (!isAck) {
-      throw new SocketException("Client could not Acknowledge the packet after retranmissions, ending transfer");
-    }   
   }
 
   /**
    * Is used to check if a requested file already exists on the server, or that access should be denied.
+   * The upload is written to a staging file, which only gets the requested name when it is committed.
    * 
    * @param requestedFile
-   * @return a FileOutputStream that is able to append bytes on the end of a file, for the requestedFile.
+   * @return the staging file of the upload, for the requestedFile.
    * @throws IOException if an exception is thrown, such as if the requested file already exists
    */
-  public FileOutputStream getFileOutputStream(String requestedFile) throws IOException, OutOfMemoryError {
-    File checkFile = new File(requestedFile);
-
+  public StagedUpload getStagedUpload(String requestedFile) throws IOException, OutOfMemoryError {
     // Check if the requestedFile contains any violations or manual error triggers (ex. trying to get a file that access is denied to)
-    checkFileTFTPErrors(requestedFile);
-
-    if (checkFile.exists()) {
+    if (checkFileTFTPErrors(requestedFile)) {
       throw new FileAlreadyExistsException("File already exists");
     } 
 
-    // If the file did not exist, then return a fileoutputstream that can append bytes to the file
-    //fStream = new FileOutputStream(checkFile, true);
-    return new FileOutputStream(checkFile, true);
+    // If the file did not exist, then return a staging file next to it. Another upload of the same name that finishes
+    // first is only noticed when this upload is committed
+    return new StagedUpload(new File(requestedFile));
   }
   
   /**
@@ -448,102 +1175,215 @@ public class TFTPServer
     File checkFile = new File(requestedFile);
     
     // Check if the requestedFile contains any violations or manual error triggers (ex. trying to get a file that access is denied to)
-    checkFileTFTPErrors(requestedFile);
-
-    if (!checkFile.exists()) {
+    if (!checkFileTFTPErrors(requestedFile)) {
       throw new FileNotFoundException("File does not exist on server");
     }
 
-    return new FileInputStream(checkFile);
+    try {
+      return new FileInputStream(checkFile);
+    } catch (FileNotFoundException e) {
+      // The file was deleted since its metadata was cached
+      if (metadataCache != null) {
+        metadataCache.invalidate(checkFile);
+      }
+      throw e;
+    }
   }
 
-
-  private void checkFileTFTPErrors(String requestedFile) throws IOException, OutOfMemoryError {
-    System.out.println("Checking violations..");
-
-    System.out.println(requestedFile);
+  /**
+   * Checks if the requested file may be accessed, its metadata is taken from the metadata cache when it is enabled.
+   * 
+   * @param requestedFile the file that shall be checked
+   * @return true if the file exists
+   * @throws AccessDeniedException if the file is a directory, hidden or can not be read
+   */
+  private boolean checkFileTFTPErrors(String requestedFile) throws IOException, OutOfMemoryError {
     File checkFile = new File(requestedFile);
     // Hardcoded test to verify that TFTP Error Code 0 works as intented
     if (requestedFile.contains(("TFTP_UNDEFINED_ERROR_0"))) {
-      System.out.println("Undefined test thrown");
       throw new IOException("Test: Undefined error was triggered");
     }
     // Hardcoded test to verify that TFTP Error Code 3 works as intented
     if (requestedFile.contains("TFTP_ALLOCATION_ERROR_3")) {
-      System.out.println("Allocation test thrown");
       // Allocating an array of the maximum value of an integer, resulting in OutOfMemoryError
       byte[] largeArr = new byte[Integer.MAX_VALUE];
     }
 
-    if (checkFile.exists()) {
-      // Deny access if the file is either unable to be read by the server (or a hidden file), or it is a directory
-      if (checkFile.isDirectory() || checkFile.isHidden() || !checkFile.canRead()) {
-        throw new AccessDeniedException("Access was denied for requested file: " + requestedFile);
-      }
+    // Repeated requests of the same file, or of a file that does not exist, are answered from the metadata cache
+    FileMetadataCache.Metadata metadata = (metadataCache != null)
+        ? metadataCache.lookup(checkFile) : FileMetadataCache.Metadata.read(checkFile, 0);
+    // Deny access if the file is either unable to be read by the server (or a hidden file), or it is a directory
+    if (metadata.isDenied()) {
+      throw new AccessDeniedException("Access was denied for requested file: " + requestedFile);
     }
+    return metadata.exists();
   } 
   /**
-   * Tries to receive an ack packet from the DatagramSocket, if a packet is received
-   * it will compare the blocknumber given in the received packet with the blocknumber the TFTPServer currently has
+   * Waits for an ack packet from the DatagramSocket until the deadline. The thread sleeps in the socket
+   * until a packet arrives or the deadline has passed.
    * 
    * @param sendSocket the DatagramSocket to received data from
-   * @param blocknbr the current blocknumber for the TFTPServer
-   * @return true if the received blocknumber matches the TFTPServer blocknumber, otherwise false
+   * @param ack the reusable packet which the ACK is received into
+   * @param deadline the time (System.currentTimeMillis()) at which to stop waiting
+   * @return the blocknumber of the received ack packet, or -1 if no packet was received before the deadline
    * @throws IOException if an exception occured while receiving a packet, it will throw IOException
    */
-  private boolean checkAck(DatagramSocket sendSocket, int blocknbr) throws IOException {
-		boolean acknowledged = false;
-    AckPacket ack = new AckPacket();
+  private int receiveAck(DatagramSocket sendSocket, AckPacket ack, long deadline) throws IOException {
+    while (setDeadline(sendSocket, deadline)) {
+      try {
+        if (ack.receivedAck(sendSocket)) {
+          return ack.getBlocknbr();
+        }
+        // A short packet or another opcode is ignored, like an invalid packet in the NIO engine
+      } catch (SocketTimeoutException e) {
+        return -1;
+      } catch (PortUnreachableException e) {
+        // The error belongs to an earlier packet, the client is given until the deadline to answer
+      }
+    }
+    return -1;
+  }
 
-    try {
-      
-      ack.receivedAck(sendSocket);
+  /**
+   * Waits for a data packet from the DatagramSocket until the deadline.
+   * 
+   * @param sendSocket the DatagramSocket to received data from
+   * @param receivedData the packet which the data is received into
+   * @param packetsize the largest packet that can be received (blocksize + 4 header bytes)
+   * @param deadline the time (System.currentTimeMillis()) at which to stop waiting
+   * @return true if a DATA packet was received, false if none was received before the deadline
+   * @throws IOException if an exception occured while receiving a packet, it will throw IOException
+   */
+  private boolean receiveData(DatagramSocket sendSocket, DataPacket receivedData, int packetsize, long deadline) throws IOException {
+    while (setDeadline(sendSocket, deadline)) {
+      try {
+        if (receivedData.receiveData(sendSocket, packetsize)) {
+          return true;
+        }
+        // A short packet or another opcode is ignored, like an invalid packet in the NIO engine
+      } catch (SocketTimeoutException e) {
+        return false;
+      } catch (PortUnreachableException e) {
+        // The error belongs to an earlier packet, the client is given until the deadline to answer
+      }
+    }
+    return false;
+  }
 
-    } catch(SocketTimeoutException e) {
+  /**
+   * Sets the socket timeout to the time that is left until the deadline.
+   * @return false if the deadline has already passed
+   */
+  private boolean setDeadline(DatagramSocket sendSocket, long deadline) throws SocketException {
+    long remaining = deadline - System.currentTimeMillis();
+    if (remaining <= 0) {
       return false;
     }
+    sendSocket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+    return true;
+  }
 
-    int receivedBlocknbr = TFTPUtils.getBlocknumInt(ack.getAckBlocknumArray());
-    if (receivedBlocknbr == blocknbr) {
-			acknowledged = true;
-		}
+  /**
+	 * Is used to read a block of the file into the reusable buffer of a DataPacket, with a 64-bit position in the file
+	 * so that any block of a file larger than 65535 blocks can be read again for a retransmission
+	 * The blocks are counted from 1, the DataPacket can then be sent through the tftp protocol
+
+	 * @param content the file to read bytes from, on the disk, from the block cache or from another content source
+	 * @param dPacket the DataPacket whose buffer the block is read into
+	 * @param block the number of the block, counted from 1 without wrapping
+	 * @param blksize the blocksize of the session
+	 * @param rollover the blocknumber that follows 65535, 0 or 1
+	 * @return the number of bytes in the block, which is less than the blocksize for the last block
+	 */
+	public int createDatablock(ContentSource.Content content, DataPacket dPacket, long block, int blksize, int rollover) throws IOException {
+    return dPacket.readBlock(content, (block - 1) * blksize, TFTPUtils.toBlocknbr(block, rollover));
+  }
 
-		return acknowledged;
-	}
+  /**
+   * Waits until the scheduler gives the transfer the opportunity to send a DATA packet, and then until the rate
+   * limits let it be sent, only the calling transfer waits.
+   * @param flow the flow of the transfer in the scheduler, or null if the transfer is not scheduled
+   * @param client the client as looked up by shapedClient, or null if only the global limit applies
+   * @param bytes the number of bytes in the block
+   * @param resend if the block was sent before
+   * @throws SocketTimeoutException if the scheduler did not grant the block within TransferScheduler.MAXWAITMILLIS
+   * @throws InterruptedIOException if the thread was interrupted while waiting
+   */
+  public void shape(TransferScheduler.Flow flow, TrafficShaper.Client client, int bytes, boolean resend)
+      throws InterruptedIOException {
+    if (flow != null) {
+      flow.acquire(bytes, resend);
+    }
+    if (shaper == null) {
+      return;
+    }
+    long delay = shaper.reserve(client, bytes);
+    if (delay > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for the rate limit");
+      }
+    }
+  }
 
   /**
-	 * Is used to extract bytes up to the length of the databuffer from the Byteinputstream
-	 * The datablocks-array result can then be sent through the tftp protocol
+   * Looks up the buckets of a client once for a transfer, instead of for every block it shapes.
+   * @param client the address of the client
+   * @return the client for shape, or null if the packets are not rate limited
+   */
+  public TrafficShaper.Client shapedClient(InetAddress client) {
+    return (shaper != null) ? shaper.client(client) : null;
+  }
 
-	 * @param bInputStream the bytearrayinputstream to read bytes from
-	 * @param databuffer the amount of bytes that shall be read
-	 * @return  a bytearray containing bytes up to the size of the given databuffer
-	 * @throws NullPointerException as the datablock is initialized as null, could throw error if not replaced
-	 */
-	private byte[] createDatablock(FileInputStream fileInputStream, byte[] databuffer) throws IOException, NullPointerException {
-    ByteArrayOutputStream bOutputStream = new ByteArrayOutputStream();
-    int readbyte = 0;
-    int bytesRead = 0;
-    byte[] datablock = null;
+  /**
+   * Opens the flow of a read transfer in the scheduler, which the transfer closes when it ends.
+   * @param client the address of the client, or null for a multicast transfer
+   * @param size the size of the file in bytes
+   * @return the flow, or null if the transfers are not scheduled
+   */
+  public TransferScheduler.Flow openFlow(InetAddress client, long size) {
+    return (scheduler != null) ? scheduler.open(client, size) : null;
+  }
 
-    do {
+  /**
+   * @return the rate limits of the DATA packets, or null if there are no limits
+   */
+  public TrafficShaper getShaper() {
+    return shaper;
+  }
 
-      readbyte = fileInputStream.read();
+  /**
+   * @return the writer of uploads, or null if the uploads are written directly
+   */
+  public WriteBehindWriter getWriteBehind() {
+    return writeBehind;
+  }
 
-      // If the read byte is -1, we've reached the end of the bytearrayinputstream 
-      if (readbyte == -1) {
-        break;
-      }
+  public GroupCommit getGroupCommit() {
+    return groupCommit;
+  }
 
-      // Write each read byte into a bytearrayoutputstream
-      bOutputStream.write(readbyte);
-      bytesRead++;
+  public FreeSpaceCheck getFreeSpaceCheck() {
+    return freeSpace;
+  }
 
-    } while(bytesRead < (databuffer.length));
+  public TFTPMetrics getMetrics() {
+    return metrics;
+  }
 
-    // When the bytes have been extracted, retrieve a bytearray from the bytearrayoutputstream
-    datablock = bOutputStream.toByteArray();
+  /**
+   * @return the source that the files of the read requests are opened from
+   */
+  public ContentSource getContentSource() {
+    return contentSource;
+  }
 
-    return datablock;
+  /**
+   * @return the block cache, or null if the cache is disabled
+   */
+  public BlockCache getBlockCache() {
+    return blockCache;
   }
 }
\ No newline at end of file
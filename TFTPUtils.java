@@ -1,6 +1,8 @@
+import java.io.FileNotFoundException;
 import java.net.SocketException;
-import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
 
 public class TFTPUtils {
   public static final int OP_RRQ = 1;
@@ -8,10 +10,19 @@ public class TFTPUtils {
   public static final int OP_DAT = 3;
   public static final int OP_ACK = 4;
   public static final int OP_ERR = 5;
+  public static final int OP_OACK = 6;
   public static final int BUFSIZE = 516;
+  public static final int DEFAULTBLKSIZE = 512;
+  public static final int MINBLKSIZE = 8;
+  public static final int MAXBLKSIZE = 65464;
+  public static final int MAXWINDOWSIZE = 65535;
   public static final int MAXBLOCKSIZE = 65535;
   public static final int TIMEOUTLENGTH = 3000;
   public static final int ALLOWEDTIMEOUTS = 5;
+  // Retransmission timeouts in milliseconds, when the timeout is estimated from the round-trip time
+  public static final int INITIALRTO = 1000;
+  public static final int MINRTO = 200;
+  public static final int MAXRTO = 10000;
 
   /**
    * The Errors which is supported by the TFTP protocol
@@ -20,20 +31,37 @@ public class TFTPUtils {
     Undefined, FileNotFound, AccessViolation, FileExists, IllegalTFTPOperation, AllocationExceeded;
   }
 
-
   /**
-   * Is used to fit an integer value as a short value within a byte array
-   * with the purpose of sending it as a blocknumber within a data/ack packet.
-   *  
-   * @param blocknbr the integer value which shall be converted into a short
-   * @return a bytearray containing the short value of the provided integer
+   * Retrieves the TFTP error that corresponds to a thrown error/exception.
+   * It is possible to retrieve what subclass the Exception/Error is, as Throwable is the superclass to all of them
+   * 
+   * @param error the error/exception which was thrown
+   * @return the matching ErrorState, or Undefined if the error has no corresponding TFTP error
    */
-  public static byte[] createBlocknbrArray(int blocknbr) {
-    byte[] blocknbrs = new byte[2];
-    ByteBuffer wrap = ByteBuffer.wrap(blocknbrs);
-    wrap.putShort((short)blocknbr);
+  public static ErrorState getErrorState(Throwable error) {
+    ErrorState eState = ErrorState.Undefined;
+
+    if ((error instanceof FileNotFoundException) || (error instanceof NoSuchFileException)) {
+
+      eState = ErrorState.FileNotFound;
+
+    } else if (error instanceof FileAlreadyExistsException) {
+
+      eState = ErrorState.FileExists;
+
+    } else if (error instanceof IllegalArgumentException) {
+
+      eState = ErrorState.IllegalTFTPOperation;
+
+    } else if (error instanceof OutOfMemoryError) {
+
+      eState = ErrorState.AllocationExceeded; 
 
-    return blocknbrs;
+    } else if (error instanceof AccessDeniedException) {
+
+      eState = ErrorState.AccessViolation;
+    }
+    return eState;
   }
 
    /**
@@ -56,47 +84,44 @@ public class TFTPUtils {
    * @return the opcode as an integer
    */
 	public static int getOpcode(byte[] packet) {
-		byte[] blocknbrs = new byte[2];
-		blocknbrs[0] = packet[0];
-		blocknbrs[1] = packet[1];
-		
-    // Use the ByteBuffer to get the short value of the two Opcode bytes in the packet
-		ByteBuffer wrap = ByteBuffer.wrap(blocknbrs);
-		short sblocknbr = wrap.getShort();
-
-    // Cast the short value into an Integer and return
-		return (int) sblocknbr;
+    return TFTPCodec.getOpcode(packet);
 	}
 
-   /**
-   * Retrieves an integer value of the current blocknumber within a received Datagram packet's byte array
-   * If the byte array's size is less than 4 (meaning that the actual positions of the blocknumber bytes are not 2 and 3)
-   * Then it will use the two last positions in the recieved byte array as blocknumber.
-   * @param packet
-   * @return
+  /**
+   * Retrieves the 16-bit blocknumber that is sent for a block of a transfer. Blocks are counted from 1 without
+   * wrapping, so that a block of a file larger than 65535 blocks can be found again by its position.
+   * After block 65535 the blocknumber rolls over to the rollover value, 0 or 1 depending on the client.
+   *
+   * @param block the number of the block counted from 1, or 0 for the OACK
+   * @param rollover the blocknumber that follows 65535, 0 or 1
+   * @return the blocknumber from 0 to 65535
    */
-  public static int getBlocknumInt(byte[] packet) {
-    // If the received packet is less than 2 bytes, something went wrong during receiving
-    if (packet.length < 2) {
-      throw new IllegalArgumentException(" Possible Malformed packet. Given packet data has to be more than 1 in size");
+  public static int toBlocknbr(long block, int rollover) {
+    if (block <= MAXBLOCKSIZE) {
+      return (int) block;
     }
+    return (int) (rollover + (block - MAXBLOCKSIZE - 1) % (MAXBLOCKSIZE + 1 - rollover));
+  }
 
-    byte[] blocknbrs;
-    // Create a new array that only contains the blocknumber bytes from the received byte array
-    if (packet.length <= 4) {
-      // As the creation of byte arrays for the DataPacket and AckPacket objects involve byte arrays of length 2
-      // This method should still be able to retrieve an integer value from bytes arrays, as long as they are equal to or more than 2 bytes in size 
-      blocknbrs = Arrays.copyOfRange(packet, packet.length - 2, packet.length);
-    } else {
-      blocknbrs = Arrays.copyOfRange(packet, 2, 4);
+  /**
+   * Retrieves the first block at or after reference that is sent with a blocknumber,
+   * ex. the block that a cumulative ACK refers to when the last acknowledged block is the reference.
+   *
+   * @param blocknbr the received 16-bit blocknumber
+   * @param reference the block to count from
+   * @param rollover the blocknumber that follows 65535, 0 or 1
+   * @return the number of the block, or Long.MAX_VALUE if no block after reference has the blocknumber
+   */
+  public static long toBlock(int blocknbr, long reference, int rollover) {
+    int base = toBlocknbr(reference, rollover);
+    if (blocknbr >= base) {
+      return reference + (blocknbr - base);
     }
-    ByteBuffer wrap = ByteBuffer.wrap(blocknbrs);
-
-    // Get the short value stored on the two byte positions
-    short shortValue =  wrap.getShort();
-    // To turn the value of the short into a value on 16-bits (not signed short)
-    // Set the value in an UnsignedInt, which retrieves an int value with the high values as 0
-    // and the 16-bits of the short as untouched. -> Leading to possible blocknum values from 0 -> 65535
-    return Short.toUnsignedInt(shortValue);
-  } 
+    if (blocknbr < rollover) {
+      // Only the OACK is acknowledged with 0 when the blocknumber rolls over to 1
+      return Long.MAX_VALUE;
+    }
+    // Counting up to 65535 and on from the rollover value
+    return reference + (MAXBLOCKSIZE + 1 - base) + (blocknbr - rollover);
+  }
 }
@@ -0,0 +1,189 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders small files (ex. the boot config of every host) for every request straight into memory, from templates
+ * that are loaded from a directory when the server starts. Requests that no template matches are served by the next
+ * source, ex. the read directory.
+ *
+ * A template is matched by the requested name: a template named "pxelinux.cfg/default" only matches that name, and a
+ * template whose name contains a '*' (ex. "pxelinux.cfg/01-*") matches every name that the '*' can complete. When
+ * several templates match, the one with the longest name is used. These placeholders are replaced when rendering:
+ *   ${name}    the requested name
+ *   ${match}   the part of the name that the '*' matched (ex. the MAC address of "01-aa-bb-cc-dd-ee-ff")
+ *   ${client}  the IP address of the client
+ */
+public class TemplateContentSource implements ContentSource {
+  private static final String[] PLACEHOLDERS = { "${name}", "${match}", "${client}" };
+  private static final int NAME = 0;
+  private static final int MATCH = 1;
+  private static final int CLIENT = 2;
+
+  /**
+   * A template, split into its literal parts and the placeholders between them.
+   */
+  private static final class Template {
+    private final String prefix;
+    private final String suffix;
+    private final List<String> literals = new ArrayList<>();
+    private final List<Integer> placeholders = new ArrayList<>();
+
+    Template(String name, String text) {
+      int star = name.indexOf('*');
+      this.prefix = (star == -1) ? name : name.substring(0, star);
+      this.suffix = (star == -1) ? "" : name.substring(star + 1);
+
+      int start = 0;
+      while (true) {
+        int next = -1;
+        int placeholder = -1;
+        for (int i = 0; i < PLACEHOLDERS.length; i++) {
+          int at = text.indexOf(PLACEHOLDERS[i], start);
+          if (at != -1 && (next == -1 || at < next)) {
+            next = at;
+            placeholder = i;
+          }
+        }
+        if (next == -1) {
+          literals.add(text.substring(start));
+          return;
+        }
+        literals.add(text.substring(start, next));
+        placeholders.add(placeholder);
+        start = next + PLACEHOLDERS[placeholder].length();
+      }
+    }
+
+    /**
+     * @return the length of the literal part of the name, so that the most specific template can be chosen
+     */
+    int specificity() {
+      return prefix.length() + suffix.length();
+    }
+
+    /**
+     * @return the part of the name that the '*' matched, or null if the template does not match the name
+     */
+    String match(String name) {
+      if (name.length() < prefix.length() + suffix.length() || !name.startsWith(prefix) || !name.endsWith(suffix)) {
+        return null;
+      }
+      return name.substring(prefix.length(), name.length() - suffix.length());
+    }
+
+    byte[] render(String name, String match, InetSocketAddress client) {
+      StringBuilder out = new StringBuilder();
+      for (int i = 0; i < placeholders.size(); i++) {
+        out.append(literals.get(i));
+        switch (placeholders.get(i)) {
+          case NAME:
+            out.append(name);
+            break;
+          case MATCH:
+            out.append(match);
+            break;
+          case CLIENT:
+            out.append(client != null ? client.getAddress().getHostAddress() : "");
+            break;
+          default:
+            break;
+        }
+      }
+      out.append(literals.get(literals.size() - 1));
+      return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  // The templates without a '*' by their name, and the templates with a '*' from the most to the least specific
+  private final Map<String, Template> exact = new HashMap<>();
+  private final List<Template> patterns = new ArrayList<>();
+  private final ContentSource next;
+  private final AtomicLong versions = new AtomicLong();
+
+  /**
+   * Loads every template of a directory and its subdirectories, hidden files are left out.
+   *
+   * @param directory the directory of the templates, the names of the templates are relative to it
+   * @param next the source of the requests that no template matches
+   * @throws IOException if a template could not be read
+   */
+  public TemplateContentSource(File directory, ContentSource next) throws IOException {
+    this.next = next;
+    loadDirectory(directory, "");
+    patterns.sort((a, b) -> Integer.compare(b.specificity(), a.specificity()));
+  }
+
+  private void loadDirectory(File directory, String prefix) throws IOException {
+    File[] children = directory.listFiles();
+    if (children == null) {
+      throw new IOException("Could not list the template directory " + directory);
+    }
+    for (File child : children) {
+      if (child.isHidden()) {
+        continue;
+      }
+      String name = prefix + child.getName();
+      if (child.isDirectory()) {
+        loadDirectory(child, name + "/");
+        continue;
+      }
+      Template template = new Template(name, new String(Files.readAllBytes(child.toPath()), StandardCharsets.UTF_8));
+      if (name.indexOf('*') == -1) {
+        exact.put(name, template);
+      } else {
+        patterns.add(template);
+      }
+    }
+  }
+
+  /**
+   * @return the number of loaded templates
+   */
+  public int size() {
+    return exact.size() + patterns.size();
+  }
+
+  @Override
+  public Content open(String name, InetSocketAddress client) throws IOException {
+    return open(name, client, false);
+  }
+
+  /**
+   * Renders a template without waiting, the files that no template matches are opened with openNow of the next source.
+   */
+  @Override
+  public Content openNow(String name, InetSocketAddress client) throws IOException {
+    return open(name, client, true);
+  }
+
+  private Content open(String name, InetSocketAddress client, boolean now) throws IOException {
+    String normalized = MemoryContentSource.normalize(name);
+    Template template = exact.get(normalized);
+    String match = "";
+    if (template == null) {
+      for (Template pattern : patterns) {
+        match = pattern.match(normalized);
+        if (match != null) {
+          template = pattern;
+          break;
+        }
+      }
+    }
+    if (template == null) {
+      return now ? next.openNow(name, client) : next.open(name, client);
+    }
+    // A rendered file can differ for every client, so every rendering is a version of its own
+    // and is never shared with another client (ex. by a multicast transfer)
+    byte[] rendered = template.render(normalized, match, client);
+    return new BufferContent(ByteBuffer.wrap(rendered), versions.incrementAndGet());
+  }
+}
@@ -0,0 +1,130 @@
+import java.util.ArrayDeque;
+
+/**
+ * A hashed timer wheel, used by the event loops of the NioEngine to keep track of retransmission deadlines.
+ *
+ * Time is divided into ticks of 'tickMillis' and every tick maps to one of the slots of the wheel.
+ * Scheduling and cancelling a timeout is O(1), as every slot is a doubly linked list of timeouts.
+ * Timeouts further away than one turn of the wheel stay in their slot until the wheel has come around enough times.
+ *
+ * A TimerWheel is not thread safe, it shall only be used from the thread of its event loop.
+ */
+public class TimerWheel {
+
+  /**
+   * A timeout that can be scheduled on the wheel. The same Timeout can be scheduled again after it has expired,
+   * or rescheduled while it is waiting, which moves it to its new slot.
+   */
+  public static class Timeout {
+    private final Runnable task;
+    private long deadlineTick;
+    private int slot = -1;
+    private Timeout prev;
+    private Timeout next;
+
+    public Timeout(Runnable task) {
+      this.task = task;
+    }
+
+    public boolean isScheduled() {
+      return slot != -1;
+    }
+  }
+
+  private final Timeout[] slots;
+  private final ArrayDeque<Timeout> expired = new ArrayDeque<>();
+  private final long tickMillis;
+  private long tick;
+  private int size;
+
+  /**
+   * @param wheelSize the number of slots in the wheel
+   * @param tickMillis the length of a tick in milliseconds, which is the precision of the timeouts
+   * @param now the current time in milliseconds
+   */
+  public TimerWheel(int wheelSize, long tickMillis, long now) {
+    this.slots = new Timeout[wheelSize];
+    this.tickMillis = tickMillis;
+    this.tick = now / tickMillis;
+  }
+
+  /**
+   * Schedules a timeout to expire at the deadline, if it is already scheduled it is moved to the new deadline.
+   * @param timeout the timeout to schedule
+   * @param deadline the time in milliseconds when the timeout shall expire
+   */
+  public void schedule(Timeout timeout, long deadline) {
+    cancel(timeout);
+    if (size == 0) {
+      // No timeouts are waiting, so there is no reason to walk through the ticks that passed while the wheel was empty
+      tick = Math.max(tick, System.currentTimeMillis() / tickMillis);
+    }
+    // A deadline that already has passed expires on the next tick
+    timeout.deadlineTick = Math.max(deadline / tickMillis, tick + 1);
+    timeout.slot = (int) (timeout.deadlineTick % slots.length);
+
+    timeout.next = slots[timeout.slot];
+    if (timeout.next != null) {
+      timeout.next.prev = timeout;
+    }
+    slots[timeout.slot] = timeout;
+    size++;
+  }
+
+  /**
+   * Removes a timeout from the wheel, nothing happens if the timeout is not scheduled.
+   * @param timeout the timeout to cancel
+   */
+  public void cancel(Timeout timeout) {
+    if (timeout.slot == -1) {
+      return;
+    }
+    if (timeout.prev != null) {
+      timeout.prev.next = timeout.next;
+    } else {
+      slots[timeout.slot] = timeout.next;
+    }
+    if (timeout.next != null) {
+      timeout.next.prev = timeout.prev;
+    }
+    timeout.prev = null;
+    timeout.next = null;
+    timeout.slot = -1;
+    size--;
+  }
+
+  /**
+   * Moves the wheel forward to the current time and runs the tasks of every timeout that has expired.
+   *
+   * @param now the current time in milliseconds
+   * @return the number of milliseconds until the next tick, or 0 if there are no timeouts waiting
+   */
+  public long advance(long now) {
+    long target = now / tickMillis;
+    while (tick < target && size > 0) {
+      tick++;
+      // Collect the expired timeouts before running them, as a task may schedule or cancel timeouts in the same slot
+      Timeout timeout = slots[(int) (tick % slots.length)];
+      while (timeout != null) {
+        Timeout next = timeout.next;
+        if (timeout.deadlineTick <= tick) {
+          cancel(timeout);
+          expired.add(timeout);
+        }
+        timeout = next;
+      }
+      while (!expired.isEmpty()) {
+        expired.poll().task.run();
+      }
+    }
+    if (size == 0) {
+      return 0;
+    }
+    tick = Math.max(tick, target);
+    return Math.max(1, (tick + 1) * tickMillis - now);
+  }
+
+  public int size() {
+    return size;
+  }
+}
@@ -0,0 +1,59 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket, which lets through a number of bytes per second with bursts of up to a number of bytes.
+ *
+ * The bucket is kept as the time at which it would be full again (the "theoretical arrival time" of the generic cell
+ * rate algorithm), instead of as a count of tokens that has to be refilled. Sending n bytes moves that time n bytes
+ * worth of nanoseconds ahead. A sender is never refused: it reserves its bytes with one compareAndSet and is told
+ * how long it has to wait before sending them, so that the sender itself decides how to wait.
+ */
+public class TokenBucket {
+  private final double nanosPerByte;
+  private final long burstNanos;
+  private final AtomicLong fullAt;
+
+  /**
+   * @param bytesPerSecond the rate of the bucket
+   * @param burstBytes the size of the bucket, the number of bytes that can be sent at once after it has been idle
+   */
+  public TokenBucket(long bytesPerSecond, long burstBytes) {
+    this.nanosPerByte = 1e9 / bytesPerSecond;
+    this.burstNanos = (long) (burstBytes * nanosPerByte);
+    this.fullAt = new AtomicLong(System.nanoTime());
+  }
+
+  /**
+   * Takes bytes from the bucket, which may go into debt.
+   * @param bytes the number of bytes to send
+   * @param now the current System.nanoTime()
+   * @return the nanoseconds to wait before the bytes may be sent, 0 if they may be sent right away
+   */
+  public long reserve(int bytes, long now) {
+    long cost = (long) (bytes * nanosPerByte);
+    while (true) {
+      long current = fullAt.get();
+      // A bucket that has been full since before now can not hold more than its burst
+      long next = ((current - now < 0) ? now : current) + cost;
+      if (fullAt.compareAndSet(current, next)) {
+        return Math.max(0, next - now - burstNanos);
+      }
+    }
+  }
+
+  /**
+   * @param now the current System.nanoTime()
+   * @return the nanoseconds until bytes can be sent without waiting, 0 if the bucket is not in debt
+   */
+  public long getDelay(long now) {
+    return Math.max(0, fullAt.get() - now - burstNanos);
+  }
+
+  /**
+   * @param now the current System.nanoTime()
+   * @return true if the bucket is full, so that it can be dropped and created again without any difference
+   */
+  public boolean isFull(long now) {
+    return fullAt.get() - now <= 0;
+  }
+}
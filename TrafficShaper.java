@@ -0,0 +1,183 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the rate at which DATA packets are sent, with a token bucket for all transfers together, one for every
+ * client address and one for every subnet of clients. Each limit is optional.
+ *
+ * A transfer asks for the delay of every block before sending it, and waits that long in its own way: the blocking
+ * engine sleeps on the thread of the transfer, and the NIO engine schedules the rest of the window on its timer wheel.
+ * Other transfers are therefore never blocked, they only share the buckets. The delay of a block is the longest delay
+ * of its buckets, which is also the limit that is counted as the reason of the delay.
+ *
+ * The buckets of clients and subnets are created when needed, and dropped once a second when they are full again.
+ * A transfer looks up the subnet of its client once, so that shaping a block does not allocate.
+ */
+public class TrafficShaper {
+  private static final long SWEEPNANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final TokenBucket global;
+  private final long clientRate;
+  private final long subnetRate;
+  private final long burst;
+  private final int subnetPrefix;
+  private final Map<InetAddress, TokenBucket> clients = new ConcurrentHashMap<>();
+  private final Map<InetAddress, TokenBucket> subnets = new ConcurrentHashMap<>();
+  private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+  private final LongAdder packets = new LongAdder();
+  private final LongAdder delayedByGlobal = new LongAdder();
+  private final LongAdder delayedByClient = new LongAdder();
+  private final LongAdder delayedBySubnet = new LongAdder();
+  private final LongAdder delayNanos = new LongAdder();
+
+  /**
+   * @param globalRate the bytes per second of all transfers together, 0 for no limit
+   * @param clientRate the bytes per second of every client address, 0 for no limit
+   * @param subnetRate the bytes per second of every subnet, 0 for no limit
+   * @param subnetPrefix the prefix length of the IPv4 subnets, IPv6 subnets are /64
+   * @param burst the size of every bucket in bytes
+   */
+  public TrafficShaper(long globalRate, long clientRate, long subnetRate, int subnetPrefix, long burst) {
+    this.global = (globalRate > 0) ? new TokenBucket(globalRate, burst) : null;
+    this.clientRate = clientRate;
+    this.subnetRate = subnetRate;
+    this.subnetPrefix = subnetPrefix;
+    this.burst = burst;
+  }
+
+  /**
+   * The address and the subnet of a client, which a transfer looks up once and then shapes all its blocks with.
+   */
+  public static final class Client {
+    private final InetAddress address;
+    private final InetAddress subnet;
+
+    private Client(InetAddress address, InetAddress subnet) {
+      this.address = address;
+      this.subnet = subnet;
+    }
+  }
+
+  /**
+   * @param address the address of the client
+   * @return the client, for every block of a transfer to that client
+   */
+  public Client client(InetAddress address) {
+    return new Client(address, (subnetRate > 0) ? getSubnet(address) : null);
+  }
+
+  /**
+   * Takes the bytes of a packet from the buckets of the client.
+   * @param client the client of the transfer, or null to only use the global limit (ex. for multicast)
+   * @param bytes the number of bytes in the packet
+   * @return the nanoseconds to wait before sending the packet
+   */
+  public long reserve(Client client, int bytes) {
+    long now = System.nanoTime();
+    packets.increment();
+    long globalDelay = (global != null) ? global.reserve(bytes, now) : 0;
+    long clientDelay = 0;
+    long subnetDelay = 0;
+    if (client != null) {
+      if (clientRate > 0) {
+        clientDelay = getBucket(clients, client.address, clientRate).reserve(bytes, now);
+      }
+      if (subnetRate > 0) {
+        subnetDelay = getBucket(subnets, client.subnet, subnetRate).reserve(bytes, now);
+      }
+    }
+    sweep(now);
+
+    long delay = Math.max(globalDelay, Math.max(clientDelay, subnetDelay));
+    if (delay > 0) {
+      delayNanos.add(delay);
+      if (delay == clientDelay) {
+        delayedByClient.increment();
+      } else if (delay == subnetDelay) {
+        delayedBySubnet.increment();
+      } else {
+        delayedByGlobal.increment();
+      }
+    }
+    return delay;
+  }
+
+  private TokenBucket getBucket(Map<InetAddress, TokenBucket> buckets, InetAddress address, long rate) {
+    TokenBucket bucket = buckets.get(address);
+    if (bucket == null) {
+      bucket = buckets.computeIfAbsent(address, a -> new TokenBucket(rate, burst));
+    }
+    return bucket;
+  }
+
+  /**
+   * @return the address with every bit after the prefix of the subnet cleared
+   */
+  private InetAddress getSubnet(InetAddress client) {
+    byte[] address = client.getAddress();
+    int prefix = (client instanceof Inet4Address) ? subnetPrefix : 64;
+    for (int i = 0; i < address.length; i++) {
+      int bits = Math.max(0, Math.min(8, prefix - i * 8));
+      address[i] &= (byte) (0xFF00 >> bits);
+    }
+    try {
+      return InetAddress.getByAddress(address);
+    } catch (UnknownHostException e) {
+      // Can not happen, the address has the length of an IPv4 or IPv6 address
+      return client;
+    }
+  }
+
+  /**
+   * Drops the buckets that are full, at most once a second. Only the thread that wins the compareAndSet sweeps.
+   */
+  private void sweep(long now) {
+    long last = lastSweep.get();
+    if (now - last < SWEEPNANOS || !lastSweep.compareAndSet(last, now)) {
+      return;
+    }
+    removeFull(clients, now);
+    removeFull(subnets, now);
+  }
+
+  private static void removeFull(Map<InetAddress, TokenBucket> buckets, long now) {
+    for (Map.Entry<InetAddress, TokenBucket> entry : buckets.entrySet()) {
+      if (entry.getValue().isFull(now)) {
+        buckets.remove(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * @return the number of packets that have been shaped
+   */
+  public long getPackets() {
+    return packets.sum();
+  }
+
+  public long getDelayedByGlobal() {
+    return delayedByGlobal.sum();
+  }
+
+  public long getDelayedByClient() {
+    return delayedByClient.sum();
+  }
+
+  public long getDelayedBySubnet() {
+    return delayedBySubnet.sum();
+  }
+
+  /**
+   * @return the total time that packets have waited for the buckets, in microseconds
+   */
+  public long getDelayMicros() {
+    return delayNanos.sum() / 1000;
+  }
+}
@@ -0,0 +1,76 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the ExecutorService that runs the transfers of the blocking engine.
+ *
+ * - "thread": a new platform thread for every transfer (threads are reused when idle), without any limit.
+ * - "virtual": a new virtual thread for every transfer, requires JDK 21 or later.
+ * - "pool": a bounded pool of platform threads with a bounded queue, for a hard cap on threads on any JDK.
+ */
+public class TransferExecutors {
+
+  private TransferExecutors() {}
+
+  /**
+   * @param mode thread, virtual or pool
+   * @param poolSize the number of threads in the pool (only used by "pool")
+   * @param queueLimit the number of transfers that may wait for a thread in the pool (only used by "pool")
+   * @return the ExecutorService for the mode
+   * @throws IllegalArgumentException if the mode is unknown
+   */
+  public static ExecutorService create(String mode, int poolSize, int queueLimit) {
+    switch (mode) {
+      case "thread":
+        return Executors.newCachedThreadPool(namedThreads("tftp-transfer-"));
+      case "virtual":
+        ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+        if (virtual != null) {
+          return virtual;
+        }
+        AccessLog.warn("Virtual threads require JDK 21 or later, using a pool of %d threads instead", poolSize);
+        return newBoundedPool(poolSize, queueLimit);
+      case "pool":
+        return newBoundedPool(poolSize, queueLimit);
+      default:
+        throw new IllegalArgumentException("Unknown executor: " + mode);
+    }
+  }
+
+  /**
+   * Creates a pool with a fixed number of threads and a bounded queue. When both the threads and the queue are busy,
+   * the pool throws RejectedExecutionException so that the request can be refused instead of waiting without limit.
+   */
+  private static ExecutorService newBoundedPool(int poolSize, int queueLimit) {
+    return new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueLimit), namedThreads("tftp-pool-"), new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  /**
+   * Executors.newVirtualThreadPerTaskExecutor() is looked up at runtime, so that the server still compiles and runs on JDK 8.
+   * @return the executor, or null if the JDK does not support virtual threads
+   */
+  private static ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  private static ThreadFactory namedThreads(final String prefix) {
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        return new Thread(r, prefix + count.incrementAndGet());
+      }
+    };
+  }
+}
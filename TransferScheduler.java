@@ -0,0 +1,425 @@
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Divides the bandwidth of the global rate limit between the read transfers by a policy. Without a scheduler every
+ * transfer takes its blocks from the global bucket as soon as it is ready, so a 5 KB boot loader shares the bandwidth
+ * equally with every image that is downloaded at the same time. With a scheduler a transfer asks for a send
+ * opportunity before every block, and a dedicated thread hands the opportunities out one block at a time, whenever
+ * the bandwidth allows another block, to the waiting transfer that the policy prefers:
+ *   FIFO  the transfer that started first, so transfers finish in the order they were requested
+ *   SRPT  the transfer with the fewest bytes left to send (shortest remaining processing time), which gets small
+ *         files through first. Large transfers only get the bandwidth that the small ones leave unused
+ *   WFQ   the client that is furthest behind its share of the bandwidth (weighted fair queuing, self-clocked),
+ *         so that every client gets the same share, or a share by its weight, no matter how many files it reads
+ *
+ * The scheduler is work conserving: a transfer that waits for its ACKs does not ask for an opportunity,
+ * and the bandwidth goes to the next transfer in the order of the policy. A block that is sent again takes its
+ * bandwidth, but does not count against the bytes that SRPT has left to send, so that a lossy large transfer
+ * does not overtake the small ones.
+ *
+ * A policy can pass over a transfer for as long as others are preferred (ex. a large file under SRPT while small
+ * files keep arriving). A transfer that waits longer than MAXWAITMILLIS for a block is ended, as if its client had
+ * stopped answering, so that it does not hold its file and its session forever.
+ */
+public class TransferScheduler implements Runnable {
+  // The longest that a transfer waits for the opportunity to send a block, as long as the retransmissions of a client
+  public static final long MAXWAITMILLIS = (long) TFTPUtils.ALLOWEDTIMEOUTS * TFTPUtils.TIMEOUTLENGTH;
+
+  public enum Policy {
+    FIFO, SRPT, WFQ;
+
+    /**
+     * @throws IllegalArgumentException if the name is not a policy
+     */
+    public static Policy parse(String name) {
+      return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+  }
+
+  /**
+   * The weight of the clients in an address range, for WFQ.
+   */
+  public static final class Weight {
+    private final byte[] network;
+    private final int prefix;
+    private final int weight;
+
+    Weight(InetAddress network, int prefix, int weight) {
+      this.network = network.getAddress();
+      this.prefix = prefix;
+      this.weight = weight;
+    }
+
+    boolean matches(byte[] address) {
+      if (address.length != network.length) {
+        return false;
+      }
+      for (int i = 0; i < address.length; i++) {
+        int bits = Math.max(0, Math.min(8, prefix - i * 8));
+        int mask = (0xFF00 >> bits) & 0xFF;
+        if ((address[i] & mask) != (network[i] & mask)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Parses the weights of clients, in the format of: address[/prefix]=weight,...
+   * @throws IllegalArgumentException if the weights are not in that format
+   */
+  public static List<Weight> parseWeights(String value) {
+    List<Weight> weights = new ArrayList<>();
+    for (String entry : value.split(",")) {
+      String[] parts = entry.split("=", 2);
+      if (parts.length != 2) {
+        throw new IllegalArgumentException("A client weight has to be in the format of address[/prefix]=weight: " + entry);
+      }
+      String[] range = parts[0].split("/", 2);
+      try {
+        InetAddress network = InetAddress.getByName(range[0]);
+        int bits = network.getAddress().length * 8;
+        int prefix = (range.length == 2) ? Integer.parseInt(range[1]) : bits;
+        int weight = Integer.parseInt(parts[1]);
+        if (prefix < 0 || prefix > bits || weight < 1) {
+          throw new IllegalArgumentException("A client weight needs a prefix of 0 to " + bits + " and a weight of at least 1: " + entry);
+        }
+        weights.add(new Weight(network, prefix, weight));
+      } catch (UnknownHostException | NumberFormatException e) {
+        throw new IllegalArgumentException("A client weight has to be in the format of address[/prefix]=weight: " + entry);
+      }
+    }
+    // The longest prefix that matches a client is its weight
+    weights.sort(Comparator.comparingInt((Weight w) -> w.prefix).reversed());
+    return weights;
+  }
+
+  /**
+   * The state of a client under WFQ, which lives as long as the client has open flows.
+   */
+  private static final class Client {
+    private final int weight;
+    private int flows = 0;
+    // The virtual time at which the last queued block of the client is finished
+    private double lastFinish = 0;
+
+    Client(int weight) {
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * A request for the opportunity to send a block.
+   */
+  private static final class Request {
+    private final Flow flow;
+    private final int bytes;
+    private final boolean resend;
+    private final Runnable granted;
+    private final long queuedAt = System.nanoTime();
+    // The order of the request within the policy, and the order of arrival between requests of the same priority
+    private final double priority;
+    private final long sequence;
+    private boolean done = false;
+
+    Request(Flow flow, int bytes, boolean resend, Runnable granted, double priority, long sequence) {
+      this.flow = flow;
+      this.bytes = bytes;
+      this.resend = resend;
+      this.granted = granted;
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    void grant() {
+      if (granted != null) {
+        granted.run();
+        return;
+      }
+      synchronized (this) {
+        done = true;
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * The send opportunities of one transfer. Is used by a single transfer, which asks for one block at a time.
+   */
+  public final class Flow implements AutoCloseable {
+    private final InetAddress address;
+    private final Client client;
+    private final long arrival;
+    // The bytes of the file that have not been granted for the first time yet, guarded by the lock of the scheduler
+    private long remaining;
+    private Request pending;
+    private boolean closed = false;
+
+    private Flow(InetAddress address, Client client, long size) {
+      this.address = address;
+      this.client = client;
+      this.arrival = sequence.getAndIncrement();
+      this.remaining = size;
+    }
+
+    /**
+     * Waits for the opportunity to send a block, for at most MAXWAITMILLIS. Is used by the blocking engine.
+     * @param bytes the number of bytes in the block
+     * @param resend if the block was sent before
+     * @throws SocketTimeoutException if the block was not granted in time, the flow is then closed
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    public void acquire(int bytes, boolean resend) throws InterruptedIOException {
+      Request request = enqueue(this, bytes, resend, null);
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAXWAITMILLIS);
+      boolean done;
+      try {
+        synchronized (request) {
+          long left;
+          while (!request.done && (left = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(request, left);
+          }
+          done = request.done;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        close();
+        throw new InterruptedIOException("Interrupted while waiting for the scheduler");
+      }
+      if (!done) {
+        close();
+        throw new SocketTimeoutException("The scheduler did not grant the next block in time, ending transfer");
+      }
+    }
+
+    /**
+     * Asks for the opportunity to send a block, without waiting for it. Is used by the NIO engine,
+     * which ends the transfer itself when the block is not granted within MAXWAITMILLIS.
+     * @param bytes the number of bytes in the block
+     * @param resend if the block was sent before
+     * @param granted is run on the scheduler thread when the block may be sent
+     */
+    public void request(int bytes, boolean resend, Runnable granted) {
+      enqueue(this, bytes, resend, granted);
+    }
+
+    /**
+     * Ends the flow, a block it is still waiting for is never granted.
+     */
+    @Override
+    public void close() {
+      lock.lock();
+      try {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        if (pending != null) {
+          waiting.remove(pending);
+          pending = null;
+        }
+        if (--client.flows == 0) {
+          clients.remove(address);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private final Policy policy;
+  private final TokenBucket link;
+  private final List<Weight> weights;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final PriorityQueue<Request> waiting = new PriorityQueue<>(
+      Comparator.comparingDouble((Request r) -> r.priority).thenComparingLong(r -> r.sequence));
+  // Guarded by the lock, the clients of the open flows by their address (null for multicast transfers)
+  private final Map<InetAddress, Client> clients = new HashMap<>();
+  private final AtomicLong sequence = new AtomicLong();
+  // The virtual time of WFQ, the finish time of the last granted block, guarded by the lock
+  private double virtualTime = 0;
+
+  private final LongAdder grants = new LongAdder();
+  private final Histogram waitMicros = new Histogram();
+
+  /**
+   * @param policy the order in which the send opportunities are handed out
+   * @param bytesPerSecond the bandwidth that is divided between the transfers
+   * @param burst the number of bytes that can be sent at once after the bandwidth has been idle
+   * @param weights the weights of the clients for WFQ, clients that no weight matches have a weight of 1
+   */
+  public TransferScheduler(Policy policy, long bytesPerSecond, long burst, List<Weight> weights) {
+    this.policy = policy;
+    this.link = new TokenBucket(bytesPerSecond, burst);
+    this.weights = (weights != null) ? weights : Collections.<Weight>emptyList();
+  }
+
+  /**
+   * Starts the scheduler thread.
+   */
+  public void start() {
+    Thread thread = new Thread(this, "tftp-scheduler");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Opens the flow of a transfer, which has to be closed when the transfer ends.
+   *
+   * @param client the address of the client, or null for a multicast transfer
+   * @param size the size of the file in bytes
+   * @return the flow of the transfer
+   */
+  public Flow open(InetAddress client, long size) {
+    lock.lock();
+    try {
+      Client state = clients.get(client);
+      if (state == null) {
+        state = new Client(weightOf(client));
+        clients.put(client, state);
+      }
+      state.flows++;
+      return new Flow(client, state, size);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private int weightOf(InetAddress client) {
+    if (client == null) {
+      return 1;
+    }
+    byte[] address = client.getAddress();
+    for (Weight weight : weights) {
+      if (weight.matches(address)) {
+        return weight.weight;
+      }
+    }
+    return 1;
+  }
+
+  private Request enqueue(Flow flow, int bytes, boolean resend, Runnable granted) {
+    lock.lock();
+    try {
+      double priority;
+      switch (policy) {
+        case SRPT:
+          priority = flow.remaining;
+          break;
+        case WFQ:
+          // A client that was idle starts from the current virtual time, instead of from its old finish time
+          double start = Math.max(virtualTime, flow.client.lastFinish);
+          priority = start + (double) bytes / flow.client.weight;
+          flow.client.lastFinish = priority;
+          break;
+        default:
+          priority = flow.arrival;
+          break;
+      }
+      Request request = new Request(flow, bytes, resend, granted, priority, sequence.getAndIncrement());
+      if (flow.closed) {
+        // A closed flow is never granted another block, a waiting transfer is let go instead
+        request.done = true;
+      } else {
+        flow.pending = request;
+        waiting.add(request);
+        notEmpty.signal();
+      }
+      return request;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        // Waits until the bandwidth allows another block, before choosing the block, so that a transfer
+        // that asks in the meantime is still chosen by the policy
+        long delay = link.getDelay(System.nanoTime());
+        if (delay > 0) {
+          LockSupport.parkNanos(delay);
+          continue;
+        }
+
+        Request request;
+        lock.lock();
+        try {
+          while (waiting.isEmpty()) {
+            notEmpty.await();
+          }
+          request = waiting.poll();
+          request.flow.pending = null;
+          if (!request.resend) {
+            request.flow.remaining = Math.max(0, request.flow.remaining - request.bytes);
+          }
+          if (policy == Policy.WFQ) {
+            virtualTime = request.priority;
+          }
+        } finally {
+          lock.unlock();
+        }
+
+        link.reserve(request.bytes, System.nanoTime());
+        grants.increment();
+        waitMicros.record((System.nanoTime() - request.queuedAt) / 1000);
+        request.grant();
+      } catch (InterruptedException e) {
+        return;
+      } catch (RuntimeException e) {
+        // The scheduler has to survive, as every scheduled transfer would otherwise stall
+        AccessLog.error("Scheduler error: %s", e);
+      }
+    }
+  }
+
+  public Policy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * @return the number of blocks that were granted
+   */
+  public long getGrants() {
+    return grants.sum();
+  }
+
+  /**
+   * @return the number of blocks that wait for a send opportunity
+   */
+  public int getWaiting() {
+    lock.lock();
+    try {
+      return waiting.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the time that the blocks waited for their send opportunity
+   */
+  public Histogram getWaitMicros() {
+    return waitMicros;
+  }
+}
@@ -0,0 +1,334 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the received blocks of uploads (WRQ) to the disk on a dedicated writer thread,
+ * so that the transfers can acknowledge a block without waiting for the disk.
+ *
+ * Every upload has a fixed pool of buffers, a received block is copied into a free buffer and queued for the writer.
+ * When all buffers of an upload are queued the upload has to wait for the writer, which bounds the memory
+ * that the queue can hold. The NIO engine does not wait, it is called back by the writer instead.
+ * The writer takes every queued block at once and writes the consecutive blocks of the same upload with one
+ * gathering FileChannel write.
+ */
+public class WriteBehindWriter implements Runnable {
+  // The largest number of blocks that the writer takes from the queue at once
+  private static final int MAXBATCH = 256;
+
+  private final LinkedBlockingQueue<Block> queue = new LinkedBlockingQueue<>();
+  private final int buffersPerUpload;
+  private final ByteBuffer[] gather = new ByteBuffer[MAXBATCH];
+  private final List<Block> batch = new ArrayList<>(MAXBATCH);
+
+  /**
+   * A pooled buffer of an upload.
+   */
+  private static final class Block {
+    private final Upload upload;
+    private final ByteBuffer buffer;
+
+    Block(Upload upload, int blksize) {
+      this.upload = upload;
+      this.buffer = ByteBuffer.allocate(blksize);
+    }
+  }
+
+  /**
+   * An upload that is written by the writer. Is used by a single transfer.
+   */
+  public final class Upload implements AutoCloseable {
+    private final FileChannel fileChannel;
+    private final FreeSpaceCheck.Allocation allocation;
+    private final ArrayBlockingQueue<Block> free;
+    private final AtomicInteger queued = new AtomicInteger();
+    private volatile Throwable error;
+    private volatile boolean aborted = false;
+    // Are run by the writer when a buffer is free again, and when every queued block has been written
+    private Runnable freed;
+    private Runnable flushed;
+
+    private Upload(FileChannel fileChannel, int blksize, FreeSpaceCheck.Allocation allocation) {
+      this.fileChannel = fileChannel;
+      this.allocation = allocation;
+      this.free = new ArrayBlockingQueue<>(buffersPerUpload);
+      for (int i = 0; i < buffersPerUpload; i++) {
+        free.add(new Block(this, blksize));
+      }
+    }
+
+    /**
+     * Queues a block to be written, waits for a free buffer if every buffer of the upload is queued.
+     *
+     * @param data the array containing the block
+     * @param offset the position of the block in data
+     * @param length the length of the block
+     * @throws IOException if an earlier block could not be written
+     * @throws OutOfMemoryError if an earlier block did not fit on the disk
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+      checkError();
+      Block block = takeFree();
+      block.buffer.clear();
+      block.buffer.put(data, offset, length);
+      queue(block);
+    }
+
+    /**
+     * Queues the remaining bytes of data to be written, waits for a free buffer if every buffer of the upload is queued.
+     *
+     * @param data the block, which is consumed
+     * @throws IOException if an earlier block could not be written
+     * @throws OutOfMemoryError if an earlier block did not fit on the disk
+     */
+    public void write(ByteBuffer data) throws IOException {
+      checkError();
+      Block block = takeFree();
+      block.buffer.clear();
+      block.buffer.put(data);
+      queue(block);
+    }
+
+    /**
+     * Queues the remaining bytes of data to be written, without waiting. Is used by the NIO engine.
+     *
+     * @param data the block, which is only consumed if it was queued
+     * @return false if every buffer of the upload is queued, see whenFree
+     * @throws IOException if an earlier block could not be written
+     * @throws OutOfMemoryError if an earlier block did not fit on the disk
+     */
+    public boolean offer(ByteBuffer data) throws IOException {
+      checkError();
+      Block block = free.poll();
+      if (block == null) {
+        return false;
+      }
+      block.buffer.clear();
+      block.buffer.put(data);
+      queue(block);
+      return true;
+    }
+
+    /**
+     * Runs freed once a buffer of the upload is free, on the writer thread, or at once if a buffer is free already.
+     * @param freed is run once
+     */
+    public void whenFree(Runnable freed) {
+      synchronized (this) {
+        if (free.isEmpty()) {
+          this.freed = freed;
+          return;
+        }
+      }
+      freed.run();
+    }
+
+    private Block takeFree() throws IOException {
+      try {
+        return free.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the disk", e);
+      }
+    }
+
+    private void queue(Block block) {
+      block.buffer.flip();
+      queued.incrementAndGet();
+      queue.add(block);
+    }
+
+    /**
+     * Waits until every queued block has been written, the file is closed by the transfer that opened it.
+     * @throws IOException if a block could not be written
+     * @throws OutOfMemoryError if a block did not fit on the disk
+     */
+    public void flush() throws IOException {
+      try {
+        synchronized (this) {
+          while (queued.get() > 0) {
+            wait();
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the disk", e);
+      }
+      checkError();
+    }
+
+    /**
+     * Runs done once every queued block has been written, without waiting. Is used by the NIO engine,
+     * which then calls flush() to get the error of the upload without waiting.
+     * @param done is run once, on the writer thread or at once if no block is queued
+     */
+    public void flush(Runnable done) {
+      synchronized (this) {
+        if (queued.get() > 0) {
+          this.flushed = done;
+          return;
+        }
+      }
+      done.run();
+    }
+
+    /**
+     * Drops the blocks of a failed upload that are still queued, and returns their buffers to the pool of the upload.
+     * The writer does not write another block of the upload, so that nothing is written to the file or charged to
+     * the allocation after the transfer has closed them. Has to be called before the file and the allocation are
+     * closed, and does nothing for an upload that has been flushed.
+     */
+    public void abort() {
+      aborted = true;
+      int dropped = 0;
+      Iterator<Block> blocks = queue.iterator();
+      while (blocks.hasNext()) {
+        Block block = blocks.next();
+        if (block.upload == this) {
+          blocks.remove();
+          free.add(block);
+          dropped++;
+        }
+      }
+      if (dropped > 0) {
+        written(dropped);
+      }
+    }
+
+    /**
+     * Aborts the upload, see abort. Lets the blocking engine close the upload with its file.
+     */
+    @Override
+    public void close() {
+      abort();
+    }
+
+    private void checkError() throws IOException {
+      Throwable e = error;
+      if (e instanceof IOException) {
+        throw (IOException) e;
+      } else if (e instanceof OutOfMemoryError) {
+        throw (OutOfMemoryError) e;
+      } else if (e != null) {
+        throw new IOException(e);
+      }
+    }
+
+    private void written(int blocks) {
+      Runnable freed;
+      Runnable flushed = null;
+      synchronized (this) {
+        freed = this.freed;
+        this.freed = null;
+        if (queued.addAndGet(-blocks) == 0) {
+          notifyAll();
+          flushed = this.flushed;
+          this.flushed = null;
+        }
+      }
+      try {
+        if (freed != null) {
+          freed.run();
+        }
+        if (flushed != null) {
+          flushed.run();
+        }
+      } catch (RuntimeException e) {
+        AccessLog.error("Could not hand a written block back to its upload: %s", e);
+      }
+    }
+  }
+
+  /**
+   * @param buffersPerUpload the number of blocks of an upload that may wait for the disk
+   */
+  public WriteBehindWriter(int buffersPerUpload) {
+    this.buffersPerUpload = buffersPerUpload;
+  }
+
+  /**
+   * Starts the writer thread.
+   */
+  public void start() {
+    Thread thread = new Thread(this, "tftp-writer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Creates an upload that writes to fileChannel.
+   * @param fileChannel the file of the upload
+   * @param blksize the blocksize of the session
+   * @param allocation the space of the upload, which the written blocks are reserved through
+   */
+  public Upload open(FileChannel fileChannel, int blksize, FreeSpaceCheck.Allocation allocation) {
+    return new Upload(fileChannel, blksize, allocation);
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        batch.add(queue.take());
+        queue.drainTo(batch, MAXBATCH - 1);
+
+        // Write every run of consecutive blocks of the same upload at once
+        int start = 0;
+        while (start < batch.size()) {
+          Upload upload = batch.get(start).upload;
+          int end = start;
+          while (end < batch.size() && batch.get(end).upload == upload) {
+            end++;
+          }
+          writeRun(upload, start, end);
+          start = end;
+        }
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Writes the blocks batch[start..end) of an upload and returns their buffers to the pool of the upload.
+   */
+  private void writeRun(Upload upload, int start, int end) {
+    int count = end - start;
+    long bytes = 0;
+    for (int i = 0; i < count; i++) {
+      gather[i] = batch.get(start + i).buffer;
+      bytes += gather[i].remaining();
+    }
+
+    // After a failure or an abort the remaining blocks of the upload are dropped
+    if (upload.error == null && !upload.aborted) {
+      try {
+        upload.allocation.reserve(bytes);
+        long remaining = bytes;
+        while (remaining > 0) {
+          remaining -= upload.fileChannel.write(gather, 0, count);
+        }
+      } catch (IOException | OutOfMemoryError e) {
+        upload.error = e;
+      } catch (RuntimeException e) {
+        // Only the upload fails, the writer has to survive as every other upload would otherwise stall
+        AccessLog.error("Write-behind error: %s", e);
+        upload.error = e;
+      }
+    }
+
+    for (int i = 0; i < count; i++) {
+      gather[i] = null;
+      upload.free.add(batch.get(start + i));
+    }
+    upload.written(count);
+  }
+}
@@ -0,0 +1,126 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+import benchmarks.ServerHotpaths;
+
+/**
+ * Gives the benchmarks access to the classes of the server in the default package, see ServerHotpaths.
+ */
+public class ServerHotpathsImpl implements ServerHotpaths {
+  private final AckPacket ack = new AckPacket();
+  private final ByteBuffer errorBuffer = ByteBuffer.allocate(TFTPUtils.BUFSIZE);
+  private DataPacket dataPacket;
+  private ContentSource.Content block;
+
+  private TFTPServer server;
+  private ContentSource.Content readFile;
+  private int blksize;
+  private int rollover;
+  private FileOutputStream writeFile;
+  private byte[] received;
+
+  public int getOpcode(byte[] packet) {
+    return TFTPCodec.getOpcode(packet);
+  }
+
+  public int getBlocknbr(byte[] packet) {
+    return TFTPCodec.getBlocknbr(packet);
+  }
+
+  public int encodeAck(int blocknbr) {
+    ack.setBlocknbr(blocknbr);
+    return ack.getDatagramPacket().getLength();
+  }
+
+  public int encodeData(int blksize, int blocknbr) {
+    if (dataPacket == null) {
+      dataPacket = new DataPacket(blksize);
+      block = new ContentSource.BufferContent(ByteBuffer.allocate(blksize), 0);
+    }
+    try {
+      dataPacket.readBlock(block, 0, blocknbr);
+    } catch (IOException e) {
+      // The contents are in memory and are never read from the disk
+      throw new UncheckedIOException(e);
+    }
+    return dataPacket.getDatagramPacket().getLength();
+  }
+
+  public int encodeError(String message) {
+    new ErrorPacket(TFTPUtils.ErrorState.FileNotFound, new IOException(message)).encode(errorBuffer);
+    return errorBuffer.remaining();
+  }
+
+  public void openRead(File file, int blksize, boolean cached) throws IOException {
+    this.server = newServer(file.getParentFile());
+    this.blksize = blksize;
+    // The rollover that every transfer negotiates unless the client asks for another one
+    this.rollover = TFTPServer.ROLLOVER;
+    this.dataPacket = new DataPacket(blksize);
+    // A cached file is read from a block cache that holds the whole file, as the server reads it
+    BlockCache blockCache = cached ? new BlockCache(file.length(), file.length(), false) : null;
+    this.readFile = new FileContentSource(server, TFTPServer.READDIR, blockCache).open(file.getName(), null);
+  }
+
+  public int createDatablock(long block) throws IOException {
+    return server.createDatablock(readFile, dataPacket, block, blksize, rollover);
+  }
+
+  public void openWrite(File file, int blksize) throws IOException {
+    this.server = newServer(file.getParentFile());
+    this.writeFile = new FileOutputStream(file);
+
+    // A full DATA packet as the upload receives it, whose payload is written after the header
+    received = new byte[blksize + 4];
+    received[1] = TFTPUtils.OP_DAT;
+    received[3] = 1;
+  }
+
+  public void writeBytes() throws IOException {
+    // An upload without the tsize option reserves the space of every block on its own
+    server.writeBytes(writeFile, received, 4, received.length - 4, null);
+  }
+
+  public void close() throws IOException {
+    if (readFile != null) {
+      readFile.close();
+      readFile = null;
+    }
+    if (writeFile != null) {
+      writeFile.close();
+      writeFile = null;
+    }
+  }
+
+  public void startServer(int port, File readDir, File writeDir, String... flags) {
+    final String[] args = new String[3 + flags.length];
+    args[0] = Integer.toString(port);
+    args[1] = readDir.getPath();
+    args[2] = writeDir.getPath();
+    System.arraycopy(flags, 0, args, 3, flags.length);
+
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          TFTPServer.main(args);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }, "tftp-server");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * The server checks the free space of its write directory, which is set before it is created.
+   */
+  private static TFTPServer newServer(File directory) {
+    TFTPServer.READDIR = directory.getPath() + "/";
+    TFTPServer.WRITEDIR = directory.getPath() + "/";
+    return new TFTPServer();
+  }
+}
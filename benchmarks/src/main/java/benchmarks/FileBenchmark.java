@@ -0,0 +1,124 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of reading blocks with TFTPServer.createDatablock (from the disk or from memory as with the block cache)
+ * and of writing received blocks with TFTPServer.writeBytes. The files are in the temporary directory,
+ * so the reads are served from the page cache and the writes go to the page cache.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileBenchmark {
+  private static final int FILESIZE = 16 * 1024 * 1024;
+
+  @State(Scope.Thread)
+  public static class Read {
+    @Param({"512", "1468", "8192"})
+    public int blksize;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    ServerHotpaths server;
+    File directory;
+    long blocks;
+    long block = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      directory = Files.createTempDirectory("tftp-bench").toFile();
+      File file = new File(directory, "read");
+      byte[] content = new byte[FILESIZE];
+      new Random(1).nextBytes(content);
+      Files.write(file.toPath(), content);
+
+      blocks = FILESIZE / blksize + 1;
+      server = ServerHotpaths.create();
+      server.openRead(file, blksize, cached);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      server.close();
+      deleteDirectory(directory);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Write {
+    @Param({"512", "1468", "8192"})
+    public int blksize;
+
+    ServerHotpaths server;
+    File directory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      directory = Files.createTempDirectory("tftp-bench").toFile();
+      server = ServerHotpaths.create();
+    }
+
+    // Every iteration starts with an empty file, so the file does not grow without limit
+    @Setup(Level.Iteration)
+    public void open() throws IOException {
+      server.openWrite(new File(directory, "write"), blksize);
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws IOException {
+      server.close();
+      try (RandomAccessFile file = new RandomAccessFile(new File(directory, "write"), "rw")) {
+        file.setLength(0);
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      deleteDirectory(directory);
+    }
+  }
+
+  @Benchmark
+  public int createDatablock(Read state) throws IOException {
+    state.block = (state.block % state.blocks) + 1;
+    return state.server.createDatablock(state.block);
+  }
+
+  @Benchmark
+  public void writeBytes(Write state) throws IOException {
+    state.server.writeBytes();
+  }
+
+  static void deleteDirectory(File directory) {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+}
@@ -0,0 +1,197 @@
+package benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A minimal lock-step TFTP client for the loopback transfer benchmarks.
+ * It only retransmits on a timeout and fails the benchmark on any error, as loopback transfers should not lose packets.
+ */
+public class LoopbackClient implements AutoCloseable {
+  private static final int OP_RRQ = 1;
+  private static final int OP_WRQ = 2;
+  private static final int OP_DAT = 3;
+  private static final int OP_ACK = 4;
+  private static final int OP_ERR = 5;
+  private static final int OP_OACK = 6;
+  private static final int TIMEOUT = 1000;
+  private static final int RETRIES = 5;
+
+  private final InetSocketAddress server;
+  private final DatagramSocket socket;
+  private final byte[] receiveBuffer = new byte[65536];
+  private final DatagramPacket received = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+  private final byte[] ackBuffer = new byte[4];
+
+  public LoopbackClient(int port) throws IOException {
+    this.server = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    this.socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    this.socket.setSoTimeout(TIMEOUT);
+  }
+
+  /**
+   * Downloads a file.
+   * @return the number of received bytes
+   */
+  public long read(String file, int blksize, int windowsize) throws IOException {
+    DatagramPacket request = request(OP_RRQ, file, blksize, windowsize);
+    socket.send(request);
+    DatagramPacket lastSent = request;
+    SocketAddress transfer = null;
+    int expected = 1;
+    long bytes = 0;
+    int retries = RETRIES;
+
+    while (true) {
+      if (!receive(transfer)) {
+        if (retries-- == 0) {
+          throw new IOException("The server did not answer " + (transfer == null ? "the request" : "block " + expected));
+        }
+        socket.send(lastSent);
+        continue;
+      }
+      retries = RETRIES;
+      transfer = received.getSocketAddress();
+      int opcode = getShort(0);
+      if (opcode == OP_OACK) {
+        lastSent = ack(0, transfer);
+        continue;
+      }
+      if (opcode != OP_DAT) {
+        throw error(opcode);
+      }
+      int blocknbr = getShort(2);
+      if (blocknbr == (expected & 0xFFFF)) {
+        int length = received.getLength() - 4;
+        bytes += length;
+        expected++;
+        // With a window only the last block of the window and the last block of the file are acknowledged
+        if (length < blksize || (expected - 1) % windowsize == 0) {
+          lastSent = ack(blocknbr, transfer);
+        }
+        if (length < blksize) {
+          return bytes;
+        }
+      } else {
+        // A missing block, acknowledge the last received block so that the server resends the rest of the window
+        lastSent = ack((expected - 1) & 0xFFFF, transfer);
+      }
+    }
+  }
+
+  /**
+   * Uploads a file.
+   */
+  public void write(String file, byte[] data, int blksize) throws IOException {
+    DatagramPacket sent = request(OP_WRQ, file, blksize, 1);
+    socket.send(sent);
+    SocketAddress transfer = null;
+    int blocks = data.length / blksize + 1;
+    int block = 0;
+    int retries = RETRIES;
+    byte[] packet = new byte[blksize + 4];
+    packet[1] = OP_DAT;
+
+    while (true) {
+      if (!receive(transfer)) {
+        if (retries-- == 0) {
+          throw new IOException("The server did not acknowledge block " + block);
+        }
+        socket.send(sent);
+        continue;
+      }
+      transfer = received.getSocketAddress();
+      int opcode = getShort(0);
+      boolean acknowledged = (opcode == OP_OACK && block == 0) || (opcode == OP_ACK && getShort(2) == (block & 0xFFFF));
+      if (opcode != OP_OACK && opcode != OP_ACK) {
+        throw error(opcode);
+      }
+      if (!acknowledged) {
+        continue;
+      }
+      if (block == blocks) {
+        return;
+      }
+      retries = RETRIES;
+      block++;
+      int offset = (block - 1) * blksize;
+      int length = Math.min(blksize, data.length - offset);
+      packet[2] = (byte) (block >>> 8);
+      packet[3] = (byte) block;
+      System.arraycopy(data, offset, packet, 4, length);
+      sent = new DatagramPacket(packet, length + 4, transfer);
+      socket.send(sent);
+    }
+  }
+
+  @Override
+  public void close() {
+    socket.close();
+  }
+
+  private boolean receive(SocketAddress transfer) throws IOException {
+    while (true) {
+      try {
+        received.setLength(receiveBuffer.length);
+        socket.receive(received);
+      } catch (SocketTimeoutException e) {
+        return false;
+      }
+      // Packets from another port than the one of the transfer are ignored
+      if (transfer == null || transfer.equals(received.getSocketAddress())) {
+        return true;
+      }
+    }
+  }
+
+  private DatagramPacket ack(int blocknbr, SocketAddress transfer) throws IOException {
+    ackBuffer[1] = OP_ACK;
+    ackBuffer[2] = (byte) (blocknbr >>> 8);
+    ackBuffer[3] = (byte) blocknbr;
+    DatagramPacket ack = new DatagramPacket(ackBuffer, ackBuffer.length, transfer);
+    socket.send(ack);
+    return ack;
+  }
+
+  private DatagramPacket request(int opcode, String file, int blksize, int windowsize) throws IOException {
+    ByteArrayOutputStream request = new ByteArrayOutputStream();
+    request.write(0);
+    request.write(opcode);
+    writeField(request, file);
+    writeField(request, "octet");
+    if (blksize != 512) {
+      writeField(request, "blksize");
+      writeField(request, Integer.toString(blksize));
+    }
+    if (windowsize != 1) {
+      writeField(request, "windowsize");
+      writeField(request, Integer.toString(windowsize));
+    }
+    byte[] bytes = request.toByteArray();
+    return new DatagramPacket(bytes, bytes.length, server);
+  }
+
+  private static void writeField(ByteArrayOutputStream out, String field) {
+    byte[] bytes = field.getBytes(StandardCharsets.US_ASCII);
+    out.write(bytes, 0, bytes.length);
+    out.write(0);
+  }
+
+  private int getShort(int offset) {
+    return ((receiveBuffer[offset] & 0xFF) << 8) | (receiveBuffer[offset + 1] & 0xFF);
+  }
+
+  private IOException error(int opcode) {
+    if (opcode == OP_ERR) {
+      return new IOException("Error from the server: " + new String(receiveBuffer, 4, Math.max(0, received.getLength() - 5), StandardCharsets.US_ASCII));
+    }
+    return new IOException("Unexpected opcode " + opcode);
+  }
+}
@@ -0,0 +1,76 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding and encoding of single packets: TFTPCodec decoding, and AckPacket, DataPacket and ErrorPacket encoding.
+ * Run with -prof gc to see the allocations per packet.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketBenchmark {
+
+  @Param({"512", "1468", "8192"})
+  public int blksize;
+
+  private ServerHotpaths server;
+  private byte[] ackPacket;
+  private byte[] dataPacket;
+  private int blocknbr;
+
+  @Setup
+  public void setup() {
+    server = ServerHotpaths.create();
+    ackPacket = new byte[] {0, 4, 0x12, 0x34};
+    dataPacket = new byte[blksize + 4];
+    dataPacket[1] = 3;
+    dataPacket[2] = (byte) 0xFF;
+    dataPacket[3] = (byte) 0xFE;
+  }
+
+  @Benchmark
+  public int getOpcode() {
+    return server.getOpcode(dataPacket);
+  }
+
+  @Benchmark
+  public int getBlocknbrAck() {
+    return server.getBlocknbr(ackPacket);
+  }
+
+  @Benchmark
+  public int getBlocknbrData() {
+    return server.getBlocknbr(dataPacket);
+  }
+
+  @Benchmark
+  public int encodeAck() {
+    return server.encodeAck(blocknbr++);
+  }
+
+  @Benchmark
+  public int encodeData() {
+    return server.encodeData(blksize, blocknbr++);
+  }
+
+  @Benchmark
+  public int encodeError() {
+    return server.encodeError("File does not exist on server");
+  }
+}
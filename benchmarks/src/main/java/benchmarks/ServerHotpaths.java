@@ -0,0 +1,87 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The hot paths of the server that are benchmarked.
+ *
+ * JMH does not allow benchmarks in the default package, and classes in a package cannot refer to the classes of
+ * the server in the default package. The operations are therefore implemented by ServerHotpathsImpl in the
+ * default package, which is loaded by name once per benchmark. The calls through this interface are monomorphic
+ * and are inlined by the JIT, so they do not add to the measured time.
+ *
+ * An instance keeps the packets and files of one benchmark, and is used by a single thread.
+ */
+public interface ServerHotpaths {
+
+  /**
+   * @return a new instance of ServerHotpathsImpl
+   */
+  static ServerHotpaths create() {
+    try {
+      return (ServerHotpaths) Class.forName("ServerHotpathsImpl").getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("ServerHotpathsImpl is missing from the benchmark jar", e);
+    }
+  }
+
+  /** TFTPCodec.getOpcode of a received packet, as the server decodes it */
+  int getOpcode(byte[] packet);
+
+  /** TFTPCodec.getBlocknbr of a received packet, as the server decodes it */
+  int getBlocknbr(byte[] packet);
+
+  /**
+   * Encodes an ACK with AckPacket and returns the length of its DatagramPacket.
+   */
+  int encodeAck(int blocknbr);
+
+  /**
+   * Encodes a DATA packet with DataPacket from in-memory contents of blksize bytes,
+   * and returns the length of its DatagramPacket.
+   */
+  int encodeData(int blksize, int blocknbr);
+
+  /**
+   * Encodes an ERROR packet with ErrorPacket into a reusable buffer and returns its length.
+   */
+  int encodeError(String message);
+
+  /**
+   * Opens a file for createDatablock.
+   * @param file the file to read the blocks from
+   * @param blksize the blocksize of the session
+   * @param cached if the blocks are copied from the contents of the file in memory, as with the block cache
+   */
+  void openRead(File file, int blksize, boolean cached) throws IOException;
+
+  /**
+   * Reads a block of the opened file with TFTPServer.createDatablock, with the default rollover.
+   * @param block the number of the block, counted from 1
+   * @return the number of bytes in the block
+   */
+  int createDatablock(long block) throws IOException;
+
+  /**
+   * Creates (or truncates) a file for writeBytes, and creates one full DATA packet of blksize bytes,
+   * which writeBytes then writes again and again.
+   */
+  void openWrite(File file, int blksize) throws IOException;
+
+  /**
+   * Writes the payload of the DATA packet to the opened file with TFTPServer.writeBytes, as an upload without
+   * the tsize option does.
+   */
+  void writeBytes() throws IOException;
+
+  /**
+   * Closes the opened files and sockets.
+   */
+  void close() throws IOException;
+
+  /**
+   * Starts a TFTPServer in this JVM on a daemon thread, as "java TFTPServer port readDir writeDir flags" does.
+   */
+  void startServer(int port, File readDir, File writeDir, String... flags);
+}
@@ -0,0 +1,107 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Complete RRQ and WRQ transfers between a client and a server in the same JVM over the loopback interface.
+ * The server runs on a daemon thread in the forked JVM of the benchmark, with the engine given by the engine parameter.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferBenchmark {
+
+  @Param({"65536", "1048576", "16777216"})
+  public int fileSize;
+
+  @Param({"512", "1468", "8192"})
+  public int blksize;
+
+  @Param({"thread", "nio"})
+  public String engine;
+
+  private File readDir;
+  private File writeDir;
+  private byte[] content;
+  private LoopbackClient client;
+  private int uploads = 0;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException, InterruptedException {
+    readDir = Files.createTempDirectory("tftp-bench-read").toFile();
+    writeDir = Files.createTempDirectory("tftp-bench-write").toFile();
+    content = new byte[fileSize];
+    new Random(1).nextBytes(content);
+    Files.write(new File(readDir, "file").toPath(), content);
+
+    int port;
+    try (DatagramSocket free = new DatagramSocket(0)) {
+      port = free.getLocalPort();
+    }
+    ServerHotpaths.create().startServer(port, readDir, writeDir, "--engine=" + engine);
+    client = new LoopbackClient(port);
+
+    // Wait until the server answers
+    for (int attempt = 0; ; attempt++) {
+      try {
+        client.read("file", blksize, 1);
+        break;
+      } catch (IOException e) {
+        if (attempt == 10) {
+          throw e;
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  @TearDown(Level.Iteration)
+  public void deleteUploads() {
+    File[] files = writeDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    client.close();
+    FileBenchmark.deleteDirectory(readDir);
+    FileBenchmark.deleteDirectory(writeDir);
+  }
+
+  @Benchmark
+  public long rrq() throws IOException {
+    return client.read("file", blksize, 1);
+  }
+
+  @Benchmark
+  public void wrq() throws IOException {
+    // A file can only be uploaded once, every upload has a new name
+    client.write("upload" + (uploads++), content, blksize);
+  }
+}
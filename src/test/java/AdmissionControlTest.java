@@ -0,0 +1,112 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the admission of requests when one transfer may run at a time.
+ */
+class AdmissionControlTest {
+  private final TFTPMetrics metrics = new TFTPMetrics();
+  private final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+  private final List<String> rejected = Collections.synchronizedList(new ArrayList<String>());
+  private final List<TFTPMetrics.Session> sessions = new ArrayList<>();
+
+  @Test
+  void startsRequestWhileTransferMayStart() {
+    AdmissionControl admission = new AdmissionControl(1, 10, 100, 1000);
+    admission.admit(request("first"));
+    assertEquals(Collections.singletonList("first"), started);
+    assertEquals(1, admission.getActive());
+    assertEquals(0, admission.getQueueDepth());
+  }
+
+  @Test
+  void startsQueuedRequestsInOrderAsTransfersEnd() throws Exception {
+    AdmissionControl admission = new AdmissionControl(1, 10, 1000, 10000);
+    admission.start();
+    TFTPMetrics.Session first = admit(admission, "first");
+    TFTPMetrics.Session second = admit(admission, "second");
+    admit(admission, "third");
+    assertEquals(2, admission.getQueueDepth());
+
+    first.end(true);
+    awaitStarted(2);
+    second.end(true);
+    awaitStarted(3);
+    assertEquals(Arrays.asList("first", "second", "third"), started);
+    assertEquals(3, admission.getAdmitted());
+    assertEquals(2, admission.getQueued());
+  }
+
+  @Test
+  void newRequestDoesNotOvertakeQueuedRequest() {
+    // Without the dispatcher, a freed permit stays with the queued request
+    AdmissionControl admission = new AdmissionControl(1, 10, 1000, 10000);
+    TFTPMetrics.Session first = admit(admission, "first");
+    admit(admission, "second");
+    first.end(true);
+    admit(admission, "third");
+    assertEquals(Collections.singletonList("first"), started);
+    assertEquals(2, admission.getQueueDepth());
+  }
+
+  @Test
+  void rejectsRequestWhenQueueIsFull() {
+    AdmissionControl admission = new AdmissionControl(1, 1, 1000, 10000);
+    admit(admission, "first");
+    admit(admission, "second");
+    admit(admission, "third");
+    assertEquals(Collections.singletonList("third"), rejected);
+    assertEquals(1, admission.getShedQueueFull());
+  }
+
+  @Test
+  void shedsRequestThatWaitedTooLong() throws Exception {
+    AdmissionControl admission = new AdmissionControl(1, 10, 1, 20);
+    admission.start();
+    admit(admission, "first");
+    admit(admission, "second");
+    long deadline = System.currentTimeMillis() + 5000;
+    while (rejected.isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(Collections.singletonList("second"), rejected);
+    assertEquals(1, admission.getShedQueueDelay());
+    assertEquals(0, admission.getQueueDepth());
+  }
+
+  private TFTPMetrics.Session admit(AdmissionControl admission, String name) {
+    admission.admit(request(name));
+    return sessions.get(sessions.size() - 1);
+  }
+
+  private AdmissionControl.Request request(final String name) {
+    final TFTPMetrics.Session session = metrics.startSession(TFTPUtils.OP_RRQ, new InetSocketAddress("127.0.0.1", 50000),
+        name);
+    sessions.add(session);
+    return new AdmissionControl.Request(session, new Runnable() {
+      public void run() {
+        started.add(name);
+      }
+    }, new Runnable() {
+      public void run() {
+        rejected.add(name);
+        session.end(false);
+      }
+    });
+  }
+
+  private void awaitStarted(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (started.size() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(count, started.size());
+  }
+}
@@ -0,0 +1,158 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the block cache with files of 1000 bytes in a cache of 3000 bytes.
+ */
+class BlockCacheTest {
+  private static final int SIZE = 1000;
+
+  @TempDir
+  Path directory;
+
+  private final BlockCache cache = new BlockCache(3 * SIZE, 2 * SIZE, false);
+
+  @Test
+  void loadsFileOnceAndThenHits() throws IOException {
+    byte[] contents = random(SIZE);
+    File file = write("a", contents);
+    assertEquals(ByteBuffer.wrap(contents), get(file));
+    assertEquals(ByteBuffer.wrap(contents), get(file));
+    assertEquals(1, cache.getMisses());
+    assertEquals(1, cache.getHits());
+    assertEquals(SIZE, cache.getUsedBytes());
+  }
+
+  @Test
+  void concurrentRequestsShareOneLoad() throws Exception {
+    byte[] contents = random(SIZE);
+    final File file = write("a", contents);
+    int threads = 8;
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<ByteBuffer>> results = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        results.add(executor.submit(new Callable<ByteBuffer>() {
+          public ByteBuffer call() throws Exception {
+            start.await();
+            return get(file);
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<ByteBuffer> result : results) {
+        assertEquals(ByteBuffer.wrap(contents), result.get(5, TimeUnit.SECONDS));
+      }
+    } finally {
+      executor.shutdown();
+    }
+    // A request that came after the load hit the cache, every other one waited for the load
+    assertEquals(1, cache.getMisses());
+    assertEquals(threads - 1, cache.getHits() + cache.getCoalesced());
+    assertEquals(1, cache.getEntryCount());
+  }
+
+  @Test
+  void evictsLeastRecentlyUsedFile() throws IOException {
+    File a = write("a", random(SIZE));
+    File b = write("b", random(SIZE));
+    File c = write("c", random(SIZE));
+    get(a);
+    get(b);
+    get(c);
+    get(a);
+    get(write("d", random(SIZE)));
+    assertEquals(1, cache.getEvictions());
+    assertEquals(3, cache.getEntryCount());
+    assertEquals(3 * SIZE, cache.getUsedBytes());
+
+    // a was used after b, so b was evicted and is loaded again
+    long misses = cache.getMisses();
+    get(a);
+    assertEquals(misses, cache.getMisses());
+    get(b);
+    assertEquals(misses + 1, cache.getMisses());
+  }
+
+  @Test
+  void replacesChangedFile() throws IOException {
+    File file = write("a", random(SIZE));
+    get(file);
+    byte[] changed = random(SIZE / 2);
+    write("a", changed);
+    assertEquals(ByteBuffer.wrap(changed), get(file));
+    assertEquals(2, cache.getMisses());
+    assertEquals(1, cache.getEntryCount());
+    assertEquals(SIZE / 2, cache.getUsedBytes());
+  }
+
+  @Test
+  void doesNotCacheLargeFile() throws IOException {
+    assertNull(get(write("large", random(2 * SIZE + 1))));
+    assertEquals(0, cache.getEntryCount());
+  }
+
+  @Test
+  void getNowLoadsInBackground() throws Exception {
+    byte[] contents = random(SIZE);
+    File file = write("a", contents);
+    final AtomicReference<ByteBuffer> loaded = new AtomicReference<>();
+    final CountDownLatch done = new CountDownLatch(1);
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      assertNull(cache.getNow(file, channel, content -> {
+        loaded.set(content);
+        done.countDown();
+      }));
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      assertEquals(ByteBuffer.wrap(contents), loaded.get());
+      assertNotNull(cache.getNow(file, channel, content -> {}));
+    }
+  }
+
+  private ByteBuffer get(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      return cache.get(file, channel);
+    }
+  }
+
+  private File write(String name, byte[] contents) throws IOException {
+    File file = directory.resolve(name).toFile();
+    // A file that is written again gets another modification time, as the cache tells versions apart by it
+    long lastModified = file.exists() ? file.lastModified() : 0;
+    Files.write(file.toPath(), contents);
+    if (lastModified != 0) {
+      file.setLastModified(lastModified + 1000);
+    }
+    return file;
+  }
+
+  private static byte[] random(int size) {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,83 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the cached metadata of the files in a temporary directory.
+ */
+class FileMetadataCacheTest {
+  private static final long TTL = 60000;
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void cachesMissingFile() {
+    FileMetadataCache cache = new FileMetadataCache(100, TTL);
+    File file = directory.resolve("missing").toFile();
+    assertFalse(cache.lookup(file).exists());
+    assertFalse(cache.lookup(file).exists());
+    assertEquals(1, cache.getMisses());
+    assertEquals(1, cache.getHits());
+  }
+
+  @Test
+  void deniesDirectory() throws Exception {
+    FileMetadataCache cache = new FileMetadataCache(100, TTL);
+    FileMetadataCache.Metadata metadata = cache.lookup(Files.createDirectory(directory.resolve("dir")).toFile());
+    assertTrue(metadata.exists());
+    assertTrue(metadata.isDenied());
+  }
+
+  @Test
+  void invalidatedFileIsLookedUpAgain() throws Exception {
+    FileMetadataCache cache = new FileMetadataCache(100, TTL);
+    File file = directory.resolve("upload").toFile();
+    assertFalse(cache.lookup(file).exists());
+    Files.write(file.toPath(), new byte[1]);
+    cache.invalidate(file);
+    assertTrue(cache.lookup(file).exists());
+    assertEquals(2, cache.getMisses());
+    assertEquals(1, cache.getInvalidations());
+  }
+
+  @Test
+  void expiredEntryIsLookedUpAgain() throws Exception {
+    FileMetadataCache cache = new FileMetadataCache(100, 0);
+    File file = directory.resolve("file").toFile();
+    assertFalse(cache.lookup(file).exists());
+    Files.write(file.toPath(), new byte[1]);
+    assertTrue(cache.lookup(file).exists());
+    assertEquals(0, cache.getHits());
+  }
+
+  @Test
+  void watcherInvalidatesCreatedFile() throws Exception {
+    FileMetadataCache cache = new FileMetadataCache(100, TTL);
+    cache.start();
+    File file = directory.resolve("created").toFile();
+    assertFalse(cache.lookup(file).exists());
+    Files.write(file.toPath(), new byte[1]);
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!cache.lookup(file).exists() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(cache.lookup(file).exists());
+    assertTrue(cache.getInvalidations() > 0);
+  }
+
+  @Test
+  void fullCacheDoesNotAddEntries() {
+    FileMetadataCache cache = new FileMetadataCache(1, TTL);
+    cache.lookup(directory.resolve("first").toFile());
+    cache.lookup(directory.resolve("second").toFile());
+    assertEquals(1, cache.getEntries());
+  }
+}
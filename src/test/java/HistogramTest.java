@@ -0,0 +1,61 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the buckets and the percentiles of the histogram.
+ */
+class HistogramTest {
+
+  @Test
+  void reportsZeroWhenEmpty() {
+    Histogram histogram = new Histogram();
+    assertEquals(0, histogram.getPercentile(0.5));
+    assertEquals(0, histogram.getCount());
+  }
+
+  @Test
+  void countsValuesInPowersOfTwo() {
+    Histogram histogram = new Histogram();
+    histogram.record(0);
+    histogram.record(1);
+    histogram.record(2);
+    histogram.record(3);
+    histogram.record(4);
+    assertEquals(1, histogram.getBucket(0));
+    assertEquals(1, histogram.getBucket(1));
+    assertEquals(2, histogram.getBucket(2));
+    assertEquals(1, histogram.getBucket(3));
+    assertEquals(7, Histogram.getUpperBound(3));
+  }
+
+  @Test
+  void recordsNegativeValuesAsZero() {
+    Histogram histogram = new Histogram();
+    histogram.record(-5);
+    assertEquals(1, histogram.getBucket(0));
+    assertEquals(0, histogram.getSum());
+  }
+
+  @Test
+  void reportsPercentilesAsUpperBoundOfBucket() {
+    Histogram histogram = new Histogram();
+    for (int value = 1; value <= 100; value++) {
+      histogram.record(value);
+    }
+    assertEquals(100, histogram.getCount());
+    assertEquals(5050, histogram.getSum());
+    // The 50th value is in the bucket of 32 to 63, the 99th and the 100th in the bucket of 64 to 127
+    assertEquals(63, histogram.getPercentile(0.5));
+    assertEquals(127, histogram.getPercentile(0.99));
+    assertEquals(127, histogram.getPercentile(1));
+    assertEquals(1, histogram.getPercentile(0.01));
+  }
+
+  @Test
+  void keepsLargeValuesInLastBucket() {
+    Histogram histogram = new Histogram();
+    histogram.record(Long.MAX_VALUE);
+    assertEquals(1, histogram.getBucket(Histogram.getBucketCount() - 1));
+  }
+}
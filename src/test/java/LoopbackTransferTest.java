@@ -0,0 +1,251 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Reads and writes files through a server on the loopback interface, once with every engine.
+ * The server runs in its own JVM, as its configuration is kept in static fields.
+ */
+class LoopbackTransferTest {
+  private static final int TIMEOUT = 1000;
+  private static final int RETRIES = 5;
+
+  @TempDir
+  Path directory;
+
+  @ParameterizedTest
+  @ValueSource(strings = {"thread", "nio"})
+  void readsAndWritesFiles(String engine) throws Exception {
+    File readDir = Files.createDirectory(directory.resolve("read")).toFile();
+    File writeDir = Files.createDirectory(directory.resolve("write")).toFile();
+    byte[] file = random(100000);
+    // A file of a multiple of the blocksize ends with an empty block
+    byte[] blocks = random(3 * 512);
+    Files.write(new File(readDir, "file").toPath(), file);
+    Files.write(new File(readDir, "blocks").toPath(), blocks);
+
+    int port = freePort();
+    Process server = startServer(port, readDir, writeDir, engine);
+    try (DatagramSocket socket = new DatagramSocket()) {
+      socket.setSoTimeout(TIMEOUT);
+      InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+      awaitServer(socket, address);
+
+      assertArrayEquals(file, read(socket, address, "file"));
+      assertArrayEquals(blocks, read(socket, address, "blocks"));
+
+      write(socket, address, "upload", file);
+      assertArrayEquals(file, Files.readAllBytes(new File(writeDir, "upload").toPath()));
+      write(socket, address, "empty", new byte[0]);
+      assertEquals(0, new File(writeDir, "empty").length());
+    } finally {
+      server.destroy();
+      server.waitFor();
+    }
+  }
+
+  @Test
+  void nioDropsDataLargerThanBlksize() throws Exception {
+    File readDir = Files.createDirectory(directory.resolve("read")).toFile();
+    File writeDir = Files.createDirectory(directory.resolve("write")).toFile();
+
+    int port = freePort();
+    Process server = startServer(port, readDir, writeDir, "nio");
+    try (DatagramSocket socket = new DatagramSocket()) {
+      socket.setSoTimeout(TIMEOUT);
+      InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+      awaitServer(socket, address);
+
+      DatagramPacket sent = request(TFTPUtils.OP_WRQ, "oversized", address);
+      DatagramPacket received = new DatagramPacket(new byte[TFTPUtils.BUFSIZE], TFTPUtils.BUFSIZE);
+      socket.send(sent);
+      receive(socket, sent, received, TFTPUtils.OP_ACK, 0);
+      SocketAddress tid = received.getSocketAddress();
+
+      // A block of 600 bytes with the default blocksize of 512 is not acknowledged
+      socket.send(data(1, random(600), tid));
+      assertNoAck(socket, received, 1, 500);
+
+      byte[] file = random(100);
+      sent = data(1, file, tid);
+      socket.send(sent);
+      receive(socket, sent, received, TFTPUtils.OP_ACK, 1);
+      assertArrayEquals(file, Files.readAllBytes(new File(writeDir, "oversized").toPath()));
+    } finally {
+      server.destroy();
+      server.waitFor();
+    }
+  }
+
+  private Process startServer(int port, File readDir, File writeDir, String engine) throws IOException {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "TFTPServer",
+        Integer.toString(port), readDir.getPath(), writeDir.getPath(), "--engine=" + engine);
+    builder.redirectErrorStream(true);
+    builder.redirectOutput(directory.resolve("server-" + engine + ".log").toFile());
+    return builder.start();
+  }
+
+  private static int freePort() throws IOException {
+    try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      return socket.getLocalPort();
+    }
+  }
+
+  /**
+   * Waits until the server answers the request of a missing file with an error.
+   */
+  private static void awaitServer(DatagramSocket socket, SocketAddress address) throws IOException {
+    DatagramPacket request = request(TFTPUtils.OP_RRQ, "missing", address);
+    DatagramPacket answer = new DatagramPacket(new byte[TFTPUtils.BUFSIZE], TFTPUtils.BUFSIZE);
+    long deadline = System.currentTimeMillis() + 30000;
+    while (System.currentTimeMillis() < deadline) {
+      socket.send(request);
+      try {
+        socket.receive(answer);
+        if (TFTPCodec.getOpcode(answer.getData()) == TFTPUtils.OP_ERR) {
+          return;
+        }
+      } catch (SocketTimeoutException e) {
+        // The server has not started yet
+      }
+    }
+    fail("The server did not start");
+  }
+
+  private static byte[] read(DatagramSocket socket, SocketAddress address, String name) throws IOException {
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    DatagramPacket sent = request(TFTPUtils.OP_RRQ, name, address);
+    DatagramPacket received = new DatagramPacket(new byte[TFTPUtils.BUFSIZE], TFTPUtils.BUFSIZE);
+    socket.send(sent);
+    int blocknbr = 1;
+    while (true) {
+      receive(socket, sent, received, TFTPUtils.OP_DAT, blocknbr);
+      file.write(received.getData(), 4, received.getLength() - 4);
+      sent = ack(blocknbr, received.getSocketAddress());
+      socket.send(sent);
+      if (received.getLength() < TFTPUtils.BUFSIZE) {
+        return file.toByteArray();
+      }
+      blocknbr++;
+    }
+  }
+
+  private static void write(DatagramSocket socket, SocketAddress address, String name, byte[] file) throws IOException {
+    DatagramPacket sent = request(TFTPUtils.OP_WRQ, name, address);
+    DatagramPacket received = new DatagramPacket(new byte[TFTPUtils.BUFSIZE], TFTPUtils.BUFSIZE);
+    socket.send(sent);
+    receive(socket, sent, received, TFTPUtils.OP_ACK, 0);
+    SocketAddress tid = received.getSocketAddress();
+    int position = 0;
+    int blocknbr = 1;
+    while (true) {
+      int length = Math.min(TFTPUtils.DEFAULTBLKSIZE, file.length - position);
+      sent = data(blocknbr, Arrays.copyOfRange(file, position, position + length), tid);
+      socket.send(sent);
+      receive(socket, sent, received, TFTPUtils.OP_ACK, blocknbr);
+      position += length;
+      if (length < TFTPUtils.DEFAULTBLKSIZE) {
+        return;
+      }
+      blocknbr++;
+    }
+  }
+
+  /**
+   * Receives the next packet of the transfer, and sends the last packet again when it times out.
+   */
+  private static void receive(DatagramSocket socket, DatagramPacket sent, DatagramPacket received, int opcode, int blocknbr)
+      throws IOException {
+    for (int attempt = 0; attempt < RETRIES; attempt++) {
+      received.setLength(TFTPUtils.BUFSIZE);
+      try {
+        socket.receive(received);
+      } catch (SocketTimeoutException e) {
+        socket.send(sent);
+        continue;
+      }
+      byte[] packet = received.getData();
+      if (TFTPCodec.getOpcode(packet) == TFTPUtils.OP_ERR) {
+        fail("The server sent an error: " + new String(packet, 4, received.getLength() - 5, StandardCharsets.US_ASCII));
+      }
+      if (TFTPCodec.getOpcode(packet) == opcode && TFTPCodec.getBlocknbr(packet) == blocknbr) {
+        return;
+      }
+      // A duplicate of the previous packet
+    }
+    fail("No answer for block " + blocknbr);
+  }
+
+  /**
+   * Receives packets for a while, only duplicates of earlier packets may be sent in that time.
+   */
+  private static void assertNoAck(DatagramSocket socket, DatagramPacket received, int blocknbr, long millis)
+      throws IOException {
+    long deadline = System.currentTimeMillis() + millis;
+    long remaining;
+    while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+      socket.setSoTimeout((int) remaining);
+      received.setLength(TFTPUtils.BUFSIZE);
+      try {
+        socket.receive(received);
+      } catch (SocketTimeoutException e) {
+        break;
+      }
+      byte[] packet = received.getData();
+      assertFalse(TFTPCodec.getOpcode(packet) == TFTPUtils.OP_ACK && TFTPCodec.getBlocknbr(packet) == blocknbr,
+          "Block " + blocknbr + " was acknowledged");
+    }
+    socket.setSoTimeout(TIMEOUT);
+  }
+
+  private static DatagramPacket request(int opcode, String name, SocketAddress address) {
+    ByteArrayOutputStream request = new ByteArrayOutputStream();
+    request.write(0);
+    request.write(opcode);
+    byte[] fields = (name + "\0octet\0").getBytes(StandardCharsets.US_ASCII);
+    request.write(fields, 0, fields.length);
+    byte[] bytes = request.toByteArray();
+    return new DatagramPacket(bytes, bytes.length, address);
+  }
+
+  private static DatagramPacket data(int blocknbr, byte[] block, SocketAddress address) {
+    ByteBuffer data = ByteBuffer.allocate(4 + block.length);
+    data.putShort((short) TFTPUtils.OP_DAT).putShort((short) blocknbr).put(block);
+    return new DatagramPacket(data.array(), data.capacity(), address);
+  }
+
+  private static DatagramPacket ack(int blocknbr, SocketAddress address) {
+    byte[] ack = new byte[4];
+    TFTPCodec.encodeAck(ack, blocknbr);
+    return new DatagramPacket(ack, ack.length, address);
+  }
+
+  private static byte[] random(int size) {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+}
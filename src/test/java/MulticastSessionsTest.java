@@ -0,0 +1,223 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the multicast transfers with clients on the loopback interface. Every client acknowledges the whole file
+ * as soon as it is made the master client, so that no block has to be sent to the group.
+ */
+class MulticastSessionsTest {
+  private static final int TIMEOUT = 5000;
+  private static final int GROUPPORT = 41758;
+
+  @TempDir
+  Path directory;
+
+  private final MemoryContentSource files = new MemoryContentSource();
+  private final TFTPMetrics metrics = new TFTPMetrics();
+  private MulticastSessions sessions;
+  private DatagramSocket first;
+  private DatagramSocket second;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    TFTPServer.WRITEDIR = directory.toString() + "/";
+    TFTPServer server = new TFTPServer() {
+      @Override
+      public ContentSource getContentSource() {
+        return new ContentSource() {
+          public Content open(String name, InetSocketAddress client) throws IOException {
+            return name.equals("broken") ? new BrokenContent() : files.open(name, client);
+          }
+        };
+      }
+    };
+    sessions = new MulticastSessions(server, metrics, new InetSocketAddress("239.255.0.1", GROUPPORT), null, 1);
+    files.put("a", new byte[100]);
+    files.put("b", new byte[100]);
+    first = client();
+    second = client();
+  }
+
+  @AfterEach
+  void tearDown() {
+    first.close();
+    second.close();
+  }
+
+  @Test
+  void clientsOfOneFileShareTransfer() throws Exception {
+    TFTPMetrics.Session firstSession = join(first, "a");
+    TFTPMetrics.Session secondSession = join(second, "a");
+    String group = "239.255.0.1," + GROUPPORT;
+    assertEquals(group + ",0", receiveOack(first).get("multicast"));
+    assertEquals(group + ",0", receiveOack(second).get("multicast"));
+
+    // The client that joined first is the master client until it has the whole file, then the second one is
+    SocketAddress transfer = acknowledgeFile(first);
+    assertEquals(transfer, acknowledgeFile(second));
+    awaitEnd(firstSession);
+    awaitEnd(secondSession);
+    assertTrue(firstSession.isSuccessful());
+    assertTrue(secondSession.isSuccessful());
+  }
+
+  @Test
+  void everyFileHasPortOfItsOwn() throws IOException {
+    join(first, "a");
+    join(second, "b");
+    assertNotEquals(receiveOack(first).get("multicast"), receiveOack(second).get("multicast"));
+  }
+
+  @Test
+  void repeatedJoinIsDuplicate() throws IOException {
+    TFTPMetrics.Session session = join(first, "a");
+    TFTPMetrics.Session repeated = join(first, "a");
+    assertTrue(repeated.isEnded());
+    assertFalse(session.isEnded());
+    assertEquals(1, metrics.getDuplicateRequests());
+  }
+
+  @Test
+  void doesNotMulticastNetasciiOrMissingFile() {
+    TFTPOptions netascii = options();
+    netascii.setMode("netascii");
+    assertFalse(sessions.join(address(first), "a", netascii, session(first, "a")));
+    assertFalse(sessions.join(address(first), "missing", options(), session(first, "missing")));
+  }
+
+  @Test
+  void failedTransferSendsErrorAndIsRemoved() throws Exception {
+    TFTPMetrics.Session session = join(first, "broken");
+    receiveOack(first);
+    // The master client asks for the first block, which can not be read
+    SocketAddress transfer = receiveMasterOack(first);
+    first.send(ack(0, transfer));
+    DatagramPacket error = receive(first);
+    assertEquals(TFTPUtils.OP_ERR, TFTPCodec.getOpcode(error.getData()));
+    awaitEnd(session);
+    assertFalse(session.isSuccessful());
+
+    // The next request starts a new transfer, instead of joining the failed one whose socket is closed
+    join(second, "broken");
+    receiveOack(second);
+    receiveMasterOack(second);
+  }
+
+  /**
+   * A file whose blocks can not be read.
+   */
+  private static final class BrokenContent implements ContentSource.Content {
+    public long size() {
+      return 100;
+    }
+
+    public long version() {
+      return 1;
+    }
+
+    public int read(ByteBuffer dst, long position) {
+      throw new IllegalStateException("Broken");
+    }
+
+    public void close() {}
+  }
+
+  private TFTPMetrics.Session join(DatagramSocket client, String file) {
+    TFTPMetrics.Session session = session(client, file);
+    assertTrue(sessions.join(address(client), file, options(), session));
+    return session;
+  }
+
+  private TFTPMetrics.Session session(DatagramSocket client, String file) {
+    return metrics.startSession(TFTPUtils.OP_RRQ, address(client), file);
+  }
+
+  private static TFTPOptions options() {
+    TFTPOptions options = new TFTPOptions();
+    options.setMode("octet");
+    options.negotiate(TFTPUtils.OP_RRQ);
+    return options;
+  }
+
+  private static DatagramSocket client() throws IOException {
+    DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    socket.setSoTimeout(TIMEOUT);
+    return socket;
+  }
+
+  private static InetSocketAddress address(DatagramSocket client) {
+    return (InetSocketAddress) client.getLocalSocketAddress();
+  }
+
+  /**
+   * Waits until the client is made the master client, and acknowledges the last block of the file.
+   * @return the address of the transfer
+   */
+  private static SocketAddress acknowledgeFile(DatagramSocket client) throws IOException {
+    SocketAddress transfer = receiveMasterOack(client);
+    client.send(ack(1, transfer));
+    return transfer;
+  }
+
+  private static SocketAddress receiveMasterOack(DatagramSocket client) throws IOException {
+    while (true) {
+      DatagramPacket packet = receive(client);
+      if (decodeOack(packet).get("multicast").endsWith(",1")) {
+        return packet.getSocketAddress();
+      }
+    }
+  }
+
+  private static Map<String, String> receiveOack(DatagramSocket client) throws IOException {
+    return decodeOack(receive(client));
+  }
+
+  private static DatagramPacket receive(DatagramSocket client) throws IOException {
+    DatagramPacket packet = new DatagramPacket(new byte[TFTPUtils.BUFSIZE], TFTPUtils.BUFSIZE);
+    client.receive(packet);
+    return packet;
+  }
+
+  private static Map<String, String> decodeOack(DatagramPacket packet) {
+    assertEquals(TFTPUtils.OP_OACK, TFTPCodec.getOpcode(packet.getData()));
+    String[] fields = new String(packet.getData(), 2, packet.getLength() - 2, StandardCharsets.US_ASCII).split("\0");
+    Map<String, String> options = new HashMap<>();
+    for (int i = 0; i + 1 < fields.length; i += 2) {
+      options.put(fields[i], fields[i + 1]);
+    }
+    return options;
+  }
+
+  private static DatagramPacket ack(int blocknbr, SocketAddress address) {
+    byte[] ack = new byte[4];
+    TFTPCodec.encodeAck(ack, blocknbr);
+    return new DatagramPacket(ack, ack.length, address);
+  }
+
+  private static void awaitEnd(TFTPMetrics.Session session) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (!session.isEnded() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(session.isEnded());
+  }
+}
@@ -0,0 +1,119 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the netascii encoding and decoding, with line ends that are split between two blocks.
+ */
+class NetasciiTest {
+
+  @Test
+  void encodesLineEnds() throws IOException {
+    assertArrayEquals(ascii("a\r\nb\r\0c\r\n"), encode(ascii("a\nb\rc\n"), 512));
+  }
+
+  @Test
+  void encodesLineEndsAcrossBlocks() throws IOException {
+    // Every LF and CR is encoded into the last byte of a block, so that its second byte starts the next block
+    byte[] encoded = encode(ascii("a\nb\rc\n"), 2);
+    assertArrayEquals(ascii("a\r\nb\r\0c\r\n"), encoded);
+  }
+
+  @Test
+  void decodesLineEnds() {
+    assertArrayEquals(ascii("a\nb\rc\n"), decode(ascii("a\r\nb\r\0c\r\n"), 512));
+  }
+
+  @Test
+  void decodesLineEndsSplitAtEveryPosition() {
+    byte[] encoded = ascii("a\r\nb\r\0c\r\nd\rx\r");
+    byte[] expected = ascii("a\nb\rc\nd\rx\r");
+    for (int split = 0; split <= encoded.length; split++) {
+      Netascii.Decoder decoder = new Netascii.Decoder(encoded.length);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      append(out, decoder.decode(encoded, 0, split, false));
+      append(out, decoder.decode(encoded, split, encoded.length - split, true));
+      assertArrayEquals(expected, out.toByteArray(), "split at " + split);
+    }
+  }
+
+  @Test
+  void keepsCarriageReturnAtEndOfLastBlock() {
+    assertArrayEquals(ascii("x\r"), decode(ascii("x\r"), 2));
+  }
+
+  @Test
+  void roundTripsAnyBytes() throws IOException {
+    Random random = new Random(42);
+    byte[] alphabet = ascii("ab\r\n\0");
+    byte[] file = new byte[10000];
+    for (int i = 0; i < file.length; i++) {
+      file[i] = alphabet[random.nextInt(alphabet.length)];
+    }
+    for (int blksize : new int[] {8, 9, 512, 1428}) {
+      assertArrayEquals(file, decode(encode(file, blksize), blksize), "blksize " + blksize);
+    }
+  }
+
+  @Test
+  void endsWithEmptyBlockWhenLastBlockIsFull() throws IOException {
+    Netascii.Encoder encoder = new Netascii.Encoder(content(ascii("a\n")));
+    byte[] block = new byte[3];
+    assertEquals(3, encoder.encode(block, 0, block.length));
+    assertEquals(0, encoder.encode(block, 0, block.length));
+  }
+
+  /**
+   * Encodes the file block by block, as a read request does.
+   */
+  private static byte[] encode(byte[] file, int blksize) throws IOException {
+    Netascii.Encoder encoder = new Netascii.Encoder(content(file));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] block = new byte[blksize];
+    int length;
+    do {
+      length = encoder.encode(block, 0, blksize);
+      out.write(block, 0, length);
+    } while (length == blksize);
+    return out.toByteArray();
+  }
+
+  /**
+   * Decodes the blocks of an encoded file, as a write request does.
+   */
+  private static byte[] decode(byte[] encoded, int blksize) {
+    Netascii.Decoder decoder = new Netascii.Decoder(blksize);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int offset = 0;
+    while (true) {
+      int length = Math.min(blksize, encoded.length - offset);
+      boolean last = length < blksize;
+      append(out, decoder.decode(encoded, offset, length, last));
+      offset += length;
+      if (last) {
+        return out.toByteArray();
+      }
+    }
+  }
+
+  private static void append(ByteArrayOutputStream out, ByteBuffer decoded) {
+    byte[] bytes = new byte[decoded.remaining()];
+    decoded.get(bytes);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static ContentSource.Content content(byte[] file) {
+    return new ContentSource.BufferContent(ByteBuffer.wrap(file), 0);
+  }
+
+  private static byte[] ascii(String text) {
+    return text.getBytes(StandardCharsets.US_ASCII);
+  }
+}
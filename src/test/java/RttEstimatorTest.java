@@ -0,0 +1,68 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the retransmission timeouts of the estimator, with the limits in TFTPUtils.
+ */
+class RttEstimatorTest {
+
+  @Test
+  void startsWithInitialRto() {
+    RttEstimator rtt = new RttEstimator(0);
+    assertEquals(TFTPUtils.INITIALRTO, rtt.getRto());
+    assertEquals(-1, rtt.getSrtt());
+  }
+
+  @Test
+  void firstSampleSetsVariationToHalf() {
+    RttEstimator rtt = new RttEstimator(0);
+    rtt.sample(100);
+    assertEquals(100, rtt.getSrtt());
+    // SRTT + 4 * RTTVAR, with RTTVAR = 50
+    assertEquals(300, rtt.getRto());
+  }
+
+  @Test
+  void steadyRoundTripsLowerRtoToMinimum() {
+    RttEstimator rtt = new RttEstimator(0);
+    for (int i = 0; i < 50; i++) {
+      rtt.sample(20);
+    }
+    assertEquals(20, rtt.getSrtt());
+    assertEquals(TFTPUtils.MINRTO, rtt.getRto());
+  }
+
+  @Test
+  void slowRoundTripIsLimitedToMaximum() {
+    RttEstimator rtt = new RttEstimator(0);
+    rtt.sample(TFTPUtils.MAXRTO);
+    assertEquals(TFTPUtils.MAXRTO, rtt.getRto());
+  }
+
+  @Test
+  void backoffDoublesUpToMaximum() {
+    RttEstimator rtt = new RttEstimator(0);
+    long expected = TFTPUtils.INITIALRTO;
+    for (int i = 0; i < 6; i++) {
+      rtt.backoff();
+      expected = Math.min(TFTPUtils.MAXRTO, expected * 2);
+      assertEquals(expected, rtt.getRto());
+    }
+    assertEquals(TFTPUtils.MAXRTO, rtt.getRto());
+
+    // A new round trip ends the backoff
+    rtt.sample(100);
+    assertEquals(300, rtt.getRto());
+  }
+
+  @Test
+  void negotiatedTimeoutIsFixed() {
+    RttEstimator rtt = new RttEstimator(3);
+    assertEquals(3000, rtt.getRto());
+    rtt.sample(10);
+    rtt.backoff();
+    assertEquals(3000, rtt.getRto());
+    assertEquals(-1, rtt.getSrtt());
+  }
+}
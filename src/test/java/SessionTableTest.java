@@ -0,0 +1,61 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the detection of repeated requests, with a client that reads "boot" from port 50000.
+ */
+class SessionTableTest {
+  private final TFTPMetrics metrics = new TFTPMetrics();
+  private final SessionTable table = new SessionTable(metrics);
+  private final InetSocketAddress client = new InetSocketAddress("127.0.0.1", 50000);
+
+  @Test
+  void repeatedRequestOfRunningTransferIsDuplicate() {
+    add(client, TFTPUtils.OP_RRQ, "boot");
+    assertTrue(table.isDuplicate(client, TFTPUtils.OP_RRQ, "boot"));
+  }
+
+  @Test
+  void otherRequestsAreNotDuplicates() {
+    add(client, TFTPUtils.OP_RRQ, "boot");
+    assertFalse(table.isDuplicate(client, TFTPUtils.OP_RRQ, "other"));
+    assertFalse(table.isDuplicate(client, TFTPUtils.OP_WRQ, "boot"));
+    assertFalse(table.isDuplicate(new InetSocketAddress("127.0.0.1", 50001), TFTPUtils.OP_RRQ, "boot"));
+    assertFalse(table.isDuplicate(new InetSocketAddress("127.0.0.2", 50000), TFTPUtils.OP_RRQ, "boot"));
+  }
+
+  @Test
+  void requestAfterEndedTransferIsNotDuplicate() {
+    add(client, TFTPUtils.OP_RRQ, "boot").end(true);
+    assertFalse(table.isDuplicate(client, TFTPUtils.OP_RRQ, "boot"));
+    table.sweep();
+    assertFalse(table.isDuplicate(client, TFTPUtils.OP_RRQ, "boot"));
+  }
+
+  @Test
+  void newRequestReplacesTransferOfClient() {
+    add(client, TFTPUtils.OP_RRQ, "boot");
+    add(client, TFTPUtils.OP_RRQ, "other");
+    assertFalse(table.isDuplicate(client, TFTPUtils.OP_RRQ, "boot"));
+    assertTrue(table.isDuplicate(client, TFTPUtils.OP_RRQ, "other"));
+  }
+
+  @Test
+  void sweepKeepsActiveSession() {
+    add(client, TFTPUtils.OP_RRQ, "boot");
+    table.sweep();
+    assertTrue(table.isDuplicate(client, TFTPUtils.OP_RRQ, "boot"));
+    assertEquals(0, metrics.getEvictedSessions());
+  }
+
+  private TFTPMetrics.Session add(InetSocketAddress address, int opcode, String file) {
+    TFTPMetrics.Session session = metrics.startSession(opcode, address, file);
+    table.add(address, opcode, file, session);
+    return session;
+  }
+}
@@ -0,0 +1,118 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the staging of uploads in a temporary directory, and their commit with and without syncing to the disk.
+ */
+class StagedUploadTest {
+  private static final byte[] CONTENT = {1, 2, 3};
+
+  @TempDir
+  Path directory;
+
+  private final List<File> published = Collections.synchronizedList(new ArrayList<File>());
+  private GroupCommit groupCommit;
+
+  @BeforeEach
+  void setUp() {
+    groupCommit = new GroupCommit(true, published::add);
+    groupCommit.start();
+  }
+
+  @Test
+  void committedUploadHasRequestedName() throws IOException {
+    File target = directory.resolve("upload").toFile();
+    try (StagedUpload upload = write(target)) {
+      assertFalse(target.exists());
+      groupCommit.commit(upload);
+    }
+    assertArrayEquals(CONTENT, Files.readAllBytes(target.toPath()));
+    assertEquals(Collections.singletonList(target), published);
+    assertEquals(1, groupCommit.getCommits());
+    assertEquals(0, groupCommit.getFailures());
+    assertEquals(1, directory.toFile().list().length);
+  }
+
+  @Test
+  void closedUploadLeavesNoFile() throws IOException {
+    File target = directory.resolve("upload").toFile();
+    write(target).close();
+    assertFalse(target.exists());
+    assertEquals(0, directory.toFile().list().length);
+  }
+
+  @Test
+  void commitDoesNotReplaceExistingFile() throws IOException {
+    File target = directory.resolve("upload").toFile();
+    Files.write(target.toPath(), new byte[1]);
+    try (StagedUpload upload = write(target)) {
+      assertThrows(FileAlreadyExistsException.class, () -> groupCommit.commit(upload));
+    }
+    assertEquals(1, Files.size(target.toPath()));
+    assertEquals(1, groupCommit.getFailures());
+    assertTrue(published.isEmpty());
+  }
+
+  @Test
+  void commitOfClosedUploadFails() throws IOException {
+    File target = directory.resolve("upload").toFile();
+    StagedUpload upload = write(target);
+    upload.close();
+    assertThrows(IOException.class, () -> groupCommit.commit(upload));
+    assertFalse(target.exists());
+  }
+
+  @Test
+  void queuedUploadsAreCommittedTogether() throws Exception {
+    List<StagedUpload> uploads = new ArrayList<>();
+    final List<IOException> errors = Collections.synchronizedList(new ArrayList<IOException>());
+    for (int i = 0; i < 10; i++) {
+      uploads.add(write(directory.resolve("upload" + i).toFile()));
+    }
+    for (StagedUpload upload : uploads) {
+      groupCommit.commit(upload, errors::add);
+    }
+    long deadline = System.currentTimeMillis() + 5000;
+    while (errors.size() < uploads.size() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    for (StagedUpload upload : uploads) {
+      upload.close();
+      assertArrayEquals(CONTENT, Files.readAllBytes(upload.getTarget().toPath()));
+    }
+    assertEquals(Collections.nCopies(uploads.size(), null), errors);
+    assertTrue(groupCommit.getGroups() <= uploads.size());
+  }
+
+  @Test
+  void removesAbandonedStagingFiles() throws IOException {
+    File subdirectory = Files.createDirectory(directory.resolve("dir")).toFile();
+    write(new File(subdirectory, "upload"));
+    Files.write(directory.resolve("kept"), new byte[1]);
+    assertEquals(1, StagedUpload.removeAbandoned(directory.toFile()));
+    assertEquals(0, subdirectory.list().length);
+    assertTrue(directory.resolve("kept").toFile().exists());
+  }
+
+  private static StagedUpload write(File target) throws IOException {
+    StagedUpload upload = new StagedUpload(target);
+    upload.getOutputStream().write(CONTENT);
+    return upload;
+  }
+}
@@ -0,0 +1,144 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Locale;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the negotiation of the options of RFC 2347 within the default limits of the server.
+ */
+class TFTPOptionsTest {
+
+  @Test
+  void acknowledgesNothingWithoutOptions() {
+    TFTPOptions options = negotiate(TFTPUtils.OP_RRQ);
+    assertFalse(options.hasAcknowledged());
+    assertEquals(TFTPUtils.DEFAULTBLKSIZE, options.getBlksize());
+    assertEquals(1, options.getWindowsize());
+  }
+
+  @Test
+  void acceptsBlksize() {
+    TFTPOptions options = negotiate(TFTPUtils.OP_RRQ, "blksize", "1428");
+    assertEquals(1428, options.getBlksize());
+    assertEquals("1428", options.getAcknowledged().get("blksize"));
+  }
+
+  @Test
+  void limitsBlksize() {
+    TFTPOptions options = negotiate(TFTPUtils.OP_WRQ, "blksize", "100000");
+    assertEquals(TFTPUtils.MAXBLKSIZE, options.getBlksize());
+    assertEquals(Integer.toString(TFTPUtils.MAXBLKSIZE), options.getAcknowledged().get("blksize"));
+  }
+
+  @Test
+  void ignoresInvalidBlksize() {
+    assertFalse(negotiate(TFTPUtils.OP_RRQ, "blksize", "7").hasAcknowledged());
+    assertFalse(negotiate(TFTPUtils.OP_RRQ, "blksize", "large").hasAcknowledged());
+  }
+
+  @Test
+  void matchesOptionNamesCaseInsensitively() {
+    assertEquals(1024, negotiate(TFTPUtils.OP_RRQ, "BlkSize", "1024").getBlksize());
+  }
+
+  @Test
+  void matchesOptionNamesInAnyLocale() {
+    // The lowercase of 'I' is a dotless 'i' in Turkish
+    Locale locale = Locale.getDefault();
+    Locale.setDefault(new Locale("tr", "TR"));
+    try {
+      assertEquals(5, negotiate(TFTPUtils.OP_RRQ, "TIMEOUT", "5").getTimeout());
+    } finally {
+      Locale.setDefault(locale);
+    }
+  }
+
+
+
+
+
+  @Test
+  void acceptsWindowsizeOnlyForReads() {
+    TFTPOptions read = negotiate(TFTPUtils.OP_RRQ, "windowsize", "1000");
+    assertEquals(TFTPServer.WINDOWSIZELIMIT, read.getWindowsize());
+    assertEquals(Integer.toString(TFTPServer.WINDOWSIZELIMIT), read.getAcknowledged().get("windowsize"));
+
+    TFTPOptions write = negotiate(TFTPUtils.OP_WRQ, "windowsize", "8");
+    assertEquals(1, write.getWindowsize());
+    assertFalse(write.hasAcknowledged());
+  }
+
+  @Test
+  void acknowledgesTsizeOfReadWithFileSize() {
+    TFTPOptions options = negotiate(TFTPUtils.OP_RRQ, "tsize", "0");
+    assertFalse(options.hasAcknowledged());
+    options.setFileSize(12345);
+    assertEquals("12345", options.getAcknowledged().get("tsize"));
+    assertEquals(12345, options.getTransferSize());
+  }
+
+  @Test
+  void acknowledgesTsizeOfWrite() {
+    TFTPOptions options = negotiate(TFTPUtils.OP_WRQ, "tsize", "4096");
+    assertEquals("4096", options.getAcknowledged().get("tsize"));
+    assertEquals(4096, options.getTransferSize());
+  }
+
+  @Test
+  void ignoresFileSizeWithoutTsize() {
+    TFTPOptions options = negotiate(TFTPUtils.OP_RRQ);
+    options.setFileSize(12345);
+    assertFalse(options.hasAcknowledged());
+    assertEquals(-1, options.getTransferSize());
+  }
+
+  @Test
+  void acceptsTimeoutInRange() {
+    assertEquals(5, negotiate(TFTPUtils.OP_RRQ, "timeout", "5").getTimeout());
+    assertNull(negotiate(TFTPUtils.OP_RRQ, "timeout", "0").getAcknowledged().get("timeout"));
+    assertNull(negotiate(TFTPUtils.OP_RRQ, "timeout", "256").getAcknowledged().get("timeout"));
+  }
+
+
+
+  @Test
+  void acceptsRollover() {
+    assertEquals(1, negotiate(TFTPUtils.OP_RRQ, "rollover", "1").getRollover());
+    assertNull(negotiate(TFTPUtils.OP_RRQ, "rollover", "2").getAcknowledged().get("rollover"));
+  }
+
+  @Test
+  void ignoresMulticastWithoutGroup() {
+    TFTPOptions options = negotiate(TFTPUtils.OP_RRQ, "multicast", "");
+    assertFalse(options.isMulticast());
+    assertFalse(options.hasAcknowledged());
+  }
+
+  @Test
+  void checksMode() {
+    TFTPOptions options = new TFTPOptions();
+    options.setMode("NetASCII");
+    options.checkMode();
+    assertTrue(options.isNetascii());
+
+    options.setMode("mail");
+    assertThrows(IllegalArgumentException.class, options::checkMode);
+  }
+
+  /**
+   * Negotiates the options of a request, given as pairs of a name and a value.
+   */
+  private static TFTPOptions negotiate(int opcode, String... requested) {
+    TFTPOptions options = new TFTPOptions();
+    for (int i = 0; i < requested.length; i += 2) {
+      options.addRequested(requested[i], requested[i + 1]);
+    }
+    options.negotiate(opcode);
+    return options;
+  }
+}
@@ -0,0 +1,43 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the blocknumbers of files with more than 65535 blocks.
+ */
+class TFTPUtilsTest {
+
+  @Test
+  void countsBlocksUpTo65535() {
+    assertEquals(0, TFTPUtils.toBlocknbr(0, 0));
+    assertEquals(1, TFTPUtils.toBlocknbr(1, 1));
+    assertEquals(65535, TFTPUtils.toBlocknbr(65535, 0));
+    assertEquals(65535, TFTPUtils.toBlocknbr(65535, 1));
+  }
+
+  @Test
+  void rollsOverToZero() {
+    assertEquals(0, TFTPUtils.toBlocknbr(65536, 0));
+    assertEquals(1, TFTPUtils.toBlocknbr(65537, 0));
+    assertEquals(65535, TFTPUtils.toBlocknbr(131071, 0));
+    assertEquals(0, TFTPUtils.toBlocknbr(131072, 0));
+  }
+
+  @Test
+  void rollsOverToOne() {
+    assertEquals(1, TFTPUtils.toBlocknbr(65536, 1));
+    assertEquals(65535, TFTPUtils.toBlocknbr(131070, 1));
+    assertEquals(1, TFTPUtils.toBlocknbr(131071, 1));
+  }
+
+  @Test
+  void findsBlockOfBlocknbrAfterRollover() {
+    for (int rollover = 0; rollover <= 1; rollover++) {
+      for (long block = 65530; block < 131080; block += 7) {
+        int blocknbr = TFTPUtils.toBlocknbr(block, rollover);
+        assertEquals(block, TFTPUtils.toBlock(blocknbr, block, rollover));
+        assertEquals(block, TFTPUtils.toBlock(blocknbr, block - 100, rollover), "block " + block);
+      }
+    }
+  }
+}
@@ -0,0 +1,111 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the choice of templates and the rendering of their placeholders, for a client at 192.0.2.1.
+ */
+class TemplateContentSourceTest {
+  private static final InetSocketAddress CLIENT = new InetSocketAddress("192.0.2.1", 50000);
+
+  @TempDir
+  Path directory;
+
+  private final MemoryContentSource files = new MemoryContentSource();
+
+  @BeforeEach
+  void setUp() throws IOException {
+    Files.createDirectory(directory.resolve("pxelinux.cfg"));
+    files.put("boot", ascii("from the next source"));
+  }
+
+  @Test
+  void rendersPlaceholders() throws IOException {
+    template("pxelinux.cfg/01-*", "name=${name} match=${match} client=${client}");
+    assertEquals("name=pxelinux.cfg/01-aa-bb match=aa-bb client=192.0.2.1", open("pxelinux.cfg/01-aa-bb"));
+  }
+
+  @Test
+  void keepsUnknownPlaceholder() throws IOException {
+    template("host", "${host} ${name}");
+    assertEquals("${host} host", open("host"));
+  }
+
+  @Test
+  void longestPatternIsUsed() throws IOException {
+    template("pxelinux.cfg/*", "any");
+    template("pxelinux.cfg/01-*", "mac");
+    template("pxelinux.cfg/01-*.cfg", "mac cfg");
+    assertEquals("mac cfg", open("pxelinux.cfg/01-aa.cfg"));
+    assertEquals("mac", open("pxelinux.cfg/01-aa"));
+    assertEquals("any", open("pxelinux.cfg/default"));
+  }
+
+  @Test
+  void exactTemplateIsUsedBeforePattern() throws IOException {
+    template("pxelinux.cfg/*", "any");
+    template("pxelinux.cfg/default", "default");
+    assertEquals("default", open("/pxelinux.cfg/default"));
+  }
+
+  @Test
+  void templateWithoutStarOnlyMatchesItsName() throws IOException {
+    template("boot.cfg", "boot");
+    assertEquals("boot", open("boot.cfg"));
+    assertEquals("from the next source", open("boot"));
+  }
+
+  @Test
+  void patternDoesNotMatchShorterName() throws IOException {
+    // The prefix and the suffix of "ab*ba" overlap in "aba", which is not a match
+    template("ab*ba", "match=${match}");
+    assertEquals("match=", open("abba"));
+    assertThrows(FileNotFoundException.class, () -> open("aba"));
+  }
+
+  @Test
+  void everyRenderingIsVersionOfItsOwn() throws IOException {
+    template("host", "${client}");
+    TemplateContentSource source = new TemplateContentSource(directory.toFile(), files);
+    assertNotEquals(source.open("host", CLIENT).version(), source.open("host", CLIENT).version());
+    assertEquals("", read(source.open("host", null)));
+  }
+
+  @Test
+  void hiddenFilesAreNotTemplates() throws IOException {
+    template(".hidden", "hidden");
+    template("host", "host");
+    assertEquals(1, new TemplateContentSource(directory.toFile(), files).size());
+  }
+
+  private void template(String name, String text) throws IOException {
+    Files.write(directory.resolve(name), ascii(text));
+  }
+
+  private String open(String name) throws IOException {
+    return read(new TemplateContentSource(directory.toFile(), files).open(name, CLIENT));
+  }
+
+  private static String read(ContentSource.Content content) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate((int) content.size());
+    content.read(buf, 0);
+    content.close();
+    return new String(buf.array(), StandardCharsets.UTF_8);
+  }
+
+  private static byte[] ascii(String text) {
+    return text.getBytes(StandardCharsets.US_ASCII);
+  }
+}
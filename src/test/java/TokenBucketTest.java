@@ -0,0 +1,47 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the token bucket with a rate of 1000 bytes per second, so that a byte costs a millisecond.
+ */
+class TokenBucketTest {
+  private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final TokenBucket bucket = new TokenBucket(1000, 500);
+  // A time at which the new bucket is full
+  private final long now = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+
+  @Test
+  void sendsBurstWithoutWaiting() {
+    assertTrue(bucket.isFull(now));
+    assertEquals(0, bucket.reserve(500, now));
+    assertEquals(0, bucket.getDelay(now));
+    assertFalse(bucket.isFull(now));
+  }
+
+  @Test
+  void waitsForBytesBeyondBurst() {
+    bucket.reserve(500, now);
+    assertEquals(100 * MILLIS, bucket.reserve(100, now));
+    assertEquals(100 * MILLIS, bucket.getDelay(now));
+    assertEquals(0, bucket.getDelay(now + 100 * MILLIS));
+  }
+
+  @Test
+  void refillsAtRate() {
+    bucket.reserve(500, now);
+    assertEquals(0, bucket.reserve(200, now + 200 * MILLIS));
+    assertTrue(bucket.isFull(now + 700 * MILLIS));
+  }
+
+  @Test
+  void holdsNoMoreThanBurstAfterIdling() {
+    long later = now + TimeUnit.SECONDS.toNanos(60);
+    assertEquals(500 * MILLIS, bucket.reserve(1000, later));
+  }
+}
@@ -0,0 +1,49 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests which buckets delay the packets of clients, with buckets of 500 bytes that refill at 1000 bytes per second.
+ * A packet of 400 bytes fits in a new bucket, another one of 200 bytes has to wait.
+ */
+class TrafficShaperTest {
+
+  @Test
+  void clientsOfSubnetShareBucket() throws Exception {
+    TrafficShaper shaper = new TrafficShaper(0, 0, 1000, 24, 500);
+    assertEquals(0, shaper.reserve(shaper.client(InetAddress.getByName("192.0.2.1")), 400));
+    assertTrue(shaper.reserve(shaper.client(InetAddress.getByName("192.0.2.200")), 200) > 0);
+    assertEquals(0, shaper.reserve(shaper.client(InetAddress.getByName("192.0.3.1")), 400));
+    assertEquals(1, shaper.getDelayedBySubnet());
+  }
+
+  @Test
+  void ipv6SubnetsArePrefix64() throws Exception {
+    TrafficShaper shaper = new TrafficShaper(0, 0, 1000, 24, 500);
+    assertEquals(0, shaper.reserve(shaper.client(InetAddress.getByName("2001:db8:0:1::1")), 400));
+    assertTrue(shaper.reserve(shaper.client(InetAddress.getByName("2001:db8:0:1:ffff::2")), 200) > 0);
+    assertEquals(0, shaper.reserve(shaper.client(InetAddress.getByName("2001:db8:0:2::1")), 400));
+  }
+
+  @Test
+  void everyClientHasBucketOfItsOwn() throws Exception {
+    TrafficShaper shaper = new TrafficShaper(0, 1000, 0, 24, 500);
+    TrafficShaper.Client client = shaper.client(InetAddress.getByName("192.0.2.1"));
+    assertEquals(0, shaper.reserve(client, 400));
+    assertTrue(shaper.reserve(client, 200) > 0);
+    assertEquals(0, shaper.reserve(shaper.client(InetAddress.getByName("192.0.2.2")), 400));
+    assertEquals(1, shaper.getDelayedByClient());
+  }
+
+  @Test
+  void globalBucketAppliesWithoutClient() {
+    TrafficShaper shaper = new TrafficShaper(1000, 0, 0, 24, 500);
+    assertEquals(0, shaper.reserve(null, 400));
+    assertTrue(shaper.reserve(null, 200) > 0);
+    assertEquals(1, shaper.getDelayedByGlobal());
+    assertEquals(2, shaper.getPackets());
+  }
+}
@@ -0,0 +1,132 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the order in which the policies grant the blocks that are waiting when the scheduler starts.
+ */
+class TransferSchedulerTest {
+  private static final int BLOCK = 1000;
+
+  private final List<String> granted = Collections.synchronizedList(new ArrayList<String>());
+
+  @Test
+  void fifoGrantsInOrderOfArrival() throws Exception {
+    TransferScheduler scheduler = scheduler(TransferScheduler.Policy.FIFO, null);
+    InetAddress client = InetAddress.getByName("127.0.0.1");
+    TransferScheduler.Flow first = scheduler.open(client, 100 * BLOCK);
+    TransferScheduler.Flow second = scheduler.open(client, BLOCK);
+    TransferScheduler.Flow third = scheduler.open(client, 10 * BLOCK);
+    CountDownLatch done = new CountDownLatch(3);
+    request(third, "third", done);
+    request(second, "second", done);
+    request(first, "first", done);
+    assertGranted(scheduler, done, "first", "second", "third");
+  }
+
+  @Test
+  void srptGrantsFewestRemainingBytesFirst() throws Exception {
+    TransferScheduler scheduler = scheduler(TransferScheduler.Policy.SRPT, null);
+    InetAddress client = InetAddress.getByName("127.0.0.1");
+    TransferScheduler.Flow large = scheduler.open(client, 100 * BLOCK);
+    TransferScheduler.Flow small = scheduler.open(client, BLOCK);
+    TransferScheduler.Flow medium = scheduler.open(client, 10 * BLOCK);
+    CountDownLatch done = new CountDownLatch(3);
+    request(large, "large", done);
+    request(small, "small", done);
+    request(medium, "medium", done);
+    assertGranted(scheduler, done, "small", "medium", "large");
+  }
+
+  @Test
+  void srptDoesNotCountResentBlocks() throws Exception {
+    TransferScheduler scheduler = scheduler(TransferScheduler.Policy.SRPT, null);
+    scheduler.start();
+    InetAddress client = InetAddress.getByName("127.0.0.1");
+    TransferScheduler.Flow large = scheduler.open(client, 4 * BLOCK);
+    TransferScheduler.Flow small = scheduler.open(client, 2 * BLOCK);
+    // The large transfer sends its first block, and then sends it three more times
+    large.acquire(BLOCK, false);
+    for (int i = 0; i < 3; i++) {
+      large.acquire(BLOCK, true);
+    }
+
+    // The scheduler thread is held in a grant, so that both transfers wait for their next block at once
+    final CountDownLatch holding = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    scheduler.open(client, BLOCK).request(BLOCK, false, new Runnable() {
+      public void run() {
+        holding.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    assertTrue(holding.await(5, TimeUnit.SECONDS));
+    CountDownLatch done = new CountDownLatch(2);
+    request(large, "large", done);
+    request(small, "small", done);
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("small", "large"), granted);
+  }
+
+  @Test
+  void wfqSharesByClientAndWeight() throws Exception {
+    TransferScheduler scheduler = scheduler(TransferScheduler.Policy.WFQ, TransferScheduler.parseWeights("127.0.0.2=2"));
+    // The client with two transfers gets no more than the client with one, which in addition has twice the weight
+    TransferScheduler.Flow many1 = scheduler.open(InetAddress.getByName("127.0.0.1"), 100 * BLOCK);
+    TransferScheduler.Flow many2 = scheduler.open(InetAddress.getByName("127.0.0.1"), 100 * BLOCK);
+    TransferScheduler.Flow heavy = scheduler.open(InetAddress.getByName("127.0.0.2"), 100 * BLOCK);
+    CountDownLatch done = new CountDownLatch(3);
+    request(many1, "many1", done);
+    request(many2, "many2", done);
+    request(heavy, "heavy", done);
+    assertGranted(scheduler, done, "heavy", "many1", "many2");
+  }
+
+  @Test
+  void closedFlowIsNotGranted() throws Exception {
+    TransferScheduler scheduler = scheduler(TransferScheduler.Policy.FIFO, null);
+    InetAddress client = InetAddress.getByName("127.0.0.1");
+    TransferScheduler.Flow closed = scheduler.open(client, BLOCK);
+    TransferScheduler.Flow open = scheduler.open(client, BLOCK);
+    CountDownLatch done = new CountDownLatch(1);
+    request(closed, "closed", done);
+    request(open, "open", done);
+    closed.close();
+    assertGranted(scheduler, done, "open");
+  }
+
+  private static TransferScheduler scheduler(TransferScheduler.Policy policy, List<TransferScheduler.Weight> weights) {
+    // The bandwidth allows every block at once, the order only depends on the policy
+    return new TransferScheduler(policy, 1000L * 1000 * 1000, 1000L * 1000, weights);
+  }
+
+  private void request(TransferScheduler.Flow flow, final String name, final CountDownLatch done) {
+    flow.request(BLOCK, false, new Runnable() {
+      public void run() {
+        granted.add(name);
+        done.countDown();
+      }
+    });
+  }
+
+  private void assertGranted(TransferScheduler scheduler, CountDownLatch done, String... order) throws InterruptedException {
+    scheduler.start();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList(order), granted);
+    assertEquals(0, scheduler.getWaiting());
+  }
+}